@@ -0,0 +1,148 @@
+"""
+Compares the throughput and latency of the two ways PyTorchModelService can run detect_falsification.py:
+
+  spawn  - one interpreter per image (python detect_falsification.py --image ... --output ...)
+  pool   - N long-lived `--serve` workers that keep the model loaded
+
+Example:
+  python benchmarks/worker_pool_benchmark.py \\
+      --model /tmp/falsification_detector.pth \\
+      --images src/main/resources/models/Shap/real \\
+      --requests 40 --workers 2
+"""
+import argparse
+import json
+import statistics
+import subprocess
+import sys
+import tempfile
+import threading
+import time
+from concurrent.futures import ThreadPoolExecutor
+from pathlib import Path
+
+SCRIPT = Path(__file__).resolve().parent.parent / "src" / "main" / "resources" / "python" / "detect_falsification.py"
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description='Worker pool vs. spawn-per-request benchmark')
+    parser.add_argument('--python', default=sys.executable, help='Python executable used by the service')
+    parser.add_argument('--model', required=True, type=Path, help='Path to the .pth state_dict')
+    parser.add_argument('--images', required=True, type=Path, help='Directory of sample images')
+    parser.add_argument('--arch', default='MobileNetV3_Large')
+    parser.add_argument('--dense-units', type=int, default=768)
+    parser.add_argument('--dropout', type=float, default=0.45)
+    parser.add_argument('--shap-background-dir', type=Path)
+    parser.add_argument('--requests', type=int, default=20, help='Images analyzed per mode')
+    parser.add_argument('--workers', type=int, default=2, help='Concurrency for both modes')
+    parser.add_argument('--mode', choices=['spawn', 'pool', 'both'], default='both')
+    return parser.parse_args()
+
+
+def sample_images(directory, count):
+    images = sorted(p for p in directory.iterdir() if p.suffix.lower() in ('.png', '.jpg', '.jpeg'))
+    if not images:
+        raise SystemExit(f"No images found in {directory}")
+    return [images[i % len(images)] for i in range(count)]
+
+
+def model_args(args):
+    command = ['--model', str(args.model), '--arch', args.arch,
+               '--dense-units', str(args.dense_units), '--dropout', str(args.dropout)]
+    if args.shap_background_dir:
+        command += ['--shap-background-dir', str(args.shap_background_dir)]
+    return command
+
+
+def run_spawn(args, images):
+    def analyze(image):
+        with tempfile.TemporaryDirectory() as tmp:
+            command = [args.python, str(SCRIPT), *model_args(args),
+                       '--image', str(image), '--output', str(Path(tmp) / 'result.json'),
+                       '--xai-output-dir', tmp]
+            start = time.perf_counter()
+            subprocess.run(command, stdout=subprocess.DEVNULL, stderr=subprocess.DEVNULL, check=False)
+            return time.perf_counter() - start
+
+    with ThreadPoolExecutor(max_workers=args.workers) as executor:
+        start = time.perf_counter()
+        latencies = list(executor.map(analyze, images))
+        return time.perf_counter() - start, latencies
+
+
+class Worker:
+    def __init__(self, args):
+        self.process = subprocess.Popen([args.python, str(SCRIPT), '--serve', *model_args(args)],
+                                        stdin=subprocess.PIPE, stdout=subprocess.PIPE,
+                                        stderr=subprocess.DEVNULL, text=True, bufsize=1)
+        status = json.loads(self.process.stdout.readline())
+        if status.get('status') != 'ready':
+            raise SystemExit(f"Worker failed to start: {status}")
+        self.lock = threading.Lock()
+
+    def call(self, request):
+        with self.lock:
+            self.process.stdin.write(json.dumps(request) + "\n")
+            self.process.stdin.flush()
+            return json.loads(self.process.stdout.readline())
+
+    def close(self):
+        self.process.stdin.close()
+        self.process.wait(timeout=30)
+
+
+def run_pool(args, images):
+    workers = [Worker(args) for _ in range(args.workers)]
+    free = list(workers)
+    free_lock = threading.Condition()
+
+    def analyze(image):
+        with free_lock:
+            while not free:
+                free_lock.wait()
+            worker = free.pop()
+        try:
+            with tempfile.TemporaryDirectory() as tmp:
+                start = time.perf_counter()
+                worker.call({'op': 'analyze', 'image': str(image), 'xaiOutputDir': tmp})
+                return time.perf_counter() - start
+        finally:
+            with free_lock:
+                free.append(worker)
+                free_lock.notify()
+
+    try:
+        with ThreadPoolExecutor(max_workers=args.workers) as executor:
+            start = time.perf_counter()
+            latencies = list(executor.map(analyze, images))
+            return time.perf_counter() - start, latencies
+    finally:
+        for worker in workers:
+            worker.close()
+
+
+def percentile(values, pct):
+    ordered = sorted(values)
+    index = min(len(ordered) - 1, max(0, int(round(pct / 100.0 * len(ordered))) - 1))
+    return ordered[index]
+
+
+def report(name, elapsed, latencies):
+    print(f"{name:>6}: {len(latencies) / elapsed:6.2f} images/s | "
+          f"p50 {statistics.median(latencies) * 1000:8.1f} ms | "
+          f"p99 {percentile(latencies, 99) * 1000:8.1f} ms | "
+          f"max {max(latencies) * 1000:8.1f} ms")
+
+
+def main():
+    args = parse_args()
+    images = sample_images(args.images, args.requests)
+    if args.mode in ('spawn', 'both'):
+        report('spawn', *run_spawn(args, images))
+    if args.mode in ('pool', 'both'):
+        report('pool', *run_pool(args, images))
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main())
@@ -5,145 +5,197 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
-import org.springframework.core.io.InputStreamResource;
-import org.springframework.http.*;
+import org.springframework.cloud.client.loadbalancer.LoadBalanced;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.core.io.buffer.DataBuffer;
+import org.springframework.core.io.buffer.DataBufferUtils;
 import org.springframework.stereotype.Component;
-import org.springframework.util.StreamUtils;
-import org.springframework.web.client.HttpClientErrorException;
-import org.springframework.web.client.RestTemplate;
-import org.springframework.web.util.UriComponentsBuilder;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.URI;
-import java.nio.file.Files;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
 
+/**
+ * Client for imageManagement-service over a pooled, load-balanced {@link WebClient}. The blocking methods
+ * are thin wrappers for the analysis threads; each applies its own timeout on top of the connect timeout.
+ */
 @Component
 public class ImageServiceClient {
     private static final Logger log = LoggerFactory.getLogger(ImageServiceClient.class);
+    private static final String DOWNLOAD_PATH =
+            "/api/v1/images/{id}/download?userId={userId}&userRole={userRole}&reason={reason}";
 
-    private final RestTemplate restTemplate;
+    private final WebClient webClient;
     private final String imageServiceBaseUrl;
 
+    @Value("${services.image-management.timeouts.metadata:5s}")
+    private Duration metadataTimeout;
+
+    @Value("${services.image-management.timeouts.list:15s}")
+    private Duration listTimeout;
+
+    @Value("${services.image-management.timeouts.download:60s}")
+    private Duration downloadTimeout;
+
+    @Value("${services.image-management.timeouts.status:5s}")
+    private Duration statusTimeout;
+
     @Autowired
-    public ImageServiceClient(RestTemplate restTemplate,
+    public ImageServiceClient(@LoadBalanced WebClient.Builder webClientBuilder,
                               @Value("${services.image-management.url:http://imagemanagement-service}") String imageServiceBaseUrl) {
-        this.restTemplate = restTemplate;
+        this.webClient = webClientBuilder.clone().baseUrl(imageServiceBaseUrl).build();
         this.imageServiceBaseUrl = imageServiceBaseUrl;
         log.info("ImageServiceClient initialized. Image Management URL: {}", this.imageServiceBaseUrl);
     }
 
     public Optional<Image> getImageMetadata(String imageId) {
-        String url = imageServiceBaseUrl + "/api/v1/images/{id}";
-        log.debug("Fetching metadata from URL: {} for ID: {}", url, imageId);
+        log.debug("Fetching metadata from {} for ID: {}", imageServiceBaseUrl, imageId);
         try {
-            ResponseEntity<Image> response = restTemplate.getForEntity(
-                    url,
-                    Image.class,
-                    imageId
-            );
-            return Optional.ofNullable(response.getBody());
-        } catch (HttpClientErrorException.NotFound e) {
-            log.warn("Image with ID {} not found at {}", imageId, url);
+            return webClient.get()
+                    .uri("/api/v1/images/{id}", imageId)
+                    .retrieve()
+                    .bodyToMono(Image.class)
+                    .timeout(metadataTimeout)
+                    .blockOptional();
+        } catch (WebClientResponseException.NotFound e) {
+            log.warn("Image with ID {} not found at {}", imageId, imageServiceBaseUrl);
+            return Optional.empty();
+        } catch (WebClientResponseException e) {
+            log.error("HTTP error retrieving image metadata for ID: {}. Status: {}, Body: {}",
+                    imageId, e.getStatusCode(), e.getResponseBodyAsString());
             return Optional.empty();
         } catch (Exception e) {
-            log.error("Generic error retrieving image metadata for ID: {} from URL: {}. Exception Type: {}, Message: {}",
-                    imageId, url, e.getClass().getName(), e.getMessage());
+            log.error("Generic error retrieving image metadata for ID: {} from {}. Exception Type: {}, Message: {}",
+                    imageId, imageServiceBaseUrl, e.getClass().getName(), e.getMessage());
             log.debug("Stack trace for generic error:", e);
-            if (e instanceof HttpClientErrorException) {
-                HttpClientErrorException hce = (HttpClientErrorException) e;
-                log.error("HTTP Error Body: {}", hce.getResponseBodyAsString());
-            }
             return Optional.empty();
         }
     }
 
-    public Optional<InputStream> downloadImage(String imageId, String userId, String userRole, String reason) {
-        String url = imageServiceBaseUrl + "/api/v1/images/{id}/download?userId={userId}&userRole={userRole}&reason={reason}";
-        log.warn("Calling deprecated downloadImage method for image ID: {}. Consider using downloadImageToFile.", imageId);
+    public List<Image> getImagesByCase(String caseId) {
+        log.debug("Fetching images from {} for case ID: {}", imageServiceBaseUrl, caseId);
         try {
-            HttpHeaders headers = new HttpHeaders();
-            HttpEntity<?> entity = new HttpEntity<>(headers);
-
-            ResponseEntity<InputStreamResource> response = restTemplate.exchange(
-                    url,
-                    HttpMethod.GET,
-                    entity,
-                    InputStreamResource.class,
-                    imageId, userId, userRole, reason
-            );
-
-            if (response.getBody() != null) {
-                return Optional.of(response.getBody().getInputStream());
-            }
-            return Optional.empty();
+            List<Image> images = webClient.get()
+                    .uri("/api/v1/images/case/{caseId}", caseId)
+                    .retrieve()
+                    .bodyToMono(new ParameterizedTypeReference<List<Image>>() {})
+                    .timeout(listTimeout)
+                    .block();
+            return images != null ? images : Collections.emptyList();
         } catch (Exception e) {
-            log.error("Error downloading image with ID: {}", imageId, e);
-            return Optional.empty();
+            log.error("Error listing images for case ID: {} from {}", caseId, imageServiceBaseUrl, e);
+            throw new IllegalStateException("Failed to list images for case " + caseId + ": " + e.getMessage(), e);
         }
     }
 
+    /**
+     * Streams the image body as it arrives. Buffers are only requested as the subscriber consumes them,
+     * so a slow consumer holds back the socket instead of buffering the whole image; the subscriber must
+     * release every buffer it receives.
+     */
+    public Flux<DataBuffer> streamImage(String imageId, String userId, String userRole, String reason) {
+        return webClient.get()
+                .uri(DOWNLOAD_PATH, imageId, userId, userRole, reason)
+                .retrieve()
+                .bodyToFlux(DataBuffer.class)
+                .timeout(downloadTimeout);
+    }
 
-    public boolean downloadImageToFile(String imageId, String userId, String userRole, String reason, Path targetPath) {
-        URI uri = UriComponentsBuilder.fromHttpUrl(imageServiceBaseUrl)
-                .path("/api/v1/images/{id}/download")
-                .queryParam("userId", userId)
-                .queryParam("userRole", userRole)
-                .queryParam("reason", reason)
-                .buildAndExpand(imageId)
-                .toUri();
-
-        log.debug("Streaming image download from URL: {} for ID: {} to Path: {}", uri, imageId, targetPath);
+    public Optional<InputStream> downloadImage(String imageId, String userId, String userRole, String reason) {
+        log.warn("Calling deprecated downloadImage method for image ID: {}. Consider using downloadImageBytes.", imageId);
+        return Optional.of(DataBufferUtils.subscriberInputStream(streamImage(imageId, userId, userRole, reason), 4));
+    }
 
+    public boolean downloadImageToFile(String imageId, String userId, String userRole, String reason, Path targetPath) {
+        log.debug("Streaming image download for ID: {} to Path: {}", imageId, targetPath);
         try {
-            Boolean success = restTemplate.execute(uri, HttpMethod.GET, null, clientHttpResponse -> {
-                if (!clientHttpResponse.getStatusCode().is2xxSuccessful()) {
-                    log.error("Image download failed with status: {} - {}", clientHttpResponse.getStatusCode(), clientHttpResponse.getStatusText());
-                    return false;
-                }
-                try (OutputStream fileOutputStream = Files.newOutputStream(targetPath)) {
-                    StreamUtils.copy(clientHttpResponse.getBody(), fileOutputStream);
-                    log.info("Successfully downloaded image ID: {} to {}", imageId, targetPath);
-                    return true;
-                } catch (IOException e) {
-                    log.error("Failed to write downloaded image ID: {} to file: {}", imageId, targetPath, e);
-                    return false;
-                }
-            });
-            return Boolean.TRUE.equals(success);
-        } catch (HttpClientErrorException e) {
-            log.error("HTTP error during image download request for ID: {} from URL: {}. Status: {}, Body: {}", imageId, uri, e.getStatusCode(), e.getResponseBodyAsString(), e);
+            DataBufferUtils.write(streamImage(imageId, userId, userRole, reason), targetPath).block();
+            log.info("Successfully downloaded image ID: {} to {}", imageId, targetPath);
+            return true;
+        } catch (WebClientResponseException e) {
+            log.error("HTTP error during image download request for ID: {}. Status: {}, Body: {}",
+                    imageId, e.getStatusCode(), e.getResponseBodyAsString(), e);
             return false;
         } catch (Exception e) {
-            log.error("Generic error during image download request for ID: {} from URL: {}", imageId, uri, e);
+            log.error("Generic error during image download request for ID: {} to file: {}", imageId, targetPath, e);
             return false;
         }
     }
 
+    /**
+     * Downloads the image straight into memory. The body is joined from the pooled buffers and copied once
+     * into an array checked against Content-Length; nothing touches the disk.
+     */
+    public Optional<byte[]> downloadImageBytes(String imageId, String userId, String userRole, String reason) {
+        log.debug("Downloading image ID: {} into memory from {}", imageId, imageServiceBaseUrl);
+        try {
+            Optional<byte[]> data = webClient.get()
+                    .uri(DOWNLOAD_PATH, imageId, userId, userRole, reason)
+                    .exchangeToMono(response -> {
+                        if (!response.statusCode().is2xxSuccessful()) {
+                            log.error("Image download failed with status: {}", response.statusCode());
+                            return response.releaseBody().then(Mono.<byte[]>empty());
+                        }
+                        long contentLength = response.headers().contentLength().orElse(-1);
+                        if (contentLength > Integer.MAX_VALUE - 8) {
+                            return response.releaseBody().then(Mono.error(new IOException("Image " + imageId
+                                    + " is too large to analyze in memory: " + contentLength + " bytes")));
+                        }
+                        return DataBufferUtils.join(response.bodyToFlux(DataBuffer.class))
+                                .handle((buffer, sink) -> {
+                                    try {
+                                        byte[] bytes = new byte[buffer.readableByteCount()];
+                                        buffer.read(bytes);
+                                        if (contentLength >= 0 && bytes.length != contentLength) {
+                                            sink.error(new IOException("Image download for ID " + imageId + " ended after "
+                                                    + bytes.length + " of " + contentLength + " bytes"));
+                                        } else {
+                                            sink.next(bytes);
+                                        }
+                                    } finally {
+                                        DataBufferUtils.release(buffer);
+                                    }
+                                });
+                    })
+                    .timeout(downloadTimeout)
+                    .blockOptional();
+            data.ifPresent(bytes -> log.info("Successfully downloaded image ID: {} ({} bytes)", imageId, bytes.length));
+            return data;
+        } catch (Exception e) {
+            log.error("Generic error during image download request for ID: {} from {}", imageId, imageServiceBaseUrl, e);
+            return Optional.empty();
+        }
+    }
+
     public boolean updateImageAnalysisStatus(String imageId, String status, String userId, String userRole) {
-        String url = imageServiceBaseUrl + "/api/v1/images/{id}/analysis-status?status={status}&userId={userId}&userRole={userRole}";
-        log.debug("Updating status via URL: {} for ID: {} to Status: {}", url, imageId, status);
+        log.debug("Updating status for ID: {} to Status: {}", imageId, status);
         try {
-            HttpHeaders headers = new HttpHeaders();
-            ResponseEntity<Void> response = restTemplate.exchange(
-                    url,
-                    HttpMethod.PUT,
-                    new HttpEntity<>(headers),
-                    Void.class,
-                    imageId, status, userId, userRole
-            );
-            boolean success = response.getStatusCode().is2xxSuccessful();
+            boolean success = webClient.put()
+                    .uri("/api/v1/images/{id}/analysis-status?status={status}&userId={userId}&userRole={userRole}",
+                            imageId, status, userId, userRole)
+                    .retrieve()
+                    .toBodilessEntity()
+                    .timeout(statusTimeout)
+                    .map(response -> response.getStatusCode().is2xxSuccessful())
+                    .blockOptional()
+                    .orElse(false);
             log.info("Update analysis status for image ID: {} to {} successful: {}", imageId, status, success);
             return success;
-        } catch (HttpClientErrorException e) {
-            log.error("HTTP error updating analysis status for image ID: {} to {} via URL: {}. Status: {}, Body: {}", imageId, status, url, e.getStatusCode(), e.getResponseBodyAsString(), e);
+        } catch (WebClientResponseException e) {
+            log.error("HTTP error updating analysis status for image ID: {} to {}. Status: {}, Body: {}",
+                    imageId, status, e.getStatusCode(), e.getResponseBodyAsString(), e);
             return false;
         } catch (Exception e) {
-            log.error("Generic error updating analysis status for image ID: {} to {} via URL: {}", imageId, status, url, e);
+            log.error("Generic error updating analysis status for image ID: {} to {}", imageId, status, e);
             return false;
         }
     }
-}
\ No newline at end of file
+}
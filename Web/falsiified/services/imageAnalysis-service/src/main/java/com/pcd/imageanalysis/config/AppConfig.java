@@ -1,30 +1,52 @@
 package com.pcd.imageanalysis.config;
 
-import org.springframework.boot.web.client.RestTemplateBuilder;
+import io.netty.channel.ChannelOption;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.cloud.client.loadbalancer.LoadBalanced;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.MongoDatabaseFactory;
-import org.springframework.data.mongodb.core.MongoTemplate;
-import org.springframework.http.client.SimpleClientHttpRequestFactory;
-import org.springframework.web.client.RestTemplate;
+import org.springframework.http.client.reactive.ReactorClientHttpConnector;
+import org.springframework.util.unit.DataSize;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 
 import java.time.Duration;
 
 @Configuration
 public class AppConfig {
 
+    /**
+     * Keep-alive connection pool for calls to other services. With {@code metrics(true)} Reactor Netty
+     * publishes {@code reactor.netty.connection.provider.*} gauges (total, active, idle and pending
+     * connections) tagged with the pool name and remote address.
+     */
+    @Bean(destroyMethod = "dispose")
+    public ConnectionProvider serviceConnectionProvider(
+            @Value("${services.http.pool.max-connections:50}") int maxConnections,
+            @Value("${services.http.pool.max-pending:200}") int maxPending,
+            @Value("${services.http.pool.pending-acquire-timeout:10s}") Duration pendingAcquireTimeout,
+            @Value("${services.http.pool.max-idle-time:30s}") Duration maxIdleTime) {
+        return ConnectionProvider.builder("services")
+                .maxConnections(maxConnections)
+                .pendingAcquireMaxCount(maxPending)
+                .pendingAcquireTimeout(pendingAcquireTimeout)
+                .maxIdleTime(maxIdleTime)
+                .evictInBackground(maxIdleTime)
+                .metrics(true)
+                .build();
+    }
+
     @Bean
     @LoadBalanced
-    public RestTemplate restTemplate(RestTemplateBuilder builder) {
-
-        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
-
-        requestFactory.setConnectTimeout(Duration.ofSeconds(5));
-        requestFactory.setReadTimeout(Duration.ofSeconds(30));
-
-        return builder
-                .requestFactory(() -> requestFactory)
-                .build();
+    public WebClient.Builder loadBalancedWebClientBuilder(
+            ConnectionProvider serviceConnectionProvider,
+            @Value("${services.http.connect-timeout:5s}") Duration connectTimeout,
+            @Value("${services.http.max-in-memory-size:16MB}") DataSize maxInMemorySize) {
+        HttpClient httpClient = HttpClient.create(serviceConnectionProvider)
+                .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, (int) connectTimeout.toMillis());
+        return WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClient))
+                .codecs(codecs -> codecs.defaultCodecs().maxInMemorySize((int) maxInMemorySize.toBytes()));
     }
-}
\ No newline at end of file
+}
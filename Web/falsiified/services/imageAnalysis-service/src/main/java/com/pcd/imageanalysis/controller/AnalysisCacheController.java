@@ -0,0 +1,39 @@
+package com.pcd.imageanalysis.controller;
+
+import com.pcd.imageanalysis.services.AnalysisCacheService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/v1/analysis/admin/cache")
+public class AnalysisCacheController {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisCacheController.class);
+
+    private final AnalysisCacheService analysisCacheService;
+
+    @Autowired
+    public AnalysisCacheController(AnalysisCacheService analysisCacheService) {
+        this.analysisCacheService = analysisCacheService;
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getCacheEntries(@RequestParam String modelVersion) {
+        return ResponseEntity.ok(Map.of(
+                "modelVersion", modelVersion,
+                "entries", analysisCacheService.countModelVersion(modelVersion)));
+    }
+
+    @DeleteMapping
+    public ResponseEntity<Map<String, Object>> invalidateModelVersion(@RequestParam String modelVersion) {
+        log.info("Received cache invalidation request for model version {}", modelVersion);
+        long removed = analysisCacheService.invalidateModelVersion(modelVersion);
+        return ResponseEntity.ok(Map.of(
+                "modelVersion", modelVersion,
+                "removed", removed));
+    }
+}
@@ -1,12 +1,24 @@
 package com.pcd.imageanalysis.controller;
 
+import com.pcd.imageanalysis.model.AnalysisBatch;
+import com.pcd.imageanalysis.model.AnalysisJobStatus;
+import com.pcd.imageanalysis.model.AnalysisPriority;
 import com.pcd.imageanalysis.model.AnalysisResult;
-import com.pcd.imageanalysis.repository.AnalysisResultRepository;
+import com.pcd.imageanalysis.model.XaiQuality;
+import com.pcd.imageanalysis.services.AnalysisBatchService;
+import com.pcd.imageanalysis.services.AnalysisJobService;
+import com.pcd.imageanalysis.services.AnalysisOverloadedException;
 import com.pcd.imageanalysis.services.ImageAnalysisService;
+import com.pcd.imageanalysis.services.PyTorchModelService;
+import com.pcd.imageanalysis.services.XaiArtifactStore;
+import com.pcd.imageanalysis.services.XaiVisualizationService;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.InputStreamResource;
+import org.springframework.core.io.Resource;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
@@ -15,40 +27,66 @@ import org.springframework.web.server.ResponseStatusException;
 
 import jakarta.servlet.http.HttpServletRequest;
 
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.time.Duration;
+import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.TimeUnit;
 
 @RestController
 @RequestMapping("/api/v1/analysis")
 public class ImageAnalysisController {
     private static final Logger log = LoggerFactory.getLogger(ImageAnalysisController.class);
+    // Tier the returned visualization was produced at; may be below the requested one under a time budget.
+    private static final String XAI_QUALITY_HEADER = "X-XAI-Quality";
 
     private final ImageAnalysisService analysisService;
-    private final AnalysisResultRepository analysisResultRepository;
+    private final AnalysisJobService analysisJobService;
+    private final XaiVisualizationService xaiVisualizationService;
+    private final AnalysisBatchService analysisBatchService;
 
     @Autowired
-    public ImageAnalysisController(ImageAnalysisService analysisService, AnalysisResultRepository analysisResultRepository) {
+    public ImageAnalysisController(ImageAnalysisService analysisService,
+                                   AnalysisJobService analysisJobService,
+                                   XaiVisualizationService xaiVisualizationService,
+                                   AnalysisBatchService analysisBatchService) {
         this.analysisService = analysisService;
-        this.analysisResultRepository = analysisResultRepository;
+        this.analysisJobService = analysisJobService;
+        this.xaiVisualizationService = xaiVisualizationService;
+        this.analysisBatchService = analysisBatchService;
     }
 
     @PostMapping("/{imageId}")
-    public ResponseEntity<AnalysisResult> analyzeImage(
+    public ResponseEntity<?> analyzeImage(
             @PathVariable String imageId,
             @RequestParam(value = "userId", required = false) String userId,
+            @RequestParam(value = "async", defaultValue = "false") boolean async,
+            @RequestParam(value = "engine", required = false) String engine,
+            @RequestParam(value = "priority", defaultValue = "NORMAL") AnalysisPriority priority,
             HttpServletRequest request) {
-        log.info("Received analysis request for image ID: {} from user: {}", imageId, userId);
+        log.info("Received analysis request for image ID: {} from user: {} (async={}, engine={}, priority={})",
+                imageId, userId, async, engine, priority);
+        if (!analysisService.isInferenceEngineAvailable(engine)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Inference engine not available: " + engine);
+        }
+        if (async) {
+            return submitAnalysisJob(imageId, userId, engine, priority);
+        }
         try {
-            return analysisService.analyzeImage(imageId, userId)
+            return analysisService.analyzeImage(imageId, userId, engine)
                     .map(ResponseEntity::ok)
                     .orElseThrow(() -> new ResponseStatusException(
                             HttpStatus.INTERNAL_SERVER_ERROR, "Analysis failed to complete"));
         } catch (IllegalArgumentException e) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (AnalysisOverloadedException e) {
+            throw e;
         } catch (Exception e) {
             log.error("Error processing analysis request for image ID: {}", imageId, e);
             throw new ResponseStatusException(
@@ -56,6 +94,40 @@ public class ImageAnalysisController {
         }
     }
 
+    private ResponseEntity<AnalysisJobStatus> submitAnalysisJob(String imageId, String userId, String engine,
+                                                                AnalysisPriority priority) {
+        try {
+            AnalysisResult queued = analysisJobService.submit(imageId, userId, engine, priority);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/v1/analysis/jobs/" + queued.getId()))
+                    .body(AnalysisJobStatus.from(queued));
+        } catch (AnalysisOverloadedException e) {
+            log.warn("Rejected analysis request for image ID: {}: {}", imageId, e.getMessage());
+            throw e;
+        }
+    }
+
+    @ExceptionHandler(AnalysisOverloadedException.class)
+    public ResponseEntity<Map<String, Object>> handleOverloaded(AnalysisOverloadedException e) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("status", HttpStatus.TOO_MANY_REQUESTS.value());
+        body.put("message", e.getMessage());
+        body.put("retryAfterSeconds", e.getRetryAfterSeconds());
+        body.put("timestamp", LocalDateTime.now());
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()))
+                .body(body);
+    }
+
+    @GetMapping("/jobs/{jobId}")
+    public ResponseEntity<AnalysisJobStatus> getAnalysisJob(@PathVariable String jobId) {
+        return analysisService.getAnalysisResultById(jobId)
+                .map(AnalysisJobStatus::from)
+                .map(ResponseEntity::ok)
+                .orElseThrow(() -> new ResponseStatusException(
+                        HttpStatus.NOT_FOUND, "Analysis job not found with ID: " + jobId));
+    }
+
     @GetMapping("/images/{imageId}")
     public ResponseEntity<AnalysisResult> getAnalysisResult(@PathVariable String imageId) {
         return analysisService.getAnalysisResult(imageId)
@@ -69,6 +141,36 @@ public class ImageAnalysisController {
         return ResponseEntity.ok(analysisService.getAnalysisResultsByCase(caseId));
     }
 
+    @PostMapping("/case/{caseId}")
+    public ResponseEntity<AnalysisBatch> analyzeCase(
+            @PathVariable String caseId,
+            @RequestParam(value = "userId", required = false) String userId,
+            @RequestParam(value = "engine", required = false) String engine,
+            @RequestParam(value = "force", defaultValue = "false") boolean force) {
+        log.info("Received bulk analysis request for case ID: {} from user: {} (engine={}, force={})", caseId, userId, engine, force);
+        if (!analysisService.isInferenceEngineAvailable(engine)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Inference engine not available: " + engine);
+        }
+        try {
+            AnalysisBatch batch = analysisBatchService.analyzeCase(caseId, userId, engine, force);
+            return ResponseEntity.accepted()
+                    .location(URI.create("/api/v1/analysis/batches/" + batch.getId()))
+                    .body(batch);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, e.getMessage());
+        }
+    }
+
+    @GetMapping("/batches/{batchId}")
+    public ResponseEntity<AnalysisBatch> getAnalysisBatch(@PathVariable String batchId) {
+        return analysisBatchService.getBatch(batchId)
+                .map(ResponseEntity::ok)
+                .orElseThrow(() -> new ResponseStatusException(
+                        HttpStatus.NOT_FOUND, "Analysis batch not found with ID: " + batchId));
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<AnalysisResult> getAnalysisResultById(@PathVariable String id) {
         log.debug("Fetching analysis result with ID: {}", id);
@@ -80,46 +182,96 @@ public class ImageAnalysisController {
     }
 
     @PostMapping("/by-image-ids")
-    public ResponseEntity<List<AnalysisResult>> getAnalysesByImageIds(@RequestBody List<String> imageIds) {
+    public ResponseEntity<List<AnalysisResult>> getAnalysesByImageIds(
+            @RequestBody List<String> imageIds,
+            @RequestParam(value = "view", defaultValue = "summary") String view) {
         if (imageIds == null || imageIds.isEmpty()) {
             return ResponseEntity.ok(Collections.emptyList());
         }
-        List<AnalysisResult> results = analysisResultRepository.findByImageIdIn(imageIds);
+        List<AnalysisResult> results = analysisService.getAnalysesByImageIds(imageIds, "full".equalsIgnoreCase(view));
         return ResponseEntity.ok(results);
     }
 
     @GetMapping("/{analysisId}/xai-visualization/{type}")
-    public ResponseEntity<FileSystemResource> getXaiVisualization(
+    public ResponseEntity<Resource> getXaiVisualization(
             @PathVariable String analysisId,
-            @PathVariable String type) {
+            @PathVariable String type,
+            @RequestParam(value = "quality", required = false) XaiQuality quality,
+            @RequestParam(value = "timeBudgetMs", required = false) Long timeBudgetMs,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
         log.debug("Fetching XAI visualization of type {} for analysis ID: {}", type, analysisId);
-        Optional<AnalysisResult> analysisResultOpt = analysisService.getAnalysisResultById(analysisId);
-        if (analysisResultOpt.isEmpty()) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Analysis result not found with ID: " + analysisId);
+        if (!XaiVisualizationService.isSupportedType(type)) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Unknown XAI visualization type: " + type);
+        }
+        XaiVisualizationService.Visualization visualization;
+        try {
+            visualization = xaiVisualizationService.getVisualization(analysisId, type, quality,
+                            timeBudgetMs != null && timeBudgetMs > 0 ? Duration.ofMillis(timeBudgetMs) : null)
+                    .orElseThrow(() -> new ResponseStatusException(
+                            HttpStatus.NOT_FOUND, "Analysis result not found with ID: " + analysisId));
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while generating visualization");
+        } catch (IOException e) {
+            log.error("Failed to generate {} visualization for analysis ID: {}", type, analysisId, e);
+            throw new ResponseStatusException(
+                    HttpStatus.INTERNAL_SERVER_ERROR, "Failed to generate visualization: " + e.getMessage());
         }
 
-        AnalysisResult analysisResult = analysisResultOpt.get();
-        Map<String, Object> detectionDetails = analysisResult.getDetectionDetails();
-        Object xaiVisualizationsObj = detectionDetails.get("xaiVisualizations");
-        if (!(xaiVisualizationsObj instanceof Map)) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "No XAI visualizations found for analysis ID: " + analysisId);
+        XaiArtifactStore.Artifact artifact = visualization.artifact();
+        String qualityHeader = visualization.quality().name();
+        if (artifact.getId() == null) {
+            // Written by an older version straight to a temp directory; not content-addressed.
+            return ResponseEntity.ok()
+                    .header(XAI_QUALITY_HEADER, qualityHeader)
+                    .contentType(MediaType.IMAGE_PNG)
+                    .contentLength(artifact.getLength())
+                    .body(new InputStreamResource(artifact.getInputStream()));
         }
 
-        @SuppressWarnings("unchecked")
-        Map<String, String> xaiVisualizations = (Map<String, String>) xaiVisualizationsObj;
-        String visualizationPath = xaiVisualizations.get(type);
-        if (visualizationPath == null) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "XAI visualization type " + type + " not found for analysis ID: " + analysisId);
+        // Artifacts are addressed by content hash, so the ETag is stable and the bytes never change.
+        String eTag = "\"" + artifact.getId() + "\"";
+        CacheControl cacheControl = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().immutable();
+        if (ifNoneMatch != null && (ifNoneMatch.contains(eTag) || ifNoneMatch.trim().equals("*"))) {
+            closeQuietly(artifact.getInputStream());
+            return ResponseEntity.status(HttpStatus.NOT_MODIFIED).eTag(eTag).cacheControl(cacheControl)
+                    .header(XAI_QUALITY_HEADER, qualityHeader).build();
         }
+        return ResponseEntity.ok()
+                .header(XAI_QUALITY_HEADER, qualityHeader)
+                .contentType(MediaType.parseMediaType(artifact.getContentType() != null ? artifact.getContentType() : MediaType.IMAGE_PNG_VALUE))
+                .contentLength(artifact.getLength())
+                .eTag(eTag)
+                .cacheControl(cacheControl)
+                .body(new InputStreamResource(artifact.getInputStream()));
+    }
 
-        Path path = Paths.get(visualizationPath);
-        if (!path.toFile().exists()) {
-            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Visualization file not found for type: " + type);
+    private static void closeQuietly(InputStream inputStream) {
+        try {
+            inputStream.close();
+        } catch (IOException e) {
+            log.debug("Failed to close artifact stream", e);
         }
+    }
 
-        FileSystemResource resource = new FileSystemResource(path);
-        return ResponseEntity.ok()
-                .contentType(MediaType.IMAGE_PNG)
-                .body(resource);
+    @PostMapping("/{analysisId}/xai-visualizations/prefetch")
+    public ResponseEntity<Void> prefetchXaiVisualizations(
+            @PathVariable String analysisId,
+            @RequestParam(value = "types", required = false) List<String> types,
+            @RequestParam(value = "quality", required = false) XaiQuality quality) {
+        AnalysisResult analysisResult = analysisService.getAnalysisResultById(analysisId)
+                .orElseThrow(() -> new ResponseStatusException(
+                        HttpStatus.NOT_FOUND, "Analysis result not found with ID: " + analysisId));
+        try {
+            xaiVisualizationService.prefetch(analysisResult,
+                    types == null || types.isEmpty() ? PyTorchModelService.XAI_TYPES : types, quality);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        }
+        return ResponseEntity.accepted().build();
     }
-}
\ No newline at end of file
+}
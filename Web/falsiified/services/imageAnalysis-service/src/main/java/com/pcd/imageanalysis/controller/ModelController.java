@@ -0,0 +1,119 @@
+package com.pcd.imageanalysis.controller;
+
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import com.pcd.imageanalysis.services.ModelDeploymentService;
+import com.pcd.imageanalysis.services.ModelRegistry;
+import com.pcd.imageanalysis.services.PythonWorkerPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+@RestController
+@RequestMapping("/api/v1/analysis/admin/models")
+public class ModelController {
+    private static final Logger log = LoggerFactory.getLogger(ModelController.class);
+
+    private final ModelRegistry modelRegistry;
+    private final ModelDeploymentService deploymentService;
+    private final PythonWorkerPool workerPool;
+
+    @Autowired
+    public ModelController(ModelRegistry modelRegistry,
+                           ModelDeploymentService deploymentService,
+                           PythonWorkerPool workerPool) {
+        this.modelRegistry = modelRegistry;
+        this.deploymentService = deploymentService;
+        this.workerPool = workerPool;
+    }
+
+    @GetMapping
+    public ResponseEntity<Map<String, Object>> getModels() {
+        try {
+            List<ModelDescriptor> models = modelRegistry.list();
+            Map<String, Object> body = new LinkedHashMap<>();
+            body.put("active", modelRegistry.active().getVersion());
+            body.put("previous", modelRegistry.previousVersion().orElse(null));
+            body.put("switchingTo", deploymentService.getSwitchingTo());
+            body.put("workers", Map.of(
+                    "servingVersion", String.valueOf(workerPool.getServingVersion()),
+                    "size", workerPool.getPoolSize(),
+                    "idle", workerPool.getIdleWorkerCount()));
+            body.put("models", models);
+            return ResponseEntity.ok(body);
+        } catch (IOException e) {
+            log.error("Failed to list model registry", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to list models: " + e.getMessage());
+        }
+    }
+
+    @GetMapping("/active")
+    public ResponseEntity<ModelDescriptor> getActiveModel() {
+        return ResponseEntity.ok(modelRegistry.active());
+    }
+
+    @PostMapping(value = "/{version}", consumes = "multipart/form-data")
+    public ResponseEntity<ModelDescriptor> registerModel(
+            @PathVariable String version,
+            @RequestParam("file") MultipartFile file,
+            @RequestParam("arch") String arch,
+            @RequestParam(value = "imgHeight", defaultValue = "224") int imgHeight,
+            @RequestParam(value = "imgWidth", defaultValue = "224") int imgWidth,
+            @RequestParam("denseUnits") int denseUnits,
+            @RequestParam("dropout") double dropout) {
+        log.info("Registering model version {} ({}, {} bytes)", version, arch, file.getSize());
+        try (InputStream weights = file.getInputStream()) {
+            ModelDescriptor model = modelRegistry.register(version, arch, imgHeight, imgWidth, denseUnits, dropout, weights);
+            return ResponseEntity.created(URI.create("/api/v1/analysis/admin/models/" + version)).body(model);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (IOException e) {
+            log.error("Failed to store model version {}", version, e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Failed to store model: " + e.getMessage());
+        }
+    }
+
+    @PostMapping("/{version}/activate")
+    public ResponseEntity<ModelDescriptor> activateModel(@PathVariable String version) {
+        return switchModel(() -> deploymentService.activate(version));
+    }
+
+    @PostMapping("/rollback")
+    public ResponseEntity<ModelDescriptor> rollbackModel() {
+        return switchModel(deploymentService::rollback);
+    }
+
+    private ResponseEntity<ModelDescriptor> switchModel(ModelSwitch modelSwitch) {
+        try {
+            return ResponseEntity.ok(modelSwitch.run());
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, e.getMessage());
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, e.getMessage());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Interrupted while switching models");
+        } catch (IOException e) {
+            log.error("Model switch failed", e);
+            throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Model switch failed: " + e.getMessage());
+        }
+    }
+
+    @FunctionalInterface
+    private interface ModelSwitch {
+        ModelDescriptor run() throws IOException, InterruptedException;
+    }
+}
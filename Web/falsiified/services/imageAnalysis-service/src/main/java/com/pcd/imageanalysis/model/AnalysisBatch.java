@@ -0,0 +1,55 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Progress of a bulk case analysis. {@code done} and {@code failed} are incremented atomically as the
+ * individual analyses finish; {@code analysisIds} maps each image to its job id.
+ * <p>
+ * A RUNNING batch is driven by the instance named in {@code owner}, which renews {@code leaseExpiresAt}
+ * while it does; once the lease lapses another instance takes the batch over and resumes it.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "analysis_batches")
+public class AnalysisBatch {
+
+    @Id
+    private String id;
+
+    @Indexed
+    private String caseId;
+
+    private String requestedBy;
+    private String modelVersion;
+    private String status;
+    private LocalDateTime createdAt;
+    private LocalDateTime completedAt;
+    private String owner;
+    private Instant leaseExpiresAt;
+
+    private int total;
+    private int skipped;
+    private int done;
+    private int failed;
+
+    private List<String> skippedImageIds = new ArrayList<>();
+    private Map<String, String> analysisIds = new HashMap<>();
+
+    public int getPending() {
+        return Math.max(0, total - skipped - done - failed);
+    }
+}
@@ -0,0 +1,41 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Model output for one image content hash under one model configuration. The id is the cache key
+ * built by {@code AnalysisCacheService.cacheKey}, so lookups are a single primary-key read.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "image_analysis_cache")
+public class AnalysisCacheEntry {
+
+    @Id
+    private String cacheKey;
+
+    @Indexed
+    private String sha256Hash;
+
+    @Indexed
+    private String modelVersion;
+
+    private String modelArchitecture;
+    private int imgHeight;
+    private int imgWidth;
+    private String inferenceEngine;
+    private String engineConfiguration;
+    private String analysisId;
+    private Map<String, Object> detectionDetails = new HashMap<>();
+    private Instant createdAt;
+}
@@ -0,0 +1,32 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * Claim on analysing one image with one model version and engine. The id is the single-flight key, so
+ * at most one claim exists per key; the instance holding it renews the lease while the analysis runs,
+ * and an expired lease can be taken over by another caller.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "image_analysis_claims")
+public class AnalysisClaim {
+
+    @Id
+    private String key;
+
+    private String imageId;
+    private String modelVersion;
+    private String inferenceEngine;
+    private String analysisId;
+    private String owner;
+    private Instant claimedAt;
+    private Instant leaseExpiresAt;
+}
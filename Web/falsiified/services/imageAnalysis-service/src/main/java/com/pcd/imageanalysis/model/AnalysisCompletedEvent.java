@@ -0,0 +1,34 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+/**
+ * Summary published on {@code analysis-completed-topic}. The full detection details stay in the analysis
+ * document; consumers that need them fetch {@link #detailsRef} instead of receiving them on every event.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AnalysisCompletedEvent {
+
+    // 1 carried the whole detectionDetails map as analysisResults.
+    public static final int SCHEMA_VERSION = 2;
+
+    private int schemaVersion;
+    private String analysisId;
+    private String imageId;
+    private String caseId;
+    private Boolean falsified;
+    private Double confidenceScore;
+    private String modelVersion;
+    private String inferenceEngine;
+    private List<String> detectedManipulations;
+    // epoch milliseconds
+    private long completedAt;
+    // GET path on imageAnalysis-service returning the full analysis
+    private String detailsRef;
+}
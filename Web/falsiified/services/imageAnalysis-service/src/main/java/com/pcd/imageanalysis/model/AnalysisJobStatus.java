@@ -0,0 +1,33 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class AnalysisJobStatus {
+    private String jobId;
+    private String imageId;
+    private String status;
+    private String stage;
+    private LocalDateTime updatedAt;
+    private String errorMessage;
+    private String resultUrl;
+
+    public static AnalysisJobStatus from(AnalysisResult result) {
+        boolean finished = "COMPLETED".equals(result.getAnalysisStatus());
+        return new AnalysisJobStatus(
+                result.getId(),
+                result.getImageId(),
+                result.getAnalysisStatus(),
+                result.getAnalysisStage(),
+                result.getDate(),
+                result.getErrorMessage(),
+                finished ? "/api/v1/analysis/" + result.getId() : null
+        );
+    }
+}
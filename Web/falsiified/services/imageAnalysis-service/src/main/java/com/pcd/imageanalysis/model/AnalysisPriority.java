@@ -0,0 +1,10 @@
+package com.pcd.imageanalysis.model;
+
+/**
+ * Scheduling class of a queued analysis, highest first.
+ */
+public enum AnalysisPriority {
+    URGENT,
+    NORMAL,
+    BATCH
+}
@@ -4,10 +4,11 @@ import org.springframework.data.annotation.CreatedDate;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.mongodb.core.index.Indexed;
 import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
 import lombok.*;
 import java.time.Instant;
 import java.time.LocalDateTime;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 @Data
@@ -18,6 +19,10 @@ import java.util.Map;
 @Document(collection = "image_analysis_results")
 public class AnalysisResult {
 
+    // Stored names of the fields below; updates addressing a map entry inside them must use these.
+    public static final String DETECTION_DETAILS_FIELD = "dd";
+    public static final String STAGE_TIMINGS_FIELD = "tm";
+
     @Id
     private String id;
 
@@ -31,12 +36,20 @@ public class AnalysisResult {
     private LocalDateTime date;
 
     private String analysisStatus;
+    private String analysisStage;
 
     private Boolean isFalsified;
     private Double confidenceScore;
     private String analysisType;
     private String analysisVersion;
-    private Map<String, Object> detectionDetails = new HashMap<>();
+    private String inferenceEngine;
+    private String sourceAnalysisId;
+    // Heavy fields are stored under short names; list views leave them out.
+    @Field(DETECTION_DETAILS_FIELD)
+    private DetectionDetails detectionDetails;
+    // Milliseconds spent in each pipeline stage, in the order the stages ran.
+    @Field(STAGE_TIMINGS_FIELD)
+    private Map<String, Long> stageTimingsMs = new LinkedHashMap<>();
     private String errorMessage;
     private String analyzedBy;
 }
\ No newline at end of file
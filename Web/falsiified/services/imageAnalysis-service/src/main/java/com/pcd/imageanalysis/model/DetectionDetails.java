@@ -0,0 +1,121 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Typed form of what an inference engine reports about an analysis. Stored under short field names since
+ * it is repeated in every analysis document; the JSON API uses the Java names.
+ * <p>
+ * Output that is specific to one engine, such as the tiling grids or the ensemble breakdown, is kept as is
+ * in {@link #extras}.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class DetectionDetails {
+
+    // 1 was the engine output stored verbatim as a map.
+    public static final int SCHEMA_VERSION = 2;
+    public static final String XAI_VISUALIZATIONS_FIELD = "xv";
+
+    @Field("v")
+    private int schemaVersion = SCHEMA_VERSION;
+
+    @Field("sc")
+    private Scores scores;
+
+    @Field("md")
+    private ModelInfo model;
+
+    // XAI type -> stored artifact
+    @Field(XAI_VISUALIZATIONS_FIELD)
+    private Map<String, XaiArtifactRef> xaiVisualizations = new LinkedHashMap<>();
+
+    @Field("ex")
+    private Map<String, Object> extras = new LinkedHashMap<>();
+
+    public record Scores(
+            @Field("f") Boolean falsified,
+            @Field("c") Double confidence,
+            @Field("l") Double logit) {
+    }
+
+    public record ModelInfo(
+            @Field("ver") String version,
+            @Field("arch") String arch,
+            @Field("eng") String engine,
+            @Field("bs") Integer batchSize) {
+    }
+
+    /**
+     * An artifact id, or the file path written by versions before the artifact store, and the tier it was
+     * produced at; a null quality means STANDARD.
+     */
+    public record XaiArtifactRef(
+            @Field("id") String artifactId,
+            @Field("q") XaiQuality quality) {
+    }
+
+    /**
+     * Builds the details from an engine result as returned by {@code InferenceEngine.analyzeImage}, which is
+     * also the shape schema version 1 documents stored.
+     *
+     * @param qualities tier of each XAI visualization in the result
+     */
+    public static DetectionDetails from(Map<String, ?> engineResult, String arch, String engine,
+                                        Map<String, XaiQuality> qualities) {
+        DetectionDetails details = new DetectionDetails();
+        Boolean falsified = null;
+        Double confidence = null;
+        Double logit = null;
+        String version = null;
+        Integer batchSize = null;
+        for (Map.Entry<String, ?> entry : engineResult.entrySet()) {
+            Object value = entry.getValue();
+            switch (entry.getKey()) {
+                case "isFalsified" -> falsified = value instanceof Boolean b ? b : null;
+                case "confidenceScore" -> confidence = value instanceof Number n ? n.doubleValue() : null;
+                case "modelVersion" -> version = Objects.toString(value, null);
+                case "engine" -> engine = engine != null ? engine : Objects.toString(value, null);
+                case "xaiQuality" -> {
+                    // carried by the artifact refs
+                }
+                case "xaiVisualizations" -> {
+                    if (value instanceof Map<?, ?> visualizations) {
+                        visualizations.forEach((type, reference) -> {
+                            if (reference != null) {
+                                details.xaiVisualizations.put(type.toString(),
+                                        new XaiArtifactRef(reference.toString(), qualities.get(type.toString())));
+                            }
+                        });
+                    }
+                }
+                case "detectionDetails" -> {
+                    if (value instanceof Map<?, ?> reported) {
+                        for (Map.Entry<?, ?> detail : reported.entrySet()) {
+                            String key = detail.getKey().toString();
+                            if (key.equals("logit_value") && detail.getValue() instanceof Number n) {
+                                logit = n.doubleValue();
+                            } else if (key.equals("batchSize") && detail.getValue() instanceof Number n) {
+                                batchSize = n.intValue();
+                            } else {
+                                details.extras.put(key, detail.getValue());
+                            }
+                        }
+                    }
+                }
+                default -> details.extras.put(entry.getKey(), value);
+            }
+        }
+        details.scores = new Scores(falsified, confidence, logit);
+        details.model = new ModelInfo(version, arch, engine, batchSize);
+        return details;
+    }
+}
@@ -0,0 +1,24 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Analysis status change for imageManagement-service, which applies these in batches instead of taking a
+ * REST call per change.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ImageStatusEvent {
+    private String imageId;
+    private String status;
+    private String analysisId;
+    private String userId;
+    private String userRole;
+    // epoch milliseconds
+    private long timestamp;
+    // analysisId:status:timestamp; lets the consumer ignore redeliveries of the same change
+    private String eventId;
+}
@@ -0,0 +1,26 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.Instant;
+
+/**
+ * A model version held by the model registry, stored as {@code model.json} next to its weights.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ModelDescriptor {
+
+    private String version;
+    private String arch;
+    private int imgHeight;
+    private int imgWidth;
+    private int denseUnits;
+    private double dropout;
+    private String sha256;
+    private long sizeBytes;
+    private Instant registeredAt;
+}
@@ -0,0 +1,45 @@
+package com.pcd.imageanalysis.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.time.Instant;
+
+/**
+ * An event waiting in {@code analysis_outbox} to be published by {@code AnalysisOutbox}. The payload is built
+ * from the referenced analysis when the event is relayed. {@code lockedUntil} doubles as the time before
+ * which a failed event is not retried.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+@Document(collection = "analysis_outbox")
+// Serves the relay's claim query: pending, not locked, oldest first.
+@CompoundIndex(name = "claim", def = "{'status': 1, 'lockedUntil': 1, 'createdAt': 1}")
+public class OutboxEvent {
+
+    public static final String PENDING = "PENDING";
+    public static final String SENT = "SENT";
+    public static final String DISCARDED = "DISCARDED";
+    // Gave up after analysis.outbox.max-attempts; set back to PENDING to retry.
+    public static final String FAILED = "FAILED";
+
+    // analysisId + ":" + type, so writing the same event twice is a no-op
+    @Id
+    private String id;
+
+    private String type;
+    private String analysisId;
+    private String imageId;
+    private String status;
+    private int attempts;
+    private String lastError;
+    private String lockedBy;
+    private Instant lockedUntil;
+    private Instant createdAt;
+    private Instant sentAt;
+}
@@ -0,0 +1,15 @@
+package com.pcd.imageanalysis.model;
+
+/**
+ * Quality tier of an XAI visualization, cheapest first. Higher tiers use more LIME samples, finer
+ * segmentation and a larger SHAP background; Grad-CAM is the same at every tier.
+ */
+public enum XaiQuality {
+    FAST,
+    STANDARD,
+    FORENSIC;
+
+    public boolean isAtLeast(XaiQuality other) {
+        return compareTo(other) >= 0;
+    }
+}
@@ -0,0 +1,13 @@
+package com.pcd.imageanalysis.repository;
+
+import com.pcd.imageanalysis.model.AnalysisBatch;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+import java.util.List;
+
+@Repository
+public interface AnalysisBatchRepository extends MongoRepository<AnalysisBatch, String> {
+
+    List<AnalysisBatch> findByCaseId(String caseId);
+}
@@ -0,0 +1,13 @@
+package com.pcd.imageanalysis.repository;
+
+import com.pcd.imageanalysis.model.AnalysisCacheEntry;
+import org.springframework.data.mongodb.repository.MongoRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AnalysisCacheRepository extends MongoRepository<AnalysisCacheEntry, String> {
+
+    long countByModelVersion(String modelVersion);
+
+    long deleteByModelVersion(String modelVersion);
+}
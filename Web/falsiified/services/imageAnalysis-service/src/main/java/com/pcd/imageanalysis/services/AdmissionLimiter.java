@@ -0,0 +1,248 @@
+package com.pcd.imageanalysis.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds how many inferences run at once so that a burst of requests cannot fork more Python interpreters
+ * than the node can hold.
+ * <p>
+ * The limit adapts with AIMD: each inference that finishes within {@code latency-tolerance} times the
+ * observed baseline latency (or under {@code target-latency-ms} when set) raises it by {@code 1/limit};
+ * a slower one multiplies it by {@code backoff}. On top of that, a new inference is only admitted when
+ * the available memory leaves room for one more process of {@code process-memory-mb} above
+ * {@code memory-reserve-mb}. Callers that would have to wait behind {@code max-queue} others are shed
+ * with {@link AnalysisOverloadedException}.
+ */
+@Component
+public class AdmissionLimiter {
+    private static final Logger log = LoggerFactory.getLogger(AdmissionLimiter.class);
+    private static final Path MEMINFO = Path.of("/proc/meminfo");
+    private static final long MEMORY_SAMPLE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final MeterRegistry meterRegistry;
+    private Counter rejectedCounter;
+
+    private double limit;
+    private int inFlight;
+    private int waiting;
+    private double baselineLatencyNanos;
+    private double averageLatencyNanos;
+    private long availableMemoryBytes = Long.MAX_VALUE;
+    private long memorySampledAt;
+
+    @Value("${analysis.admission.initial-limit:0}")
+    private int initialLimit;
+
+    @Value("${analysis.admission.min-limit:1}")
+    private int minLimit;
+
+    @Value("${analysis.admission.max-limit:0}")
+    private int maxLimit;
+
+    @Value("${analysis.admission.max-queue:20}")
+    private int maxQueue;
+
+    @Value("${analysis.admission.target-latency-ms:0}")
+    private long targetLatencyMillis;
+
+    @Value("${analysis.admission.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${analysis.admission.backoff:0.8}")
+    private double backoff;
+
+    @Value("${analysis.admission.process-memory-mb:1024}")
+    private long processMemoryMb;
+
+    @Value("${analysis.admission.memory-reserve-mb:512}")
+    private long memoryReserveMb;
+
+    @Autowired
+    public AdmissionLimiter(MeterRegistry meterRegistry) {
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        int cpus = Runtime.getRuntime().availableProcessors();
+        if (maxLimit <= 0) {
+            maxLimit = cpus * 2;
+        }
+        minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        limit = Math.max(minLimit, Math.min(maxLimit, initialLimit > 0 ? initialLimit : cpus));
+
+        Gauge.builder("analysis.admission.inflight", this, l -> l.snapshot()[0])
+                .description("Number of inferences currently admitted")
+                .register(meterRegistry);
+        Gauge.builder("analysis.admission.queue.depth", this, l -> l.snapshot()[1])
+                .description("Number of inferences waiting for admission")
+                .register(meterRegistry);
+        Gauge.builder("analysis.admission.limit", this, l -> l.snapshot()[2])
+                .description("Current adaptive concurrency limit for inferences")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("analysis.admission.rejected")
+                .description("Number of analyses shed because the admission queue was full")
+                .register(meterRegistry);
+
+        log.info("Admission limiter starts at {} concurrent inferences (min {}, max {}, queue {})",
+                (int) limit, minLimit, maxLimit, maxQueue);
+    }
+
+    /**
+     * Fails fast when a new analysis would wait behind more than {@code max-queue} others. Does not reserve
+     * anything; call it before persisting state for a request that may still be refused.
+     *
+     * @throws AnalysisOverloadedException if the admission queue is full
+     */
+    public synchronized void checkAdmission() {
+        if (waiting >= maxQueue) {
+            rejectedCounter.increment();
+            throw new AnalysisOverloadedException("Analysis service is overloaded", retryAfterSeconds(waiting));
+        }
+    }
+
+    /**
+     * Waits for an inference slot. Close the permit when the inference ends and mark it succeeded first if
+     * its latency should feed the adaptive limit.
+     */
+    public Permit acquire() throws InterruptedException {
+        synchronized (this) {
+            waiting++;
+            try {
+                while (!canAdmit()) {
+                    wait(TimeUnit.NANOSECONDS.toMillis(MEMORY_SAMPLE_INTERVAL_NANOS));
+                }
+            } finally {
+                waiting--;
+            }
+            inFlight++;
+        }
+        return new Permit();
+    }
+
+    /**
+     * Takes an inference slot only if one is free now and nobody is waiting for one; empty otherwise. For
+     * extra slots wanted by work that already holds one and can make do without them.
+     */
+    public synchronized Optional<Permit> tryAcquire() {
+        if (waiting > 0 || !canAdmit()) {
+            return Optional.empty();
+        }
+        inFlight++;
+        return Optional.of(new Permit());
+    }
+
+    /**
+     * Estimated seconds until {@code queuedAhead} more analyses have drained at the current limit.
+     */
+    public synchronized long retryAfterSeconds(int queuedAhead) {
+        double latency = averageLatencyNanos > 0 ? averageLatencyNanos : TimeUnit.SECONDS.toNanos(5);
+        double seconds = (queuedAhead + 1) / Math.max(1.0, limit) * latency / TimeUnit.SECONDS.toNanos(1);
+        return Math.max(1, (long) Math.ceil(seconds));
+    }
+
+    private boolean canAdmit() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        if (inFlight == 0) {
+            return true;
+        }
+        long headroom = availableMemoryBytes() - memoryReserveMb * 1024 * 1024;
+        return headroom >= processMemoryMb * 1024 * 1024;
+    }
+
+    private synchronized void release(long latencyNanos, boolean succeeded) {
+        inFlight--;
+        if (succeeded) {
+            averageLatencyNanos = averageLatencyNanos == 0 ? latencyNanos : averageLatencyNanos * 0.9 + latencyNanos * 0.1;
+            if (baselineLatencyNanos == 0 || latencyNanos < baselineLatencyNanos) {
+                baselineLatencyNanos = latencyNanos;
+            } else {
+                // Let the baseline drift up slowly so a permanently slower model does not pin the limit.
+                baselineLatencyNanos += (latencyNanos - baselineLatencyNanos) * 0.01;
+            }
+            double threshold = targetLatencyMillis > 0
+                    ? TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis)
+                    : baselineLatencyNanos * latencyTolerance;
+            double previous = limit;
+            limit = latencyNanos <= threshold
+                    ? Math.min(maxLimit, limit + 1.0 / limit)
+                    : Math.max(minLimit, limit * backoff);
+            if ((int) previous != (int) limit) {
+                log.info("Admission limit {} -> {} (latency {} ms, threshold {} ms)", (int) previous, (int) limit,
+                        TimeUnit.NANOSECONDS.toMillis(latencyNanos), TimeUnit.NANOSECONDS.toMillis((long) threshold));
+            }
+        }
+        notifyAll();
+    }
+
+    private synchronized double[] snapshot() {
+        return new double[]{inFlight, waiting, (int) limit};
+    }
+
+    private long availableMemoryBytes() {
+        long now = System.nanoTime();
+        if (memorySampledAt != 0 && now - memorySampledAt < MEMORY_SAMPLE_INTERVAL_NANOS) {
+            return availableMemoryBytes;
+        }
+        memorySampledAt = now;
+        availableMemoryBytes = readMemAvailable();
+        return availableMemoryBytes;
+    }
+
+    /**
+     * MemAvailable from /proc/meminfo counts reclaimable page cache; the JMX free size does not, so it is
+     * only the fallback.
+     */
+    private static long readMemAvailable() {
+        try {
+            List<String> lines = Files.readAllLines(MEMINFO);
+            for (String line : lines) {
+                if (line.startsWith("MemAvailable:")) {
+                    return Long.parseLong(line.replaceAll("\\D", "")) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.debug("Could not read {}: {}", MEMINFO, e.getMessage());
+        }
+        if (ManagementFactory.getOperatingSystemMXBean() instanceof com.sun.management.OperatingSystemMXBean os) {
+            return os.getFreeMemorySize();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    public final class Permit implements AutoCloseable {
+        private final long admittedAt = System.nanoTime();
+        private boolean succeeded;
+        private boolean closed;
+
+        public void succeeded() {
+            succeeded = true;
+        }
+
+        @Override
+        public void close() {
+            if (!closed) {
+                closed = true;
+                release(System.nanoTime() - admittedAt, succeeded);
+            }
+        }
+    }
+}
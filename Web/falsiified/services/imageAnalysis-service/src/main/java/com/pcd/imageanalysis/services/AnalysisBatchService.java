@@ -0,0 +1,271 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.client.ImageServiceClient;
+import com.pcd.imageanalysis.model.AnalysisBatch;
+import com.pcd.imageanalysis.model.AnalysisPriority;
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.Image;
+import com.pcd.imageanalysis.repository.AnalysisBatchRepository;
+import com.pcd.imageanalysis.repository.AnalysisResultRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * Analyzes every image of a case in the background. Items go through {@link AnalysisJobService} at
+ * {@link AnalysisPriority#BATCH} priority keyed by case, and at most {@code analysis.batch.concurrency} of a
+ * batch are scheduled at a time so a large case does not fill the shared queue. Images that already have a
+ * completed analysis with the current model version are skipped unless {@code force} is set.
+ * <p>
+ * Which items are left to schedule is only known to the instance driving the batch, so it holds a lease on
+ * the batch document. When an instance stops renewing it, for example because it was restarted, another
+ * instance takes the batch over, rebuilds its counts from the analysis documents and runs the unfinished
+ * items again.
+ */
+@Service
+public class AnalysisBatchService {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisBatchService.class);
+
+    private final ImageServiceClient imageServiceClient;
+    private final ImageAnalysisService analysisService;
+    private final AnalysisJobService jobService;
+    private final AnalysisResultRepository resultRepository;
+    private final AnalysisBatchRepository batchRepository;
+    private final MongoTemplate mongoTemplate;
+    private final String owner;
+    // batch id -> items not yet handed to the scheduler, for the batches this instance drives
+    private final Map<String, Queue<AnalysisResult>> driving = new ConcurrentHashMap<>();
+
+    @Value("${analysis.batch.concurrency:4}")
+    private int concurrency;
+
+    @Value("${analysis.batch.lease:60s}")
+    private Duration lease;
+
+    @Autowired
+    public AnalysisBatchService(ImageServiceClient imageServiceClient,
+                                ImageAnalysisService analysisService,
+                                AnalysisJobService jobService,
+                                AnalysisResultRepository resultRepository,
+                                AnalysisBatchRepository batchRepository,
+                                MongoTemplate mongoTemplate,
+                                @Value("${spring.application.name:imageAnalysis-service}") String applicationName) {
+        this.imageServiceClient = imageServiceClient;
+        this.analysisService = analysisService;
+        this.jobService = jobService;
+        this.resultRepository = resultRepository;
+        this.batchRepository = batchRepository;
+        this.mongoTemplate = mongoTemplate;
+        this.owner = applicationName + ":" + UUID.randomUUID();
+    }
+
+    /**
+     * Creates the batch, queues one analysis per image that needs it and returns immediately.
+     *
+     * @throws IllegalArgumentException if the case has no images
+     */
+    public AnalysisBatch analyzeCase(String caseId, String userId, String engine, boolean force) {
+        List<Image> images = imageServiceClient.getImagesByCase(caseId);
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("No images found for case ID: " + caseId);
+        }
+
+        String modelVersion = analysisService.getCurrentModelVersion();
+        Set<String> upToDate = force ? Set.of() : resultRepository.findByImageIdIn(
+                        images.stream().map(Image::getId).collect(Collectors.toList())).stream()
+                .filter(r -> "COMPLETED".equals(r.getAnalysisStatus()) && modelVersion.equals(r.getAnalysisVersion()))
+                .map(AnalysisResult::getImageId)
+                .collect(Collectors.toSet());
+
+        AnalysisBatch batch = new AnalysisBatch();
+        batch.setCaseId(caseId);
+        batch.setRequestedBy(userId);
+        batch.setModelVersion(modelVersion);
+        batch.setCreatedAt(LocalDateTime.now());
+        batch.setTotal(images.size());
+
+        List<AnalysisResult> toRun = new ArrayList<>();
+        for (Image image : images) {
+            if (upToDate.contains(image.getId())) {
+                batch.getSkippedImageIds().add(image.getId());
+            } else {
+                AnalysisResult queued = analysisService.queueAnalysis(image.getId(), userId, engine);
+                batch.getAnalysisIds().put(image.getId(), queued.getId());
+                toRun.add(queued);
+            }
+        }
+        batch.setSkipped(batch.getSkippedImageIds().size());
+        batch.setStatus(toRun.isEmpty() ? "COMPLETED" : "RUNNING");
+        if (toRun.isEmpty()) {
+            batch.setCompletedAt(LocalDateTime.now());
+        } else {
+            batch.setOwner(owner);
+            batch.setLeaseExpiresAt(Instant.now().plus(lease));
+        }
+        AnalysisBatch saved = batchRepository.save(batch);
+        log.info("Batch {} for case {}: {} images, {} already analyzed with {}, {} queued",
+                saved.getId(), caseId, images.size(), saved.getSkipped(), modelVersion, toRun.size());
+
+        if (!toRun.isEmpty()) {
+            drive(saved.getId(), caseId, toRun);
+        }
+        return saved;
+    }
+
+    public Optional<AnalysisBatch> getBatch(String batchId) {
+        return batchRepository.findById(batchId);
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.batch.renew-interval-ms:20000}")
+    public void renewLeases() {
+        driving.forEach((batchId, remaining) -> {
+            try {
+                long renewed = mongoTemplate.updateFirst(owned(batchId),
+                        Update.update("leaseExpiresAt", Instant.now().plus(lease)), AnalysisBatch.class).getMatchedCount();
+                if (renewed == 0) {
+                    // Finished, or taken over after renewals were missed; either way it is no longer ours.
+                    driving.remove(batchId, remaining);
+                    if (!remaining.isEmpty()) {
+                        log.warn("Lost batch {} with {} items left to schedule; its new owner runs them", batchId,
+                                remaining.size());
+                        remaining.clear();
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not renew the lease on batch {}: {}", batchId, e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Takes over RUNNING batches whose lease has lapsed and resumes them. Batches created before leases
+     * were recorded have none and are taken over too.
+     */
+    @Scheduled(fixedDelayString = "${analysis.batch.recovery-interval-ms:60000}")
+    public void recoverOrphanedBatches() {
+        while (true) {
+            Instant now = Instant.now();
+            AnalysisBatch orphaned = mongoTemplate.findAndModify(
+                    Query.query(Criteria.where("status").is("RUNNING").and("leaseExpiresAt").not().gt(now)),
+                    new Update().set("owner", owner).set("leaseExpiresAt", now.plus(lease)),
+                    AnalysisBatch.class);
+            if (orphaned == null) {
+                return;
+            }
+            try {
+                resume(orphaned);
+            } catch (RuntimeException e) {
+                // Not driven here, so the lease lapses again and the next run retries.
+                log.error("Could not resume batch {}", orphaned.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * Continues a batch taken over from {@code batch.getOwner()}. Its queue and scheduled jobs died with that
+     * instance, so the counts are rebuilt from the analysis documents and every analysis that has not
+     * finished is scheduled again.
+     */
+    private void resume(AnalysisBatch batch) {
+        Map<String, AnalysisResult> results = resultRepository.findAllById(batch.getAnalysisIds().values()).stream()
+                .collect(Collectors.toMap(AnalysisResult::getId, Function.identity()));
+        int done = 0;
+        int failed = 0;
+        List<AnalysisResult> unfinished = new ArrayList<>();
+        for (String analysisId : batch.getAnalysisIds().values()) {
+            AnalysisResult result = results.get(analysisId);
+            if (result == null || "FAILED".equals(result.getAnalysisStatus())) {
+                failed++;
+            } else if ("COMPLETED".equals(result.getAnalysisStatus())) {
+                done++;
+            } else {
+                unfinished.add(result);
+            }
+        }
+        Update update = new Update().set("done", done).set("failed", failed);
+        if (unfinished.isEmpty()) {
+            update.set("status", "COMPLETED").set("completedAt", LocalDateTime.now());
+        }
+        mongoTemplate.updateFirst(owned(batch.getId()), update, AnalysisBatch.class);
+        log.warn("Resuming batch {} for case {} left by {}: {} done, {} failed, {} to run again",
+                batch.getId(), batch.getCaseId(), batch.getOwner(), done, failed, unfinished.size());
+        if (!unfinished.isEmpty()) {
+            drive(batch.getId(), batch.getCaseId(), unfinished);
+        }
+    }
+
+    private void drive(String batchId, String caseId, List<AnalysisResult> items) {
+        Queue<AnalysisResult> remaining = new ConcurrentLinkedQueue<>(items);
+        driving.put(batchId, remaining);
+        for (int i = 0; i < Math.max(1, concurrency); i++) {
+            scheduleNext(batchId, caseId, remaining);
+        }
+    }
+
+    /**
+     * Hands the next item of the batch to the scheduler; each finished item schedules its successor.
+     * Items rejected because the shared queue is full are counted as failed.
+     */
+    private void scheduleNext(String batchId, String caseId, Queue<AnalysisResult> remaining) {
+        AnalysisResult queued;
+        while ((queued = remaining.poll()) != null) {
+            try {
+                jobService.schedule(queued, AnalysisPriority.BATCH, "case:" + caseId, result -> {
+                    recordItem(batchId, result.map(r -> "COMPLETED".equals(r.getAnalysisStatus())).orElse(false));
+                    scheduleNext(batchId, caseId, remaining);
+                });
+                return;
+            } catch (RejectedExecutionException e) {
+                log.warn("Batch {} could not queue image {}: {}", batchId, queued.getImageId(), e.getMessage());
+                recordItem(batchId, false);
+            }
+        }
+    }
+
+    /**
+     * Counts a finished item, unless the batch has been taken over meanwhile; its new owner counts it then.
+     */
+    private void recordItem(String batchId, boolean completed) {
+        Query query = Query.query(Criteria.where("_id").is(batchId).and("owner").is(owner));
+        AnalysisBatch updated = mongoTemplate.findAndModify(query,
+                new Update().inc(completed ? "done" : "failed", 1),
+                FindAndModifyOptions.options().returnNew(true),
+                AnalysisBatch.class);
+        if (updated != null && updated.getPending() == 0 && "RUNNING".equals(updated.getStatus())) {
+            mongoTemplate.updateFirst(query.addCriteria(Criteria.where("status").is("RUNNING")),
+                    new Update().set("status", "COMPLETED").set("completedAt", LocalDateTime.now()),
+                    AnalysisBatch.class);
+            driving.remove(batchId);
+            log.info("Batch {} for case {} finished: {} done, {} failed, {} skipped",
+                    batchId, updated.getCaseId(), updated.getDone(), updated.getFailed(), updated.getSkipped());
+        }
+    }
+
+    private Query owned(String batchId) {
+        return Query.query(Criteria.where("_id").is(batchId).and("status").is("RUNNING").and("owner").is(owner));
+    }
+}
@@ -0,0 +1,107 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisCacheEntry;
+import com.pcd.imageanalysis.repository.AnalysisCacheRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Content-addressed cache of model output, keyed by image SHA-256 and the model configuration that
+ * produced it. Identical evidence uploaded to several cases is only run through the model once.
+ * <p>
+ * Engines whose output also depends on their own settings, such as the ensemble, add those through
+ * {@link InferenceEngine#getConfigurationKey()}.
+ */
+@Service
+public class AnalysisCacheService {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisCacheService.class);
+
+    private final AnalysisCacheRepository cacheRepository;
+    private final Counter hitCounter;
+    private final Counter missCounter;
+
+    @Value("${analysis.cache.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    public AnalysisCacheService(AnalysisCacheRepository cacheRepository, MeterRegistry meterRegistry) {
+        this.cacheRepository = cacheRepository;
+        this.hitCounter = Counter.builder("analysis.cache.requests")
+                .tag("result", "hit")
+                .description("Analysis cache lookups")
+                .register(meterRegistry);
+        this.missCounter = Counter.builder("analysis.cache.requests")
+                .tag("result", "miss")
+                .description("Analysis cache lookups")
+                .register(meterRegistry);
+    }
+
+    static String cacheKey(String sha256Hash, String modelVersion, String arch, int imgHeight, int imgWidth, String engine,
+                           String engineConfiguration) {
+        String key = String.join(":", sha256Hash.toLowerCase(), modelVersion, arch, imgHeight + "x" + imgWidth, engine);
+        return engineConfiguration == null || engineConfiguration.isEmpty() ? key : key + ":" + engineConfiguration;
+    }
+
+    public Optional<AnalysisCacheEntry> lookup(String sha256Hash, String modelVersion, String arch,
+                                               int imgHeight, int imgWidth, String engine, String engineConfiguration) {
+        if (!enabled || sha256Hash == null || sha256Hash.isBlank()) {
+            return Optional.empty();
+        }
+        try {
+            Optional<AnalysisCacheEntry> entry = cacheRepository.findById(
+                    cacheKey(sha256Hash, modelVersion, arch, imgHeight, imgWidth, engine, engineConfiguration));
+            (entry.isPresent() ? hitCounter : missCounter).increment();
+            return entry;
+        } catch (Exception e) {
+            log.warn("Analysis cache lookup failed for sha256 {}: {}", sha256Hash, e.getMessage());
+            missCounter.increment();
+            return Optional.empty();
+        }
+    }
+
+    public void store(String sha256Hash, String modelVersion, String arch, int imgHeight, int imgWidth,
+                      String engine, String engineConfiguration, String analysisId,
+                      Map<String, Object> detectionDetails) {
+        if (!enabled || sha256Hash == null || sha256Hash.isBlank()) {
+            return;
+        }
+        try {
+            AnalysisCacheEntry entry = new AnalysisCacheEntry(
+                    cacheKey(sha256Hash, modelVersion, arch, imgHeight, imgWidth, engine, engineConfiguration),
+                    sha256Hash.toLowerCase(),
+                    modelVersion,
+                    arch,
+                    imgHeight,
+                    imgWidth,
+                    engine,
+                    engineConfiguration,
+                    analysisId,
+                    new HashMap<>(detectionDetails),
+                    Instant.now());
+            cacheRepository.save(entry);
+            log.debug("Cached analysis {} under key {}", analysisId, entry.getCacheKey());
+        } catch (Exception e) {
+            log.warn("Failed to cache analysis {} for sha256 {}: {}", analysisId, sha256Hash, e.getMessage());
+        }
+    }
+
+    public long invalidateModelVersion(String modelVersion) {
+        long removed = cacheRepository.deleteByModelVersion(modelVersion);
+        log.info("Invalidated {} analysis cache entries for model version {}", removed, modelVersion);
+        return removed;
+    }
+
+    public long countModelVersion(String modelVersion) {
+        return cacheRepository.countByModelVersion(modelVersion);
+    }
+}
@@ -0,0 +1,246 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisPriority;
+import com.pcd.imageanalysis.model.AnalysisResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.bson.types.ObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * Runs analyses in the background on a fixed set of worker threads so that HTTP threads are released as
+ * soon as the job is queued. Job state lives on the {@link AnalysisResult} document itself.
+ * <p>
+ * Jobs are picked by {@link AnalysisScheduler}: priorities share the workers by weight, jobs of the same
+ * priority rotate between fairness keys (the case id for bulk runs, the requesting user otherwise) and any
+ * job waiting longer than {@code analysis.jobs.aging-ms} goes next regardless of its priority.
+ */
+@Service
+public class AnalysisJobService {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisJobService.class);
+
+    private final ImageAnalysisService analysisService;
+    private final AdmissionLimiter admissionLimiter;
+    private final AnalysisStageTimer stageTimer;
+    private final AnalysisSingleFlight singleFlight;
+    private final MeterRegistry meterRegistry;
+    private final List<Thread> workerThreads = new ArrayList<>();
+    private final AtomicInteger activeJobs = new AtomicInteger();
+    private final Map<AnalysisPriority, Timer> queueWaitTimers = new EnumMap<>(AnalysisPriority.class);
+    private final Map<AnalysisPriority, Counter> agedCounters = new EnumMap<>(AnalysisPriority.class);
+    private AnalysisScheduler scheduler;
+    private Counter rejectedCounter;
+
+    @Value("${analysis.jobs.workers:2}")
+    private int workers;
+
+    @Value("${analysis.jobs.queue-capacity:100}")
+    private int queueCapacity;
+
+    @Value("${analysis.jobs.weights.urgent:8}")
+    private int urgentWeight;
+
+    @Value("${analysis.jobs.weights.normal:4}")
+    private int normalWeight;
+
+    @Value("${analysis.jobs.weights.batch:1}")
+    private int batchWeight;
+
+    @Value("${analysis.jobs.aging-ms:60000}")
+    private long agingMillis;
+
+    @Autowired
+    public AnalysisJobService(ImageAnalysisService analysisService, AdmissionLimiter admissionLimiter,
+                              AnalysisStageTimer stageTimer, AnalysisSingleFlight singleFlight,
+                              MeterRegistry meterRegistry) {
+        this.analysisService = analysisService;
+        this.admissionLimiter = admissionLimiter;
+        this.stageTimer = stageTimer;
+        this.singleFlight = singleFlight;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        Map<AnalysisPriority, Integer> weights = new EnumMap<>(AnalysisPriority.class);
+        weights.put(AnalysisPriority.URGENT, urgentWeight);
+        weights.put(AnalysisPriority.NORMAL, normalWeight);
+        weights.put(AnalysisPriority.BATCH, batchWeight);
+        scheduler = new AnalysisScheduler(weights, queueCapacity, agingMillis);
+
+        for (AnalysisPriority priority : AnalysisPriority.values()) {
+            String tag = priority.name().toLowerCase();
+            Gauge.builder("analysis.jobs.queue.depth", scheduler, s -> s.size(priority))
+                    .description("Number of analysis jobs waiting for a worker")
+                    .tag("priority", tag)
+                    .register(meterRegistry);
+            queueWaitTimers.put(priority, Timer.builder("analysis.jobs.queue.wait")
+                    .description("Time analysis jobs spend queued before they start")
+                    .tag("priority", tag)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry));
+            agedCounters.put(priority, Counter.builder("analysis.jobs.aged")
+                    .description("Number of analysis jobs started ahead of their turn because they waited too long")
+                    .tag("priority", tag)
+                    .register(meterRegistry));
+        }
+        Gauge.builder("analysis.jobs.active", activeJobs, AtomicInteger::get)
+                .description("Number of analysis jobs currently running")
+                .register(meterRegistry);
+        rejectedCounter = Counter.builder("analysis.jobs.rejected")
+                .description("Number of analysis jobs rejected because the queue was full")
+                .register(meterRegistry);
+
+        for (int i = 1; i <= workers; i++) {
+            Thread thread = new Thread(this::workLoop, "analysis-job-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            workerThreads.add(thread);
+        }
+        log.info("Analysis job scheduler started with {} workers, a queue of {}, weights {} and aging after {} ms",
+                workers, queueCapacity, weights, agingMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        workerThreads.forEach(Thread::interrupt);
+    }
+
+    /**
+     * Queues an analysis and returns the QUEUED result whose id is the job id. If the same image is already
+     * queued or running with the same model version and engine, returns that job instead.
+     *
+     * @throws AnalysisOverloadedException if the queue is full; nothing has been written then
+     */
+    public AnalysisResult submit(String imageId, String userId, String engine, AnalysisPriority priority) {
+        reserveSlot();
+        boolean scheduled = false;
+        try {
+            String engineName = analysisService.resolveInferenceEngineName(engine);
+            String modelVersion = analysisService.getCurrentModelVersion();
+            String key = AnalysisSingleFlight.key(imageId, modelVersion, engineName);
+            String analysisId = new ObjectId().toHexString();
+            Optional<String> runningId = singleFlight.claim(key, imageId, modelVersion, engineName, analysisId);
+            if (runningId.isPresent()) {
+                try {
+                    Optional<AnalysisResult> running = singleFlight.attachedResult(runningId.get());
+                    if (running.isPresent()) {
+                        return running.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // Not persisted yet; the id is still the job id the caller polls.
+                AnalysisResult pending = new AnalysisResult();
+                pending.setId(runningId.get());
+                pending.setImageId(imageId);
+                pending.setAnalysisStatus("QUEUED");
+                pending.setAnalysisStage("QUEUED");
+                pending.setInferenceEngine(engineName);
+                return pending;
+            }
+
+            AnalysisResult queued;
+            try {
+                queued = analysisService.queueAnalysis(analysisId, imageId, userId, engine);
+                scheduler.offerReserved(task(queued, priority, userId != null ? "user:" + userId : "image:" + imageId,
+                        result -> singleFlight.release(key, analysisId, result)));
+                scheduled = true;
+            } catch (RuntimeException e) {
+                singleFlight.release(key, analysisId, Optional.empty());
+                throw e;
+            }
+            return queued;
+        } finally {
+            if (!scheduled) {
+                scheduler.cancelReservation();
+            }
+        }
+    }
+
+    /**
+     * Schedules an already queued analysis. {@code onFinish} runs on the worker thread with the outcome;
+     * an exception from the analysis is reported as an empty result.
+     *
+     * @throws AnalysisOverloadedException if the queue is full; the analysis is marked FAILED
+     */
+    public void schedule(AnalysisResult queued, AnalysisPriority priority, String fairnessKey,
+                         Consumer<Optional<AnalysisResult>> onFinish) {
+        try {
+            scheduler.offer(task(queued, priority, fairnessKey, onFinish));
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            analysisService.failQueuedAnalysis(queued, "Analysis queue is full");
+            throw new AnalysisOverloadedException(e.getMessage(), admissionLimiter.retryAfterSeconds(queueCapacity));
+        }
+    }
+
+    private void reserveSlot() {
+        try {
+            scheduler.reserve();
+        } catch (RejectedExecutionException e) {
+            rejectedCounter.increment();
+            throw new AnalysisOverloadedException(e.getMessage(), admissionLimiter.retryAfterSeconds(queueCapacity));
+        }
+    }
+
+    private AnalysisScheduler.Task task(AnalysisResult queued, AnalysisPriority priority, String fairnessKey,
+                                        Consumer<Optional<AnalysisResult>> onFinish) {
+        long enqueuedAt = System.nanoTime();
+        return new AnalysisScheduler.Task(priority, fairnessKey, () -> {
+            Optional<AnalysisResult> result = Optional.empty();
+            stageTimer.record(queued, "queue-wait", null, System.nanoTime() - enqueuedAt, "success");
+            try {
+                log.info("Starting queued {} analysis job {} for image ID: {}",
+                        priority, queued.getId(), queued.getImageId());
+                result = analysisService.runAnalysis(queued);
+            } catch (Exception e) {
+                log.error("Analysis job {} for image ID {} failed", queued.getId(), queued.getImageId(), e);
+            } finally {
+                onFinish.accept(result);
+            }
+        });
+    }
+
+    private void workLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            AnalysisScheduler.Task task;
+            try {
+                task = scheduler.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            queueWaitTimers.get(task.priority).record(System.nanoTime() - task.enqueuedAt, TimeUnit.NANOSECONDS);
+            if (task.aged) {
+                agedCounters.get(task.priority).increment();
+            }
+            activeJobs.incrementAndGet();
+            try {
+                task.work.run();
+            } catch (RuntimeException e) {
+                log.error("Analysis job callback failed", e);
+            } finally {
+                activeJobs.decrementAndGet();
+            }
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.OutboxEvent;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbox for analysis events. {@link #enqueue} records the event in {@code analysis_outbox} before the
+ * analysis document is saved, and {@link #relay} publishes it once that document reads COMPLETED. An event
+ * is therefore never lost between the save and the send, and one whose save never happened is discarded
+ * after {@code analysis.outbox.discard-after}.
+ * <p>
+ * Mongo runs standalone here, so the outbox entry and the result cannot share a transaction; writing the
+ * entry first and checking the result before sending gives the same guarantee. Delivery is at least once.
+ * <p>
+ * Each run claims up to {@code analysis.outbox.batch-size} events, so several instances can relay side by
+ * side, and hands them all to the producer before waiting, which lets its linger and compression settings
+ * batch them.
+ * <p>
+ * A failed send is retried after a backoff that doubles with each attempt, up to
+ * {@code analysis.outbox.max-backoff}; after {@code analysis.outbox.max-attempts} the event is marked FAILED
+ * and left for inspection.
+ */
+@Component
+public class AnalysisOutbox {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisOutbox.class);
+
+    public static final String ANALYSIS_COMPLETED = "analysis-completed";
+
+    private final MongoTemplate mongoTemplate;
+    private final KafkaNotificationService kafkaNotificationService;
+    private final String owner;
+    private final AtomicLong pending = new AtomicLong();
+    private final Timer publishLag;
+    private final DistributionSummary batchSizes;
+    private final Counter sent;
+    private final Counter failed;
+    private final Counter discarded;
+    private final Counter abandoned;
+
+    @Value("${analysis.outbox.batch-size:100}")
+    private int batchSize;
+
+    @Value("${analysis.outbox.lock-timeout:30s}")
+    private Duration lockTimeout;
+
+    @Value("${analysis.outbox.send-timeout:10s}")
+    private Duration sendTimeout;
+
+    @Value("${analysis.outbox.discard-after:10m}")
+    private Duration discardAfter;
+
+    @Value("${analysis.outbox.retention:7d}")
+    private Duration retention;
+
+    @Value("${analysis.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${analysis.outbox.backoff:1s}")
+    private Duration backoff;
+
+    @Value("${analysis.outbox.max-backoff:5m}")
+    private Duration maxBackoff;
+
+    @Autowired
+    public AnalysisOutbox(MongoTemplate mongoTemplate, KafkaNotificationService kafkaNotificationService,
+                          MeterRegistry meterRegistry,
+                          @Value("${spring.application.name:imageAnalysis-service}") String applicationName) {
+        this.mongoTemplate = mongoTemplate;
+        this.kafkaNotificationService = kafkaNotificationService;
+        this.owner = applicationName + ":" + UUID.randomUUID();
+        this.publishLag = Timer.builder("analysis.outbox.publish.lag")
+                .description("Time from an event entering the outbox to the broker acknowledging it")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        this.batchSizes = DistributionSummary.builder("analysis.outbox.batch.size")
+                .description("Number of outbox events relayed per run")
+                .register(meterRegistry);
+        this.sent = meterRegistry.counter("analysis.outbox.events", "result", "sent");
+        this.failed = meterRegistry.counter("analysis.outbox.events", "result", "failed");
+        this.discarded = meterRegistry.counter("analysis.outbox.events", "result", "discarded");
+        this.abandoned = meterRegistry.counter("analysis.outbox.events", "result", "abandoned");
+        Gauge.builder("analysis.outbox.pending", pending, AtomicLong::get)
+                .description("Number of outbox events not yet published, as of the last relay run")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records that {@code result} should be announced with an event of {@code type}. Call before the result
+     * is saved; enqueuing the same event again resets it to pending.
+     */
+    public void enqueue(AnalysisResult result, String type) {
+        Update update = new Update()
+                .set("type", type)
+                .set("analysisId", result.getId())
+                .set("imageId", result.getImageId())
+                .set("status", OutboxEvent.PENDING)
+                .set("attempts", 0)
+                .set("createdAt", Instant.now())
+                .unset("lockedBy")
+                .unset("lockedUntil")
+                .unset("sentAt")
+                .unset("lastError");
+        mongoTemplate.upsert(Query.query(Criteria.where("_id").is(result.getId() + ":" + type)), update, OutboxEvent.class);
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.outbox.poll-interval-ms:500}")
+    public void relay() {
+        List<OutboxEvent> batch = claimBatch();
+        if (!batch.isEmpty()) {
+            batchSizes.record(batch.size());
+            publish(batch);
+        }
+        pending.set(mongoTemplate.count(Query.query(Criteria.where("status").is(OutboxEvent.PENDING)), OutboxEvent.class));
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.outbox.cleanup-interval-ms:3600000}")
+    public void removeSent() {
+        long removed = mongoTemplate.remove(Query.query(Criteria.where("status").in(OutboxEvent.SENT, OutboxEvent.DISCARDED)
+                .and("createdAt").lt(Instant.now().minus(retention))), OutboxEvent.class).getDeletedCount();
+        if (removed > 0) {
+            log.info("Removed {} relayed outbox events older than {}", removed, retention);
+        }
+    }
+
+    private List<OutboxEvent> claimBatch() {
+        List<OutboxEvent> batch = new ArrayList<>();
+        Instant now = Instant.now();
+        Query claimable = Query.query(Criteria.where("status").is(OutboxEvent.PENDING).and("lockedUntil").not().gt(now))
+                .with(Sort.by("createdAt"));
+        Update lock = new Update().set("lockedBy", owner).set("lockedUntil", now.plus(lockTimeout));
+        while (batch.size() < batchSize) {
+            OutboxEvent event = mongoTemplate.findAndModify(claimable, lock,
+                    FindAndModifyOptions.options().returnNew(true), OutboxEvent.class);
+            if (event == null) {
+                break;
+            }
+            batch.add(event);
+        }
+        return batch;
+    }
+
+    private void publish(List<OutboxEvent> batch) {
+        Instant now = Instant.now();
+        BulkOperations updates = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, OutboxEvent.class);
+        Map<OutboxEvent, CompletableFuture<?>> sends = new LinkedHashMap<>();
+        int updateCount = 0;
+        for (OutboxEvent event : batch) {
+            AnalysisResult result = mongoTemplate.findById(event.getAnalysisId(), AnalysisResult.class);
+            if (result != null && "COMPLETED".equals(result.getAnalysisStatus())) {
+                try {
+                    sends.put(event, kafkaNotificationService.sendAnalysisCompleted(result));
+                } catch (RuntimeException e) {
+                    sends.put(event, CompletableFuture.failedFuture(e));
+                }
+            } else if (event.getCreatedAt().isBefore(now.minus(discardAfter))) {
+                log.warn("Discarding outbox event {}: analysis {} never completed", event.getId(), event.getAnalysisId());
+                discarded.increment();
+                updates.updateOne(byId(event), new Update().set("status", OutboxEvent.DISCARDED).unset("lockedUntil"));
+                updateCount++;
+            } else {
+                // Saved moments ago or still being saved; look again on a later run.
+                updates.updateOne(byId(event), new Update().unset("lockedUntil"));
+                updateCount++;
+            }
+        }
+
+        long deadline = System.nanoTime() + sendTimeout.toNanos();
+        for (Map.Entry<OutboxEvent, CompletableFuture<?>> send : sends.entrySet()) {
+            OutboxEvent event = send.getKey();
+            try {
+                send.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                Instant sentAt = Instant.now();
+                publishLag.record(Duration.between(event.getCreatedAt(), sentAt));
+                sent.increment();
+                updates.updateOne(byId(event), new Update().set("status", OutboxEvent.SENT).set("sentAt", sentAt)
+                        .unset("lockedUntil"));
+                updateCount++;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (ExecutionException | TimeoutException e) {
+                Throwable cause = e instanceof ExecutionException && e.getCause() != null ? e.getCause() : e;
+                int attempts = event.getAttempts() + 1;
+                failed.increment();
+                Update update = new Update().set("attempts", attempts).set("lastError", cause.toString());
+                if (attempts >= maxAttempts) {
+                    log.error("Giving up on outbox event {} after {} attempts: {}", event.getId(), attempts, cause.toString());
+                    abandoned.increment();
+                    update.set("status", OutboxEvent.FAILED).unset("lockedUntil");
+                } else {
+                    Duration retryIn = retryDelay(attempts);
+                    log.warn("Failed to publish outbox event {} (attempt {}), retrying in {}: {}", event.getId(), attempts,
+                            retryIn, cause.toString());
+                    update.set("lockedUntil", Instant.now().plus(retryIn));
+                }
+                updates.updateOne(byId(event), update);
+                updateCount++;
+            }
+        }
+        if (updateCount > 0) {
+            updates.execute();
+        }
+    }
+
+    /**
+     * {@code backoff} doubled for every attempt after the first, capped at {@code max-backoff}.
+     */
+    private Duration retryDelay(int attempts) {
+        Duration delay = backoff.multipliedBy(1L << Math.min(attempts - 1, 30));
+        return delay.compareTo(maxBackoff) > 0 || delay.isNegative() ? maxBackoff : delay;
+    }
+
+    private static Query byId(OutboxEvent event) {
+        return Query.query(Criteria.where("_id").is(event.getId()));
+    }
+}
@@ -0,0 +1,21 @@
+package com.pcd.imageanalysis.services;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Thrown when an analysis is shed because the service is saturated. Carries the number of seconds the
+ * caller should wait before retrying.
+ */
+public class AnalysisOverloadedException extends RejectedExecutionException {
+
+    private final long retryAfterSeconds;
+
+    public AnalysisOverloadedException(String message, long retryAfterSeconds) {
+        super(message);
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    public long getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+}
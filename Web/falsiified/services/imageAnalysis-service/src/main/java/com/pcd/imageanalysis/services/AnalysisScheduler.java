@@ -0,0 +1,188 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisPriority;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Queue of analysis tasks that decides which one runs next:
+ * <ol>
+ *     <li>a task that has waited longer than the aging threshold, oldest first, so nothing starves;</li>
+ *     <li>otherwise a priority lane chosen by smooth weighted round robin over the non-empty lanes;</li>
+ *     <li>within the lane, the next fairness key (case id) in round-robin order, so one large case
+ *     cannot monopolize its lane.</li>
+ * </ol>
+ */
+class AnalysisScheduler {
+
+    private final Map<AnalysisPriority, Lane> lanes = new EnumMap<>(AnalysisPriority.class);
+    private final int capacity;
+    private final long agingNanos;
+    private int size;
+    // room held for tasks whose caller has not offered them yet
+    private int reserved;
+
+    AnalysisScheduler(Map<AnalysisPriority, Integer> weights, int capacity, long agingMillis) {
+        for (AnalysisPriority priority : AnalysisPriority.values()) {
+            lanes.put(priority, new Lane(Math.max(1, weights.getOrDefault(priority, 1))));
+        }
+        this.capacity = capacity;
+        this.agingNanos = TimeUnit.MILLISECONDS.toNanos(agingMillis);
+    }
+
+    /**
+     * @throws RejectedExecutionException if the scheduler already holds {@code capacity} tasks
+     */
+    synchronized void offer(Task task) {
+        reserve();
+        offerReserved(task);
+    }
+
+    /**
+     * Holds room for one task, to be filled with {@link #offerReserved} or returned with
+     * {@link #cancelReservation}, so that a caller can be refused before it writes any state.
+     *
+     * @throws RejectedExecutionException if the scheduler already holds {@code capacity} tasks
+     */
+    synchronized void reserve() {
+        if (size + reserved >= capacity) {
+            throw new RejectedExecutionException("Analysis queue is full");
+        }
+        reserved++;
+    }
+
+    synchronized void offerReserved(Task task) {
+        reserved--;
+        lanes.get(task.priority).add(task);
+        size++;
+        notifyAll();
+    }
+
+    synchronized void cancelReservation() {
+        reserved--;
+    }
+
+    synchronized Task take() throws InterruptedException {
+        while (size == 0) {
+            wait();
+        }
+        Task task = pollAged(System.nanoTime());
+        if (task == null) {
+            task = pollWeighted();
+        }
+        size--;
+        return task;
+    }
+
+    synchronized int size(AnalysisPriority priority) {
+        return lanes.get(priority).size;
+    }
+
+    private Task pollAged(long now) {
+        Lane oldestLane = null;
+        Task oldest = null;
+        for (Lane lane : lanes.values()) {
+            Task head = lane.oldest();
+            if (head != null && now - head.enqueuedAt >= agingNanos
+                    && (oldest == null || head.enqueuedAt < oldest.enqueuedAt)) {
+                oldest = head;
+                oldestLane = lane;
+            }
+        }
+        if (oldest == null) {
+            return null;
+        }
+        oldest.aged = true;
+        oldestLane.remove(oldest);
+        return oldest;
+    }
+
+    private Task pollWeighted() {
+        int totalWeight = 0;
+        Lane selected = null;
+        for (Lane lane : lanes.values()) {
+            if (lane.size == 0) {
+                lane.currentWeight = 0;
+                continue;
+            }
+            lane.currentWeight += lane.weight;
+            totalWeight += lane.weight;
+            if (selected == null || lane.currentWeight > selected.currentWeight) {
+                selected = lane;
+            }
+        }
+        selected.currentWeight -= totalWeight;
+        return selected.pollNextKey();
+    }
+
+    static final class Task {
+        final AnalysisPriority priority;
+        final String fairnessKey;
+        final Runnable work;
+        final long enqueuedAt = System.nanoTime();
+        boolean aged;
+
+        Task(AnalysisPriority priority, String fairnessKey, Runnable work) {
+            this.priority = priority;
+            this.fairnessKey = fairnessKey;
+            this.work = work;
+        }
+    }
+
+    private static final class Lane {
+        private final int weight;
+        private final LinkedHashMap<String, ArrayDeque<Task>> byKey = new LinkedHashMap<>();
+        private int currentWeight;
+        private int size;
+
+        private Lane(int weight) {
+            this.weight = weight;
+        }
+
+        private void add(Task task) {
+            byKey.computeIfAbsent(task.fairnessKey, k -> new ArrayDeque<>()).addLast(task);
+            size++;
+        }
+
+        /**
+         * Takes the head of the first key and moves that key to the back of the rotation.
+         */
+        private Task pollNextKey() {
+            Iterator<Map.Entry<String, ArrayDeque<Task>>> it = byKey.entrySet().iterator();
+            Map.Entry<String, ArrayDeque<Task>> entry = it.next();
+            Task task = entry.getValue().pollFirst();
+            it.remove();
+            if (!entry.getValue().isEmpty()) {
+                byKey.put(entry.getKey(), entry.getValue());
+            }
+            size--;
+            return task;
+        }
+
+        private Task oldest() {
+            Task oldest = null;
+            for (ArrayDeque<Task> queue : byKey.values()) {
+                Task head = queue.peekFirst();
+                if (head != null && (oldest == null || head.enqueuedAt < oldest.enqueuedAt)) {
+                    oldest = head;
+                }
+            }
+            return oldest;
+        }
+
+        private void remove(Task task) {
+            ArrayDeque<Task> queue = byKey.get(task.fairnessKey);
+            queue.remove(task);
+            if (queue.isEmpty()) {
+                byKey.remove(task.fairnessKey);
+            }
+            size--;
+        }
+    }
+}
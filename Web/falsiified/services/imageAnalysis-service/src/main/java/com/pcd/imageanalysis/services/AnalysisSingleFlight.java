@@ -0,0 +1,224 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisClaim;
+import com.pcd.imageanalysis.model.AnalysisResult;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Coalesces concurrent analyses of the same image with the same model version and engine. The first caller
+ * claims the key in {@code image_analysis_claims} and runs the analysis; later callers, on this instance or
+ * any other, attach to the running analysis and receive its result instead of starting their own.
+ * <p>
+ * A claim carries a lease that the owning instance renews while the analysis runs. If the owner dies the
+ * lease lapses and the next caller takes the claim over, so a crashed instance cannot block an image.
+ */
+@Component
+public class AnalysisSingleFlight {
+    private static final Logger log = LoggerFactory.getLogger(AnalysisSingleFlight.class);
+
+    private final MongoTemplate mongoTemplate;
+    private final String owner;
+    // key -> analysis id, for the claims this instance holds
+    private final Map<String, String> owned = new ConcurrentHashMap<>();
+    // analysis id -> outcome, so callers on this instance are woken without polling Mongo
+    private final Map<String, CompletableFuture<Optional<AnalysisResult>>> running = new ConcurrentHashMap<>();
+    private final Counter leaders;
+    private final Counter attached;
+    private final Counter takeovers;
+
+    @Value("${analysis.single-flight.enabled:true}")
+    private boolean enabled;
+
+    @Value("${analysis.single-flight.lease:60s}")
+    private Duration lease;
+
+    @Value("${analysis.single-flight.poll-interval:500ms}")
+    private Duration pollInterval;
+
+    @Value("${analysis.single-flight.wait-timeout:300s}")
+    private Duration waitTimeout;
+
+    @Autowired
+    public AnalysisSingleFlight(MongoTemplate mongoTemplate, MeterRegistry meterRegistry,
+                                @Value("${spring.application.name:imageAnalysis-service}") String applicationName) {
+        this.mongoTemplate = mongoTemplate;
+        this.owner = applicationName + ":" + UUID.randomUUID();
+        this.leaders = meterRegistry.counter("analysis.single-flight", "outcome", "leader");
+        this.attached = meterRegistry.counter("analysis.single-flight", "outcome", "attached");
+        this.takeovers = meterRegistry.counter("analysis.single-flight", "outcome", "takeover");
+    }
+
+    public static String key(String imageId, String modelVersion, String engine) {
+        return imageId + ":" + modelVersion + ":" + engine;
+    }
+
+    /**
+     * Claims {@code key} for the analysis {@code analysisId}, which the caller then runs and reports with
+     * {@link #release}. A claim whose lease has expired is taken over.
+     *
+     * @return empty if the caller now owns the claim, otherwise the id of the analysis already running
+     */
+    public Optional<String> claim(String key, String imageId, String modelVersion, String engine, String analysisId) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        while (true) {
+            Instant now = Instant.now();
+            Query expired = Query.query(Criteria.where("_id").is(key).and("leaseExpiresAt").lt(now));
+            Update update = new Update()
+                    .set("imageId", imageId)
+                    .set("modelVersion", modelVersion)
+                    .set("inferenceEngine", engine)
+                    .set("analysisId", analysisId)
+                    .set("owner", owner)
+                    .set("claimedAt", now)
+                    .set("leaseExpiresAt", now.plus(lease));
+            try {
+                boolean tookOver = mongoTemplate.upsert(expired, update, AnalysisClaim.class).getModifiedCount() > 0;
+                (tookOver ? takeovers : leaders).increment();
+                owned.put(key, analysisId);
+                running.put(analysisId, new CompletableFuture<>());
+                return Optional.empty();
+            } catch (DuplicateKeyException e) {
+                // A live claim exists; it may be released before we read it, in which case try again.
+                AnalysisClaim claim = mongoTemplate.findById(key, AnalysisClaim.class);
+                if (claim != null && claim.getLeaseExpiresAt().isAfter(Instant.now())) {
+                    attached.increment();
+                    log.info("Analysis of image ID {} is already running as {} on {}, attaching to it",
+                            imageId, claim.getAnalysisId(), claim.getOwner());
+                    return Optional.of(claim.getAnalysisId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Releases a claim taken with {@link #claim} and hands the outcome to callers on this instance that
+     * attached to it. Callers on other instances see the final status on the result document.
+     */
+    public void release(String key, String analysisId, Optional<AnalysisResult> outcome) {
+        if (!enabled) {
+            return;
+        }
+        owned.remove(key, analysisId);
+        try {
+            mongoTemplate.remove(Query.query(Criteria.where("_id").is(key).and("analysisId").is(analysisId)),
+                    AnalysisClaim.class);
+        } catch (RuntimeException e) {
+            log.warn("Could not release analysis claim {}, it will lapse with its lease: {}", key, e.getMessage());
+        } finally {
+            CompletableFuture<Optional<AnalysisResult>> waiting = running.remove(analysisId);
+            if (waiting != null) {
+                waiting.complete(outcome);
+            }
+        }
+    }
+
+    /**
+     * Waits for the analysis {@code analysisId} running under {@code key} to finish.
+     *
+     * @return the finished result, or empty if its owner lost the claim without finishing and the caller
+     * should {@link #claim} the key again. Past {@code analysis.single-flight.wait-timeout} the result is
+     * returned in whatever state it has reached.
+     */
+    public Optional<AnalysisResult> await(String key, String analysisId) throws InterruptedException {
+        CompletableFuture<Optional<AnalysisResult>> local = running.get(analysisId);
+        if (local != null) {
+            try {
+                return local.get(waitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+            } catch (ExecutionException e) {
+                return find(analysisId);
+            } catch (TimeoutException e) {
+                log.warn("Analysis {} still running after {}, returning its current state", analysisId, waitTimeout);
+                return find(analysisId);
+            }
+        }
+
+        long deadline = System.nanoTime() + waitTimeout.toNanos();
+        while (true) {
+            Optional<AnalysisResult> result = find(analysisId);
+            if (result.isPresent() && isFinal(result.get())) {
+                return result;
+            }
+            AnalysisClaim claim = mongoTemplate.findById(key, AnalysisClaim.class);
+            if (claim == null || !analysisId.equals(claim.getAnalysisId())
+                    || claim.getLeaseExpiresAt().isBefore(Instant.now())) {
+                // Released or lost; the result may have been finalised in between.
+                result = find(analysisId);
+                return result.filter(AnalysisSingleFlight::isFinal);
+            }
+            if (System.nanoTime() > deadline) {
+                log.warn("Analysis {} still running after {}, returning its current state", analysisId, waitTimeout);
+                return result;
+            }
+            Thread.sleep(pollInterval.toMillis());
+        }
+    }
+
+    /**
+     * Returns the result document of an analysis another caller is running. Its owner persists it right after
+     * claiming, so a short wait covers the gap.
+     */
+    public Optional<AnalysisResult> attachedResult(String analysisId) throws InterruptedException {
+        for (int attempt = 0; attempt < 10; attempt++) {
+            Optional<AnalysisResult> result = find(analysisId);
+            if (result.isPresent()) {
+                return result;
+            }
+            Thread.sleep(Math.max(10, pollInterval.toMillis() / 5));
+        }
+        return Optional.empty();
+    }
+
+    @Scheduled(fixedDelayString = "${analysis.single-flight.renew-interval-ms:20000}")
+    public void renewLeases() {
+        if (!enabled) {
+            return;
+        }
+        owned.forEach((key, analysisId) -> {
+            try {
+                long renewed = mongoTemplate.updateFirst(
+                        Query.query(Criteria.where("_id").is(key).and("analysisId").is(analysisId)),
+                        Update.update("leaseExpiresAt", Instant.now().plus(lease)),
+                        AnalysisClaim.class).getMatchedCount();
+                if (renewed == 0) {
+                    log.warn("Lost the claim on {} for analysis {}; another caller may run it again", key, analysisId);
+                    owned.remove(key, analysisId);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not renew the lease on analysis claim {}: {}", key, e.getMessage());
+            }
+        });
+    }
+
+    private Optional<AnalysisResult> find(String analysisId) {
+        return Optional.ofNullable(mongoTemplate.findById(analysisId, AnalysisResult.class));
+    }
+
+    private static boolean isFinal(AnalysisResult result) {
+        return "COMPLETED".equals(result.getAnalysisStatus()) || "FAILED".equals(result.getAnalysisStatus());
+    }
+}
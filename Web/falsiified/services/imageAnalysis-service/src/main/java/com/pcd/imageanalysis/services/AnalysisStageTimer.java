@@ -0,0 +1,150 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.tracing.Span;
+import io.micrometer.tracing.Tracer;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Times the stages of an analysis. Each stage is recorded three ways: the {@code analysis.stage} timer
+ * tagged by stage, model arch, model version and outcome; a tracing span; and an entry in
+ * {@link AnalysisResult#getStageTimingsMs()}, so a slow analysis can be diagnosed after the fact.
+ * <p>
+ * Stages measured inside Python (preprocessing, inference, each XAI method) are reported in the worker
+ * response and recorded with {@link #recordReported}; they show up as timers and stored timings but not as
+ * separate spans, being part of the span of the call that returned them.
+ */
+@Component
+public class AnalysisStageTimer {
+
+    public static final String STAGE_TIMINGS_KEY = "stageTimingsMs";
+
+    private final MeterRegistry meterRegistry;
+    private final Tracer tracer;
+
+    @Autowired
+    public AnalysisStageTimer(MeterRegistry meterRegistry, ObjectProvider<Tracer> tracer) {
+        this.meterRegistry = meterRegistry;
+        this.tracer = tracer.getIfAvailable(() -> Tracer.NOOP);
+    }
+
+    @FunctionalInterface
+    public interface Stage<T> {
+        T run() throws IOException, InterruptedException;
+    }
+
+    /**
+     * Runs {@code stage} in its own span and records its duration. A thrown exception marks the outcome
+     * as {@code error} and is rethrown.
+     */
+    public <T> T time(AnalysisResult result, String name, ModelDescriptor model, Stage<T> stage)
+            throws IOException, InterruptedException {
+        return time(result, name, model, stage, true);
+    }
+
+    /**
+     * Like {@link #timeUnchecked} but recorded only as the timer and span, for a stage that ends after the
+     * analysis document is written, such as writing it.
+     */
+    public <T> T timeUnstored(AnalysisResult result, String name, ModelDescriptor model, Supplier<T> stage) {
+        try {
+            return time(result, name, model, stage::get, false);
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException("Unexpected checked exception from stage " + name, e);
+        }
+    }
+
+    private <T> T time(AnalysisResult result, String name, ModelDescriptor model, Stage<T> stage, boolean stored)
+            throws IOException, InterruptedException {
+        Span span = tracer.nextSpan().name("analysis." + name)
+                .tag("analysis.id", String.valueOf(result.getId()))
+                .tag("model.arch", arch(model))
+                .tag("model.version", version(model))
+                .start();
+        long start = System.nanoTime();
+        String outcome = "success";
+        try (Tracer.SpanInScope ignored = tracer.withSpan(span)) {
+            return stage.run();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            outcome = "error";
+            span.error(e);
+            throw e;
+        } finally {
+            long nanos = System.nanoTime() - start;
+            span.tag("outcome", outcome);
+            span.end();
+            record(stored ? result : null, name, model, nanos, outcome);
+        }
+    }
+
+    /**
+     * Like {@link #time} for work that throws no checked exception.
+     */
+    public <T> T timeUnchecked(AnalysisResult result, String name, ModelDescriptor model, Supplier<T> stage) {
+        try {
+            return time(result, name, model, stage::get);
+        } catch (IOException | InterruptedException e) {
+            throw new IllegalStateException("Unexpected checked exception from stage " + name, e);
+        }
+    }
+
+    /**
+     * Records a stage measured elsewhere, such as the time a job spent in the queue.
+     */
+    public void record(AnalysisResult result, String name, ModelDescriptor model, long nanos, String outcome) {
+        timer(name, model, outcome).record(nanos, TimeUnit.NANOSECONDS);
+        if (result != null) {
+            result.getStageTimingsMs().put(name, TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    /**
+     * Removes the stage timings reported by Python from {@code engineResult} and records them.
+     *
+     * @return the reported timings in milliseconds, empty if there were none
+     */
+    public Map<String, Long> recordReported(AnalysisResult result, ModelDescriptor model, Map<String, Object> engineResult) {
+        Map<String, Long> reported = new LinkedHashMap<>();
+        if (engineResult == null || !(engineResult.remove(STAGE_TIMINGS_KEY) instanceof Map<?, ?> timings)) {
+            return reported;
+        }
+        for (Map.Entry<?, ?> entry : timings.entrySet()) {
+            if (entry.getValue() instanceof Number millis) {
+                String name = entry.getKey().toString();
+                record(result, name, model, TimeUnit.MICROSECONDS.toNanos(Math.round(millis.doubleValue() * 1000)), "success");
+                reported.put(name, Math.round(millis.doubleValue()));
+            }
+        }
+        return reported;
+    }
+
+    private Timer timer(String name, ModelDescriptor model, String outcome) {
+        return Timer.builder("analysis.stage")
+                .description("Duration of one stage of an image analysis")
+                .tag("stage", name)
+                .tag("arch", arch(model))
+                .tag("version", version(model))
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static String arch(ModelDescriptor model) {
+        return model != null && model.getArch() != null ? model.getArch() : "none";
+    }
+
+    private static String version(ModelDescriptor model) {
+        return model != null && model.getVersion() != null ? model.getVersion() : "none";
+    }
+}
@@ -0,0 +1,201 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.DetectionDetails;
+import com.pcd.imageanalysis.model.XaiQuality;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rewrites analysis documents stored before {@link DetectionDetails} schema version 2: the verbatim engine
+ * output under {@code detectionDetails} and the top-level {@code xaiQuality} become the typed {@code dd}
+ * field, and {@code stageTimingsMs} moves to {@code tm}.
+ * <p>
+ * Runs in the background after startup, a batch at a time, and only touches documents that still have the
+ * old field, so it is safe to run on every instance and to interrupt. Until a document is migrated its
+ * details read as empty. The BSON size of each document before and after is recorded in
+ * {@code analysis.result.document.bytes}.
+ */
+@Component
+public class DetectionDetailsMigration {
+    private static final Logger log = LoggerFactory.getLogger(DetectionDetailsMigration.class);
+
+    private static final String LEGACY_FIELD = "detectionDetails";
+
+    private final MongoTemplate mongoTemplate;
+    private final DistributionSummary legacyBytes;
+    private final DistributionSummary migratedBytes;
+
+    @Value("${analysis.schema-migration.enabled:true}")
+    private boolean enabled;
+
+    @Value("${analysis.schema-migration.batch-size:200}")
+    private int batchSize;
+
+    @Autowired
+    public DetectionDetailsMigration(MongoTemplate mongoTemplate, MeterRegistry meterRegistry) {
+        this.mongoTemplate = mongoTemplate;
+        this.legacyBytes = documentBytes(meterRegistry, "1");
+        this.migratedBytes = documentBytes(meterRegistry, String.valueOf(DetectionDetails.SCHEMA_VERSION));
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        Thread thread = new Thread(this::migrate, "detection-details-migration");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void migrate() {
+        String collection = mongoTemplate.getCollectionName(AnalysisResult.class);
+        DocumentCodec codec = new DocumentCodec(mongoTemplate.getDb().getCodecRegistry());
+        long documents = 0;
+        long bytesBefore = 0;
+        long bytesAfter = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Document> batch = mongoTemplate.find(
+                        Query.query(Criteria.where(LEGACY_FIELD).exists(true)).limit(batchSize), Document.class, collection);
+                if (batch.isEmpty()) {
+                    break;
+                }
+                BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, collection);
+                for (Document legacy : batch) {
+                    Document migrated = migrate(legacy);
+                    long before = bsonSize(legacy, codec);
+                    long after = bsonSize(migrated, codec);
+                    legacyBytes.record(before);
+                    migratedBytes.record(after);
+                    bytesBefore += before;
+                    bytesAfter += after;
+                    bulk.replaceOne(unchangedSince(legacy), migrated);
+                }
+                bulk.execute();
+                documents += batch.size();
+            }
+        } catch (RuntimeException e) {
+            log.error("Detection details migration stopped after {} documents; it resumes on the next start", documents, e);
+        }
+        if (documents > 0) {
+            log.info("Migrated {} analysis documents to detection details schema {}: {} bytes before, {} after ({}%)",
+                    documents, DetectionDetails.SCHEMA_VERSION, bytesBefore, bytesAfter,
+                    bytesBefore == 0 ? 0 : Math.round(100.0 * bytesAfter / bytesBefore));
+        }
+    }
+
+    /**
+     * Matches the document only while it still looks as it did when read. A visualization generated lazily
+     * in the meantime writes {@code dd.xv.<type>} and {@code tm.xai-<type>}; the replacement is then skipped
+     * and the document migrated again, with those entries, in the next batch.
+     */
+    private static Query unchangedSince(Document legacy) {
+        Criteria criteria = Criteria.where("_id").is(legacy.get("_id")).and(LEGACY_FIELD).exists(true);
+        for (String field : new String[]{AnalysisResult.DETECTION_DETAILS_FIELD, AnalysisResult.STAGE_TIMINGS_FIELD}) {
+            criteria = legacy.containsKey(field)
+                    ? criteria.and(field).is(legacy.get(field))
+                    : criteria.and(field).exists(false);
+        }
+        return Query.query(criteria);
+    }
+
+    /**
+     * Converts one schema 1 document. Entries already written in the new shape, by a visualization
+     * generated before the document was migrated, win over the ones converted from the old fields.
+     */
+    Document migrate(Document legacy) {
+        Document migrated = new Document(legacy);
+        Object details = migrated.remove(LEGACY_FIELD);
+        Object qualities = migrated.remove("xaiQuality");
+        Object timings = migrated.remove("stageTimingsMs");
+        Object writtenDetails = migrated.remove(AnalysisResult.DETECTION_DETAILS_FIELD);
+        Object writtenTimings = migrated.remove(AnalysisResult.STAGE_TIMINGS_FIELD);
+
+        Document mergedTimings = new Document();
+        putAll(mergedTimings, timings);
+        putAll(mergedTimings, writtenTimings);
+        if (!mergedTimings.isEmpty()) {
+            migrated.put(AnalysisResult.STAGE_TIMINGS_FIELD, mergedTimings);
+        }
+
+        Document typedDetails = null;
+        if (details instanceof Map<?, ?> engineResult && !engineResult.isEmpty()) {
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) engineResult;
+            DetectionDetails typed = DetectionDetails.from(result, null, migrated.getString("inferenceEngine"),
+                    parseQualities(qualities, result.get("xaiQuality")));
+            typedDetails = (Document) mongoTemplate.getConverter().convertToMongoType(typed);
+        }
+        if (writtenDetails instanceof Map<?, ?> written) {
+            if (typedDetails == null) {
+                typedDetails = new Document();
+            }
+            Document visualizations = new Document();
+            putAll(visualizations, typedDetails.get(DetectionDetails.XAI_VISUALIZATIONS_FIELD));
+            putAll(visualizations, written.get(DetectionDetails.XAI_VISUALIZATIONS_FIELD));
+            typedDetails.put(DetectionDetails.XAI_VISUALIZATIONS_FIELD, visualizations);
+        }
+        if (typedDetails != null) {
+            migrated.put(AnalysisResult.DETECTION_DETAILS_FIELD, typedDetails);
+        }
+        return migrated;
+    }
+
+    private static void putAll(Document target, Object source) {
+        if (source instanceof Map<?, ?> map) {
+            map.forEach((key, value) -> target.put(key.toString(), value));
+        }
+    }
+
+    /**
+     * Tiers recorded by the analysis itself, overridden by those recorded when a visualization was generated
+     * later; unknown names are left out and read as STANDARD.
+     */
+    static Map<String, XaiQuality> parseQualities(Object stored, Object reported) {
+        Map<String, XaiQuality> qualities = new HashMap<>();
+        for (Object source : new Object[]{reported, stored}) {
+            if (source instanceof Map<?, ?> map) {
+                map.forEach((type, quality) -> {
+                    try {
+                        qualities.put(type.toString(), XaiQuality.valueOf(String.valueOf(quality)));
+                    } catch (IllegalArgumentException ignored) {
+                        // not a tier name
+                    }
+                });
+            }
+        }
+        return qualities;
+    }
+
+    private static long bsonSize(Document document, DocumentCodec codec) {
+        return new RawBsonDocument(document, codec).getByteBuffer().remaining();
+    }
+
+    private static DistributionSummary documentBytes(MeterRegistry meterRegistry, String schema) {
+        return DistributionSummary.builder("analysis.result.document.bytes")
+                .description("BSON size of analysis documents seen by the detection details migration")
+                .tag("schema", schema)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,210 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Two-stage cascade over the PyTorch engine: the serving (cheap) model classifies every image, and only
+ * when its score falls inside {@code analysis.ensemble.uncertainty-band} is the image also run through
+ * {@code analysis.ensemble.secondary-version} and the two scores combined by weight. Confident images exit
+ * after the first stage, so the average cost stays close to the cheap model's.
+ * <p>
+ * The secondary model's workers are pinned in the {@link PythonWorkerPool} so escalations do not pay for
+ * a model load. Each result carries an {@code ensemble} section with the per-model scores and
+ * contributions, whether it exited early, and the early-exit rate so far.
+ */
+@Service
+public class EnsembleInferenceEngine implements InferenceEngine {
+    private static final Logger log = LoggerFactory.getLogger(EnsembleInferenceEngine.class);
+
+    private final PyTorchModelService pyTorchModelService;
+    private final ModelRegistry modelRegistry;
+    private final PythonWorkerPool workerPool;
+    private final Counter earlyExitCounter;
+    private final Counter escalatedCounter;
+    private final Counter secondaryFailedCounter;
+    private final AtomicLong decisions = new AtomicLong();
+    private final AtomicLong earlyExits = new AtomicLong();
+
+    @Value("${analysis.ensemble.enabled:false}")
+    private boolean enabled;
+
+    @Value("${analysis.ensemble.secondary-version:}")
+    private String secondaryVersion;
+
+    @Value("${analysis.ensemble.secondary-workers:1}")
+    private int secondaryWorkers;
+
+    @Value("${analysis.ensemble.uncertainty-band.lower:0.2}")
+    private double bandLower;
+
+    @Value("${analysis.ensemble.uncertainty-band.upper:0.8}")
+    private double bandUpper;
+
+    @Value("${analysis.ensemble.primary-weight:0.4}")
+    private double primaryWeight;
+
+    @Value("${analysis.ensemble.secondary-weight:0.6}")
+    private double secondaryWeight;
+
+    @Value("${analysis.ensemble.threshold:0.5}")
+    private double threshold;
+
+    @Autowired
+    public EnsembleInferenceEngine(PyTorchModelService pyTorchModelService,
+                                   ModelRegistry modelRegistry,
+                                   PythonWorkerPool workerPool,
+                                   MeterRegistry meterRegistry) {
+        this.pyTorchModelService = pyTorchModelService;
+        this.modelRegistry = modelRegistry;
+        this.workerPool = workerPool;
+        this.earlyExitCounter = decisionCounter(meterRegistry, "early-exit");
+        this.escalatedCounter = decisionCounter(meterRegistry, "escalated");
+        this.secondaryFailedCounter = decisionCounter(meterRegistry, "secondary-failed");
+    }
+
+    private static Counter decisionCounter(MeterRegistry meterRegistry, String outcome) {
+        return Counter.builder("analysis.ensemble.decisions")
+                .description("Ensemble analyses by whether the second model was needed")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Optional<ModelDescriptor> secondary = secondaryModel();
+        if (secondary.isEmpty()) {
+            log.error("Ensemble enabled but secondary model version '{}' is not in the registry", secondaryVersion);
+            return;
+        }
+        workerPool.pin(secondary.get(), secondaryWorkers);
+        log.info("Ensemble engine escalates scores in [{}, {}] to model {} ({}), weights {}/{}",
+                bandLower, bandUpper, secondaryVersion, secondary.get().getArch(), primaryWeight, secondaryWeight);
+    }
+
+    @Override
+    public String getName() {
+        return "ensemble";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return enabled && secondaryModel().isPresent();
+    }
+
+    @Override
+    public String getConfigurationKey() {
+        String pytorch = pyTorchModelService.getConfigurationKey();
+        return (pytorch.isEmpty() ? "" : pytorch + ",") + "secondary=" + secondaryVersion + ",band=" + bandLower + "-" + bandUpper
+                + ",weights=" + primaryWeight + "/" + secondaryWeight + ",threshold=" + threshold;
+    }
+
+    @Override
+    public Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion
+    ) throws IOException, InterruptedException {
+        Map<String, Object> primary = pyTorchModelService.analyzeImage(
+                imageData, imageName, arch, imgHeight, imgWidth, denseUnits, dropout, modelVersion);
+        double primaryScore = score(primary);
+        List<Map<String, Object>> models = new ArrayList<>();
+
+        if (primaryScore < bandLower || primaryScore > bandUpper) {
+            earlyExitCounter.increment();
+            models.add(contribution(primary, arch, primaryScore, 1.0));
+            return withEnsemble(primary, primaryScore, true, models, null);
+        }
+
+        ModelDescriptor secondary = secondaryModel()
+                .orElseThrow(() -> new IOException("Secondary ensemble model " + secondaryVersion + " is not registered"));
+        Map<String, Object> secondaryResult;
+        try {
+            secondaryResult = pyTorchModelService.analyzeImage(imageData, imageName, secondary.getArch(),
+                    secondary.getImgHeight(), secondary.getImgWidth(), secondary.getDenseUnits(), secondary.getDropout(),
+                    secondary.getVersion(), List.of());
+        } catch (IOException e) {
+            // The first stage already has an answer; report it rather than failing the analysis.
+            log.warn("Secondary ensemble model {} failed for image {}, keeping the primary score: {}",
+                    secondary.getVersion(), imageName, e.getMessage());
+            secondaryFailedCounter.increment();
+            models.add(contribution(primary, arch, primaryScore, 1.0));
+            return withEnsemble(primary, primaryScore, false, models, e.getMessage());
+        }
+        escalatedCounter.increment();
+
+        double secondaryScore = score(secondaryResult);
+        double totalWeight = primaryWeight + secondaryWeight;
+        double combined = (primaryWeight * primaryScore + secondaryWeight * secondaryScore) / totalWeight;
+        models.add(contribution(primary, arch, primaryScore, primaryWeight / totalWeight));
+        models.add(contribution(secondaryResult, secondary.getArch(), secondaryScore, secondaryWeight / totalWeight));
+        log.debug("Ensemble escalated image {}: {} -> {}, {} -> {}, combined {}", imageName,
+                arch, primaryScore, secondary.getArch(), secondaryScore, combined);
+        return withEnsemble(primary, combined, false, models, null);
+    }
+
+    private Map<String, Object> withEnsemble(Map<String, Object> primary, double score, boolean earlyExit,
+                                             List<Map<String, Object>> models, String secondaryError) {
+        long total = decisions.incrementAndGet();
+        long exits = earlyExit ? earlyExits.incrementAndGet() : earlyExits.get();
+
+        Map<String, Object> ensemble = new LinkedHashMap<>();
+        ensemble.put("strategy", "cascade");
+        ensemble.put("uncertaintyBand", List.of(bandLower, bandUpper));
+        ensemble.put("earlyExit", earlyExit);
+        ensemble.put("earlyExitRate", (double) exits / total);
+        ensemble.put("models", models);
+        if (secondaryError != null) {
+            ensemble.put("secondaryError", secondaryError);
+        }
+
+        primary.put("confidenceScore", score);
+        primary.put("isFalsified", score > threshold);
+        primary.put("ensemble", ensemble);
+        return primary;
+    }
+
+    private static Map<String, Object> contribution(Map<String, Object> result, String arch, double score, double weight) {
+        Map<String, Object> model = new LinkedHashMap<>();
+        model.put("modelVersion", result.get("modelVersion"));
+        model.put("arch", arch);
+        model.put("score", score);
+        model.put("weight", weight);
+        model.put("contribution", weight * score);
+        return model;
+    }
+
+    private static double score(Map<String, Object> result) throws IOException {
+        if (result.get("confidenceScore") instanceof Number number) {
+            return number.doubleValue();
+        }
+        throw new IOException("Model result has no confidenceScore: " + result);
+    }
+
+    private Optional<ModelDescriptor> secondaryModel() {
+        return secondaryVersion.isBlank() ? Optional.empty() : modelRegistry.get(secondaryVersion);
+    }
+}
@@ -0,0 +1,79 @@
+package com.pcd.imageanalysis.services;
+
+import com.mongodb.client.gridfs.model.GridFSFile;
+import org.bson.Document;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.gridfs.GridFsCriteria;
+import org.springframework.data.mongodb.gridfs.GridFsResource;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Optional;
+
+/**
+ * Stores XAI artifacts in a GridFS bucket so every analysis-service instance can serve them.
+ */
+@Service
+@ConditionalOnProperty(name = "analysis.xai.store.type", havingValue = "gridfs", matchIfMissing = true)
+public class GridFsXaiArtifactStore implements XaiArtifactStore {
+    private static final Logger log = LoggerFactory.getLogger(GridFsXaiArtifactStore.class);
+
+    private final GridFsTemplate gridFsTemplate;
+
+    @Autowired
+    public GridFsXaiArtifactStore(MongoDatabaseFactory mongoDatabaseFactory,
+                                  MongoConverter mongoConverter,
+                                  @Value("${analysis.xai.store.gridfs.bucket:xai_artifacts}") String bucket) {
+        this.gridFsTemplate = new GridFsTemplate(mongoDatabaseFactory, mongoConverter, bucket);
+    }
+
+    @Override
+    public String getName() {
+        return "gridfs";
+    }
+
+    @Override
+    public String store(Path file, String contentType) throws IOException {
+        String artifactId = XaiArtifactStore.contentHash(file);
+        if (exists(artifactId)) {
+            return artifactId;
+        }
+        try (InputStream in = Files.newInputStream(file)) {
+            gridFsTemplate.store(in, artifactId, contentType,
+                    new Document("createdAt", Instant.now().toString()));
+        }
+        log.debug("Stored XAI artifact {} ({} bytes) in GridFS", artifactId, Files.size(file));
+        return artifactId;
+    }
+
+    @Override
+    public boolean exists(String artifactId) {
+        return findFile(artifactId) != null;
+    }
+
+    @Override
+    public Optional<Artifact> open(String artifactId) throws IOException {
+        GridFSFile file = findFile(artifactId);
+        if (file == null) {
+            return Optional.empty();
+        }
+        GridFsResource resource = gridFsTemplate.getResource(file);
+        return Optional.of(new Artifact(artifactId, resource.getContentType(), file.getLength(), resource.getInputStream()));
+    }
+
+    private GridFSFile findFile(String artifactId) {
+        return gridFsTemplate.findOne(Query.query(GridFsCriteria.whereFilename().is(artifactId)));
+    }
+}
@@ -1,33 +1,54 @@
 package com.pcd.imageanalysis.services;
 
 import com.pcd.imageanalysis.client.ImageServiceClient;
+import com.pcd.imageanalysis.model.AnalysisCacheEntry;
 import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.DetectionDetails;
 import com.pcd.imageanalysis.model.Image;
+import com.pcd.imageanalysis.model.ModelDescriptor;
 import com.pcd.imageanalysis.repository.AnalysisResultRepository;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.types.ObjectId;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.stereotype.Service;
 
 import java.io.IOException;
-import java.nio.file.Files;
-import java.nio.file.Path;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 @Service
 public class ImageAnalysisService {
     private static final Logger log = LoggerFactory.getLogger(ImageAnalysisService.class);
 
     private final ImageServiceClient imageServiceClient;
-    private final PyTorchModelService modelService;
+    private final Map<String, InferenceEngine> inferenceEngines;
     private final AnalysisResultRepository resultRepository;
     private final KafkaNotificationService kafkaNotificationService;
+    private final MongoTemplate mongoTemplate;
+    private final AnalysisCacheService analysisCacheService;
+    private final AdmissionLimiter admissionLimiter;
+    private final ModelRegistry modelRegistry;
+    private final AnalysisStageTimer stageTimer;
+    private final AnalysisSingleFlight singleFlight;
+    private final AnalysisOutbox analysisOutbox;
+    private final DistributionSummary downloadedBytes;
+    private final MeterRegistry meterRegistry;
 
     @Value("${analysis.service.user-id:ANALYSIS_SERVICE}")
     private String serviceUserId;
@@ -35,96 +56,197 @@ public class ImageAnalysisService {
     @Value("${analysis.service.user-role:SYSTEM}")
     private String serviceUserRole;
 
-    @Value("${analysis.model.default.arch:MobileNetV3_Large}")
-    private String defaultModelArchitecture;
-    @Value("${analysis.model.default.height:224}")
-    private int defaultModelImgHeight;
-    @Value("${analysis.model.default.width:224}")
-    private int defaultModelImgWidth;
-    @Value("${analysis.model.default.dense:768}")
-    private int defaultModelDenseUnits;
-    @Value("${analysis.model.default.dropout:0.45}")
-    private double defaultModelDropout;
-    @Value("${analysis.model.default.version:1.0.0-mobilenetv3l-dense768}")
-    private String defaultModelVersion;
+    @Value("${analysis.image-status.events:true}")
+    private boolean statusEvents;
+
+    @Value("${analysis.inference.engine:pytorch}")
+    private String defaultInferenceEngine;
 
     @Autowired
     public ImageAnalysisService(
             ImageServiceClient imageServiceClient,
-            PyTorchModelService modelService,
+            List<InferenceEngine> inferenceEngines,
             AnalysisResultRepository resultRepository,
-            KafkaNotificationService kafkaNotificationService
+            KafkaNotificationService kafkaNotificationService,
+            MongoTemplate mongoTemplate,
+            AnalysisCacheService analysisCacheService,
+            AdmissionLimiter admissionLimiter,
+            ModelRegistry modelRegistry,
+            AnalysisStageTimer stageTimer,
+            AnalysisSingleFlight singleFlight,
+            AnalysisOutbox analysisOutbox,
+            MeterRegistry meterRegistry
     ) {
         this.imageServiceClient = imageServiceClient;
-        this.modelService = modelService;
+        this.inferenceEngines = inferenceEngines.stream()
+                .collect(Collectors.toMap(InferenceEngine::getName, Function.identity()));
         this.resultRepository = resultRepository;
         this.kafkaNotificationService = kafkaNotificationService;
+        this.mongoTemplate = mongoTemplate;
+        this.analysisCacheService = analysisCacheService;
+        this.admissionLimiter = admissionLimiter;
+        this.modelRegistry = modelRegistry;
+        this.stageTimer = stageTimer;
+        this.singleFlight = singleFlight;
+        this.analysisOutbox = analysisOutbox;
+        this.downloadedBytes = bytesCopiedSummary(meterRegistry, "download");
+        this.meterRegistry = meterRegistry;
     }
 
     public Optional<AnalysisResult> analyzeImage(String imageId, String userId) {
-        log.info("Starting analysis for image ID: {}", imageId);
+        return analyzeImage(imageId, userId, null);
+    }
+
+    /**
+     * Runs an analysis on the calling thread. If the same image is already being analysed with the same
+     * model version and engine, here or on another instance, waits for that analysis and returns its result.
+     *
+     * @throws AnalysisOverloadedException if too many analyses are already waiting for an inference slot
+     */
+    public Optional<AnalysisResult> analyzeImage(String imageId, String userId, String engine) {
+        admissionLimiter.checkAdmission();
+        String engineName = engine != null ? engine : defaultInferenceEngine;
+        String modelVersion = getCurrentModelVersion();
+        String key = AnalysisSingleFlight.key(imageId, modelVersion, engineName);
+        try {
+            while (true) {
+                String analysisId = new ObjectId().toHexString();
+                Optional<String> runningId = singleFlight.claim(key, imageId, modelVersion, engineName, analysisId);
+                if (runningId.isEmpty()) {
+                    log.info("Starting analysis for image ID: {}", imageId);
+                    Optional<AnalysisResult> outcome = Optional.empty();
+                    try {
+                        AnalysisResult result = createAnalysisResult(analysisId, imageId, userId, "IN_PROGRESS", engine);
+                        outcome = runAnalysis(result);
+                        return outcome;
+                    } finally {
+                        singleFlight.release(key, analysisId, outcome);
+                    }
+                }
+                Optional<AnalysisResult> shared = singleFlight.await(key, runningId.get());
+                if (shared.isPresent()) {
+                    return shared;
+                }
+                log.warn("Analysis {} of image ID {} lost its claim before finishing, taking over",
+                        runningId.get(), imageId);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted while waiting for a running analysis of image ID {}", imageId);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Persists a QUEUED result whose id doubles as the job id for asynchronous analyses. The work itself
+     * is done later by {@link #runAnalysis(AnalysisResult)}.
+     */
+    public AnalysisResult queueAnalysis(String imageId, String userId, String engine) {
+        return queueAnalysis(null, imageId, userId, engine);
+    }
+
+    /**
+     * Like {@link #queueAnalysis(String, String, String)} with a caller-chosen id, so the id can be claimed
+     * before the document exists.
+     */
+    public AnalysisResult queueAnalysis(String analysisId, String imageId, String userId, String engine) {
+        log.info("Queueing analysis for image ID: {}", imageId);
+        return createAnalysisResult(analysisId, imageId, userId, "QUEUED", engine);
+    }
+
+    /**
+     * Returns the engine that serves {@code engine}, the configured default when it is null.
+     */
+    public String resolveInferenceEngineName(String engine) {
+        return engine != null ? engine : defaultInferenceEngine;
+    }
+
+    public String getCurrentModelVersion() {
+        return modelRegistry.active().getVersion();
+    }
+
+    /**
+     * Returns whether the named engine, or the configured default when {@code engine} is null, can
+     * currently serve requests.
+     */
+    public boolean isInferenceEngineAvailable(String engine) {
+        InferenceEngine inferenceEngine = inferenceEngines.get(engine != null ? engine : defaultInferenceEngine);
+        return inferenceEngine != null && inferenceEngine.isAvailable();
+    }
 
+    private InferenceEngine resolveInferenceEngine(String engine) {
+        String name = engine != null ? engine : defaultInferenceEngine;
+        InferenceEngine inferenceEngine = inferenceEngines.get(name);
+        if (inferenceEngine == null || !inferenceEngine.isAvailable()) {
+            throw new IllegalStateException("Inference engine not available: " + name);
+        }
+        return inferenceEngine;
+    }
+
+    private AnalysisResult createAnalysisResult(String analysisId, String imageId, String userId, String status,
+                                                String engine) {
         AnalysisResult result = new AnalysisResult();
+        result.setId(analysisId);
         result.setImageId(imageId);
         result.setDate(LocalDateTime.now());
-        result.setAnalysisStatus("IN_PROGRESS");
+        result.setAnalysisStatus(status);
+        result.setAnalysisStage(status);
         result.setAnalysisType("AUTOMATIC");
         result.setAnalyzedBy(userId);
+        result.setInferenceEngine(engine != null ? engine : defaultInferenceEngine);
+        return resultRepository.save(result);
+    }
 
-        result = resultRepository.save(result);
+    public void failQueuedAnalysis(AnalysisResult result, String reason) {
+        result.setAnalysisStatus("FAILED");
+        result.setAnalysisStage("FAILED");
+        result.setErrorMessage(reason);
+        resultRepository.save(result);
+    }
+
+    public Optional<AnalysisResult> runAnalysis(AnalysisResult result) {
+        String imageId = result.getImageId();
+        if (!"IN_PROGRESS".equals(result.getAnalysisStatus())) {
+            result.setAnalysisStatus("IN_PROGRESS");
+            result = resultRepository.save(result);
+        }
 
-        Path tempImagePath = null;
+        ModelDescriptor model = modelRegistry.active();
+        AnalysisResult analysis = result;
         try {
-            Optional<Image> imageOpt = imageServiceClient.getImageMetadata(imageId);
+            updateStage(result, "FETCHING_METADATA");
+            Optional<Image> imageOpt = stageTimer.time(result, "metadata", model,
+                    () -> imageServiceClient.getImageMetadata(imageId));
             if (imageOpt.isEmpty()) {
                 throw new IllegalArgumentException("Image metadata not found with ID: " + imageId);
             }
             Image image = imageOpt.get();
             result.setCaseId(image.getCaseId());
 
-            boolean statusUpdated = imageServiceClient.updateImageAnalysisStatus(imageId, "ANALYZING", serviceUserId, serviceUserRole);
-            if (!statusUpdated) {
-                log.warn("Failed to update image status to ANALYZING for image ID: {}. Aborting analysis.", imageId);
-                throw new IOException("Failed to update image status before analysis for ID: " + imageId);
-            }
-
-            String safeFilename = image.getOriginalFilename() != null ? image.getOriginalFilename().replaceAll("[^a-zA-Z0-9.\\-]", "_") : "image";
-            tempImagePath = Files.createTempFile("analysis_", "_" + safeFilename);
-            log.debug("Created temporary image file: {}", tempImagePath);
-
-            boolean downloadSuccess = imageServiceClient.downloadImageToFile(
-                    imageId, serviceUserId, serviceUserRole, "Automated falsification analysis", tempImagePath
-            );
+            String modelArchitecture = model.getArch();
+            int modelImgHeight = model.getImgHeight();
+            int modelImgWidth = model.getImgWidth();
+            int modelDenseUnits = model.getDenseUnits();
+            double modelDropout = model.getDropout();
+            String modelVersionToLog = model.getVersion();
+            InferenceEngine inferenceEngine = resolveInferenceEngine(result.getInferenceEngine());
 
-            if (!downloadSuccess) {
-                log.error("Failed to download image data directly to file for ID: {}", imageId);
-                throw new IOException("Failed to download image data for ID: " + imageId);
-            }
+            Optional<AnalysisCacheEntry> cached = analysisCacheService.lookup(
+                    image.getSha256Hash(), modelVersionToLog, modelArchitecture, modelImgHeight, modelImgWidth,
+                    inferenceEngine.getName(), inferenceEngine.getConfigurationKey());
 
-            if (Files.size(tempImagePath) == 0) {
-                log.error("Downloaded image file is empty for ID: {}", imageId);
-                throw new IOException("Downloaded image file is empty for ID: " + imageId);
+            Map<String, Object> analysisResults;
+            if (cached.isPresent()) {
+                log.info("Reusing cached analysis {} for image ID: {} (sha256 {})",
+                        cached.get().getAnalysisId(), imageId, image.getSha256Hash());
+                analysisResults = new HashMap<>(cached.get().getDetectionDetails());
+                result.setSourceAnalysisId(cached.get().getAnalysisId());
+            } else {
+                analysisResults = downloadAndAnalyze(result, image, inferenceEngine, model,
+                        modelArchitecture, modelImgHeight, modelImgWidth, modelDenseUnits, modelDropout, modelVersionToLog);
+                log.info("Model analysis completed for image ID: {}", imageId);
             }
 
-            String modelArchitecture = defaultModelArchitecture;
-            int modelImgHeight = defaultModelImgHeight;
-            int modelImgWidth = defaultModelImgWidth;
-            int modelDenseUnits = defaultModelDenseUnits;
-            double modelDropout = defaultModelDropout;
-            String modelVersionToLog = defaultModelVersion;
-
-            log.debug("Starting model analysis for image ID: {} using temp file: {}", imageId, tempImagePath);
-            Map<String, Object> analysisResults = modelService.analyzeImage(
-                    tempImagePath,
-                    modelArchitecture,
-                    modelImgHeight,
-                    modelImgWidth,
-                    modelDenseUnits,
-                    modelDropout,
-                    modelVersionToLog
-            );
-            log.info("Model analysis completed for image ID: {}", imageId);
-
             Object falsifiedObj = analysisResults.get("isFalsified");
             if (falsifiedObj instanceof Boolean) {
                 result.setIsFalsified((Boolean) falsifiedObj);
@@ -141,53 +263,144 @@ public class ImageAnalysisService {
                 result.setConfidenceScore(null);
             }
 
-            // Store XAI visualization paths
-            Object xaiVisualizationsObj = analysisResults.get("xaiVisualizations");
-            if (xaiVisualizationsObj instanceof Map) {
-                @SuppressWarnings("unchecked")
-                Map<String, String> xaiVisualizations = (Map<String, String>) xaiVisualizationsObj;
-                result.getDetectionDetails().put("xaiVisualizations", xaiVisualizations);
-            }
-
             result.setAnalysisStatus("COMPLETED");
+            result.setAnalysisStage("COMPLETED");
             result.setAnalysisVersion(analysisResults.getOrDefault("modelVersion", modelVersionToLog).toString());
-            result.setDetectionDetails(analysisResults);
+            result.setDetectionDetails(DetectionDetails.from(analysisResults, modelArchitecture,
+                    inferenceEngine.getName(), PyTorchModelService.xaiQualities(analysisResults)));
             result.setDate(LocalDateTime.now());
 
+            if (cached.isEmpty()) {
+                analysisCacheService.store(image.getSha256Hash(), modelVersionToLog, modelArchitecture,
+                        modelImgHeight, modelImgWidth, inferenceEngine.getName(), inferenceEngine.getConfigurationKey(),
+                        result.getId(), analysisResults);
+            }
+
             String finalStatus = Boolean.TRUE.equals(result.getIsFalsified()) ? "FALSIFIED" : "AUTHENTIC";
             log.info("Updating final image status to {} for image ID: {}", finalStatus, imageId);
-            imageServiceClient.updateImageAnalysisStatus(imageId, finalStatus, serviceUserId, serviceUserRole);
+            stageTimer.time(result, "status-final", model,
+                    () -> updateImageStatus(analysis, finalStatus));
 
         } catch (Exception e) {
             log.error("Error analyzing image ID: {}", imageId, e);
             result.setAnalysisStatus("FAILED");
+            result.setAnalysisStage("FAILED");
             result.setErrorMessage(e.getMessage());
 
             try {
                 log.info("Attempting to update image status to ANALYSIS_FAILED for image ID: {}", imageId);
-                imageServiceClient.updateImageAnalysisStatus(imageId, "ANALYSIS_FAILED", serviceUserId, serviceUserRole);
+                updateImageStatus(result, "ANALYSIS_FAILED");
             } catch (Exception updateEx) {
                 log.error("Failed to update image status to ANALYSIS_FAILED for image ID: {} after analysis error.", imageId, updateEx);
             }
-        } finally {
-            if (tempImagePath != null) {
-                try {
-                    boolean deleted = Files.deleteIfExists(tempImagePath);
-                    log.debug("Temporary image file {} deleted: {}", tempImagePath, deleted);
-                } catch (IOException e) {
-                    log.warn("Could not delete temporary image file: {}", tempImagePath, e);
-                }
-            }
         }
 
-        AnalysisResult finalResult = resultRepository.save(result);
-        log.info("Analysis completed for image ID: {} with status: {}", imageId, finalResult.getAnalysisStatus());
-        if ("COMPLETED".equals(finalResult.getAnalysisStatus())) {
-            kafkaNotificationService.notifyAnalysisCompleted(finalResult);
+        if ("COMPLETED".equals(analysis.getAnalysisStatus())) {
+            // Recorded before the save so the event survives a crash right after it; AnalysisOutbox publishes it.
+            stageTimer.timeUnchecked(result, "outbox", model, () -> {
+                analysisOutbox.enqueue(analysis, AnalysisOutbox.ANALYSIS_COMPLETED);
+                return null;
+            });
         }
+        // Ends after the document is written, so it is reported by the timer and span but not stored.
+        AnalysisResult finalResult = stageTimer.timeUnstored(result, "persist", model, () -> resultRepository.save(analysis));
+        log.info("Analysis completed for image ID: {} with status: {}", imageId, finalResult.getAnalysisStatus());
         return Optional.of(finalResult);
     }
 
+    private Map<String, Object> downloadAndAnalyze(
+            AnalysisResult result,
+            Image image,
+            InferenceEngine inferenceEngine,
+            ModelDescriptor model,
+            String modelArchitecture,
+            int modelImgHeight,
+            int modelImgWidth,
+            int modelDenseUnits,
+            double modelDropout,
+            String modelVersionToLog
+    ) throws IOException, InterruptedException {
+        String imageId = result.getImageId();
+        boolean statusUpdated = stageTimer.time(result, "status-update", model,
+                () -> updateImageStatus(result, "ANALYZING"));
+        // The metadata lookup in runAnalysis is what proves the image exists; only a REST update
+        // acknowledges the status change as well.
+        if (!statusEvents && !statusUpdated) {
+            log.warn("Failed to update image status to ANALYZING for image ID: {}. Aborting analysis.", imageId);
+            throw new IOException("Failed to update image status before analysis for ID: " + imageId);
+        }
+
+        updateStage(result, "DOWNLOADING");
+        byte[] imageData = stageTimer.time(result, "download", model, () -> imageServiceClient.downloadImageBytes(
+                imageId, serviceUserId, serviceUserRole, "Automated falsification analysis"
+        ).orElseThrow(() -> new IOException("Failed to download image data for ID: " + imageId)));
+
+        if (imageData.length == 0) {
+            log.error("Downloaded image is empty for ID: {}", imageId);
+            throw new IOException("Downloaded image is empty for ID: " + imageId);
+        }
+        downloadedBytes.record(imageData.length);
+
+        try (AdmissionLimiter.Permit permit = stageTimer.time(result, "admission-wait", model, admissionLimiter::acquire)) {
+            updateStage(result, "INFERENCE");
+            log.debug("Starting model analysis for image ID: {} ({} bytes in memory)", imageId, imageData.length);
+            String imageName = image.getOriginalFilename() != null ? image.getOriginalFilename() : imageId;
+            Map<String, Object> analysisResults = stageTimer.time(result, "inference", model, () -> inferenceEngine.analyzeImage(
+                    imageData,
+                    imageName,
+                    modelArchitecture,
+                    modelImgHeight,
+                    modelImgWidth,
+                    modelDenseUnits,
+                    modelDropout,
+                    modelVersionToLog
+            ));
+            permit.succeeded();
+            // Stages measured inside the engine; taken out so they are not stored with the detection details.
+            stageTimer.recordReported(result, model, analysisResults);
+            return analysisResults;
+        }
+    }
+
+    /**
+     * Bytes of image data copied per analysis, tagged by hop: {@code download} (HTTP body into memory),
+     * {@code worker-pipe} (base64 over a worker's stdin) and {@code process-pipe} (raw bytes into a
+     * one-shot script). Nothing is written to disk on the way.
+     */
+    static DistributionSummary bytesCopiedSummary(MeterRegistry meterRegistry, String hop) {
+        return DistributionSummary.builder("analysis.image.bytes.copied")
+                .description("Image bytes copied per analysis on the way to the model")
+                .baseUnit("bytes")
+                .tag("hop", hop)
+                .register(meterRegistry);
+    }
+
+    /**
+     * Records the current stage with a single-field update so that job status polling stays cheap and the
+     * in-flight document isn't rewritten on every transition.
+     */
+    private void updateStage(AnalysisResult result, String stage) {
+        result.setAnalysisStage(stage);
+        mongoTemplate.updateFirst(
+                Query.query(Criteria.where("_id").is(result.getId())),
+                Update.update("analysisStage", stage),
+                AnalysisResult.class);
+    }
+
+    /**
+     * Reports the image's analysis status to imageManagement-service: as an event when
+     * {@code analysis.image-status.events} is set, which never blocks, otherwise with a REST call.
+     * An event is not acknowledged, so true then only means it was published, not that the image exists.
+     */
+    private boolean updateImageStatus(AnalysisResult result, String status) {
+        if (statusEvents) {
+            kafkaNotificationService.publishImageStatus(result.getImageId(), status, result.getId(),
+                    serviceUserId, serviceUserRole);
+            return true;
+        }
+        return imageServiceClient.updateImageAnalysisStatus(result.getImageId(), status, serviceUserId, serviceUserRole);
+    }
+
     public Optional<AnalysisResult> getAnalysisResult(String imageId) {
         log.debug("Fetching analysis result for image ID: {}", imageId);
         List<AnalysisResult> results = resultRepository.findByImageId(imageId);
@@ -199,6 +412,30 @@ public class ImageAnalysisService {
         return resultRepository.findByCaseId(caseId);
     }
 
+    /**
+     * Returns the analyses of the given images. The summary view leaves out the detection details and stage
+     * timings, which make up most of each document.
+     */
+    public List<AnalysisResult> getAnalysesByImageIds(List<String> imageIds, boolean full) {
+        Query query = Query.query(Criteria.where("imageId").in(imageIds));
+        if (!full) {
+            query.fields().exclude("detectionDetails").exclude("stageTimingsMs");
+        }
+        String view = full ? "full" : "summary";
+        List<AnalysisResult> results = Timer.builder("analysis.result.list.read")
+                .description("Time to read a list of analysis results")
+                .tag("view", view)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(() -> mongoTemplate.find(query, AnalysisResult.class));
+        DistributionSummary.builder("analysis.result.list.documents")
+                .description("Number of analysis results returned per list read")
+                .tag("view", view)
+                .register(meterRegistry)
+                .record(results.size());
+        return results;
+    }
+
     public Optional<AnalysisResult> getAnalysisResultById(String id) {
         log.debug("Fetching analysis result for image ID: {}", id);
         return resultRepository.findById(id);
@@ -0,0 +1,181 @@
+package com.pcd.imageanalysis.services;
+
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Java port of {@code preprocess_image} in detect_falsification.py: RGB conversion, bilinear resize to
+ * the model input size and ImageNet normalization, laid out as a CHW float tensor. Also produces the
+ * resized RGB pixels that are sent to the Python workers instead of the original file.
+ * <p>
+ * The resize reproduces OpenCV's 8-bit INTER_LINEAR, which albumentations' {@code A.Resize} calls, down to
+ * its fixed-point rounding, so the pixels do not depend on how Java2D happens to scale an image.
+ */
+@Component
+public class ImagePreprocessor {
+
+    static final float[] IMAGENET_MEAN = {0.485f, 0.456f, 0.406f};
+    static final float[] IMAGENET_STD = {0.229f, 0.224f, 0.225f};
+
+    // OpenCV's INTER_RESIZE_COEF_BITS
+    private static final int COEF_SCALE = 1 << 11;
+
+    public BufferedImage read(Path imagePath) throws IOException {
+        if (!Files.isRegularFile(imagePath)) {
+            throw new IOException("Image file not found: " + imagePath);
+        }
+        BufferedImage image = ImageIO.read(imagePath.toFile());
+        if (image == null) {
+            throw new IOException("Unsupported or corrupt image file: " + imagePath);
+        }
+        return image;
+    }
+
+    public BufferedImage read(byte[] imageData) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(imageData));
+        if (image == null) {
+            throw new IOException("Unsupported or corrupt image data (" + imageData.length + " bytes)");
+        }
+        return image;
+    }
+
+    /**
+     * Resizes like {@code cv2.resize(..., interpolation=INTER_LINEAR)}: pixel centres are aligned, edges are
+     * clamped and nothing is averaged beyond the two nearest pixels in each direction, however much the image
+     * shrinks. Alpha is dropped without compositing, as PIL's {@code convert('RGB')} does.
+     */
+    public BufferedImage resize(BufferedImage source, int height, int width) {
+        int sourceWidth = source.getWidth();
+        int sourceHeight = source.getHeight();
+        int[] xOffsets = new int[width];
+        int[][] xWeights = new int[2][width];
+        linearTaps(sourceWidth, width, xOffsets, xWeights);
+        int[] yOffsets = new int[height];
+        int[][] yWeights = new int[2][height];
+        linearTaps(sourceHeight, height, yOffsets, yWeights);
+
+        int[] sourceRow = new int[sourceWidth];
+        int[] top = new int[3 * width];
+        int[] bottom = new int[3 * width];
+        int[] pixels = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            int y0 = yOffsets[y];
+            horizontalPass(source, y0, sourceRow, xOffsets, xWeights, top);
+            horizontalPass(source, Math.min(y0 + 1, sourceHeight - 1), sourceRow, xOffsets, xWeights, bottom);
+            int b0 = yWeights[0][y];
+            int b1 = yWeights[1][y];
+            for (int x = 0; x < width; x++) {
+                int rgb = 0;
+                for (int c = 0; c < 3; c++) {
+                    int i = 3 * x + c;
+                    int value = (((b0 * (top[i] >> 4)) >> 16) + ((b1 * (bottom[i] >> 4)) >> 16) + 2) >> 2;
+                    rgb = (rgb << 8) | Math.max(0, Math.min(255, value));
+                }
+                pixels[y * width + x] = rgb;
+            }
+        }
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        resized.setRGB(0, 0, width, height, pixels, 0, width);
+        return resized;
+    }
+
+    /**
+     * Source offset and the two weights, scaled by {@link #COEF_SCALE}, of each output position, computed
+     * as OpenCV does.
+     */
+    private static void linearTaps(int sourceSize, int size, int[] offsets, int[][] weights) {
+        double scale = (double) sourceSize / size;
+        for (int i = 0; i < size; i++) {
+            float f = (float) ((i + 0.5) * scale - 0.5);
+            int offset = (int) Math.floor(f);
+            f -= offset;
+            if (offset < 0) {
+                offset = 0;
+                f = 0;
+            }
+            if (offset >= sourceSize - 1) {
+                offset = sourceSize - 1;
+                f = 0;
+            }
+            offsets[i] = offset;
+            weights[0][i] = (int) Math.rint((1f - f) * COEF_SCALE);
+            weights[1][i] = (int) Math.rint(f * COEF_SCALE);
+        }
+    }
+
+    private static void horizontalPass(BufferedImage source, int y, int[] sourceRow, int[] offsets, int[][] weights,
+                                       int[] out) {
+        readRgbRow(source, y, sourceRow);
+        int last = sourceRow.length - 1;
+        for (int x = 0; x < offsets.length; x++) {
+            int left = sourceRow[offsets[x]];
+            int right = sourceRow[Math.min(offsets[x] + 1, last)];
+            for (int c = 0; c < 3; c++) {
+                int shift = 16 - 8 * c;
+                out[3 * x + c] = ((left >> shift) & 0xFF) * weights[0][x] + ((right >> shift) & 0xFF) * weights[1][x];
+            }
+        }
+    }
+
+    /**
+     * Reads one row as 0xRRGGBB, ignoring alpha. Gray images are read from the raster, since
+     * {@code getRGB} would run their linear gray colour space through the sRGB curve where PIL copies
+     * the level to all three channels.
+     */
+    private static void readRgbRow(BufferedImage source, int y, int[] row) {
+        ColorModel colorModel = source.getColorModel();
+        if (colorModel.getColorSpace().getType() == ColorSpace.TYPE_GRAY && !(colorModel instanceof IndexColorModel)) {
+            source.getRaster().getSamples(0, y, row.length, 1, 0, row);
+            int shift = Math.max(0, colorModel.getComponentSize(0) - 8);
+            for (int x = 0; x < row.length; x++) {
+                int level = Math.min(255, row[x] >> shift);
+                row[x] = (level << 16) | (level << 8) | level;
+            }
+        } else {
+            source.getRGB(0, y, row.length, 1, row, 0, row.length);
+        }
+    }
+
+    /**
+     * Returns a normalized {@code [3, height, width]} tensor in row-major order.
+     */
+    public float[] toNormalizedTensor(BufferedImage source, int height, int width) {
+        BufferedImage resized = source.getWidth() == width && source.getHeight() == height
+                && source.getType() == BufferedImage.TYPE_INT_RGB ? source : resize(source, height, width);
+        int[] pixels = resized.getRGB(0, 0, width, height, null, 0, width);
+        int plane = height * width;
+        float[] tensor = new float[3 * plane];
+        for (int i = 0; i < plane; i++) {
+            int rgb = pixels[i];
+            tensor[i] = (((rgb >> 16) & 0xFF) / 255f - IMAGENET_MEAN[0]) / IMAGENET_STD[0];
+            tensor[plane + i] = (((rgb >> 8) & 0xFF) / 255f - IMAGENET_MEAN[1]) / IMAGENET_STD[1];
+            tensor[2 * plane + i] = ((rgb & 0xFF) / 255f - IMAGENET_MEAN[2]) / IMAGENET_STD[2];
+        }
+        return tensor;
+    }
+
+    /**
+     * Returns the image resized to {@code height x width} as interleaved RGB bytes (HWC, uint8).
+     */
+    public byte[] toRgbBytes(BufferedImage source, int height, int width) {
+        BufferedImage resized = source.getWidth() == width && source.getHeight() == height
+                && source.getType() == BufferedImage.TYPE_INT_RGB ? source : resize(source, height, width);
+        int[] pixels = resized.getRGB(0, 0, width, height, null, 0, width);
+        byte[] rgb = new byte[3 * pixels.length];
+        for (int i = 0; i < pixels.length; i++) {
+            rgb[3 * i] = (byte) (pixels[i] >> 16);
+            rgb[3 * i + 1] = (byte) (pixels[i] >> 8);
+            rgb[3 * i + 2] = (byte) pixels[i];
+        }
+        return rgb;
+    }
+}
@@ -0,0 +1,236 @@
+package com.pcd.imageanalysis.services;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Collects concurrent worker requests for up to {@code analysis.batching.max-size} images or
+ * {@code analysis.batching.max-wait-ms} milliseconds and sends them to a worker as a single
+ * {@code analyze_batch} call, so the model runs one forward pass per batch instead of one per image.
+ * One dispatcher runs per pool worker so batches still execute in parallel.
+ * <p>
+ * Only classification requests are batched. XAI runs one image after another inside the worker, so an
+ * item that asks for explanations would hold up the rest of its batch; those go to the pool directly.
+ */
+@Component
+public class InferenceBatcher {
+    private static final Logger log = LoggerFactory.getLogger(InferenceBatcher.class);
+
+    private final PythonWorkerPool workerPool;
+    private final MeterRegistry meterRegistry;
+    private final BlockingQueue<PendingInference> queue = new LinkedBlockingQueue<>();
+    private ExecutorService dispatchers;
+    private DistributionSummary batchSizeSummary;
+    private Timer queueDelayTimer;
+
+    @Value("${analysis.batching.enabled:true}")
+    private boolean enabled;
+
+    @Value("${analysis.batching.max-size:8}")
+    private int maxBatchSize;
+
+    @Value("${analysis.batching.max-wait-ms:25}")
+    private long maxWaitMillis;
+
+    @Value("${analysis.batching.await-timeout:180s}")
+    private Duration awaitTimeout;
+
+    @Value("${python.timeout:60}")
+    private int pythonTimeout;
+
+    @Autowired
+    public InferenceBatcher(PythonWorkerPool workerPool, MeterRegistry meterRegistry) {
+        this.workerPool = workerPool;
+        this.meterRegistry = meterRegistry;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            log.info("Inference batching disabled");
+            return;
+        }
+        batchSizeSummary = DistributionSummary.builder("analysis.batch.size")
+                .description("Number of images sent to the model in one forward pass")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+        queueDelayTimer = Timer.builder("analysis.batch.queue.delay")
+                .description("Time an image waits for its batch to be dispatched")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+
+        int dispatcherCount = Math.max(1, workerPool.getPoolSize());
+        AtomicInteger threadCounter = new AtomicInteger();
+        dispatchers = Executors.newFixedThreadPool(dispatcherCount, r -> {
+            Thread thread = new Thread(r, "inference-batcher-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < dispatcherCount; i++) {
+            dispatchers.submit(this::dispatchLoop);
+        }
+        log.info("Inference batching enabled: up to {} images or {} ms per batch, {} dispatchers",
+                maxBatchSize, maxWaitMillis, dispatcherCount);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (dispatchers != null) {
+            dispatchers.shutdownNow();
+        }
+        List<PendingInference> abandoned = new ArrayList<>();
+        queue.drainTo(abandoned);
+        abandoned.forEach(p -> p.future.completeExceptionally(new IOException("Inference batcher shut down")));
+    }
+
+    public boolean isEnabled() {
+        return enabled && workerPool.isEnabled() && maxBatchSize > 1;
+    }
+
+    /**
+     * Queues one {@code analyze} item; the future completes with that item's worker response
+     * ({@code result} or {@code error}).
+     */
+    public CompletableFuture<Map<String, Object>> submit(Map<String, Object> item) {
+        PendingInference pending = new PendingInference(item);
+        queue.offer(pending);
+        return pending.future;
+    }
+
+    /**
+     * Queues one {@code analyze} item and waits at most {@code analysis.batching.await-timeout} for its
+     * worker response. An item given up on before its batch is dispatched is left out of the batch.
+     */
+    public Map<String, Object> execute(Map<String, Object> item) throws IOException, InterruptedException {
+        CompletableFuture<Map<String, Object>> future = submit(item);
+        try {
+            return future.get(awaitTimeout.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("Batched inference failed: " + cause.getMessage(), cause);
+        } catch (TimeoutException e) {
+            future.cancel(false);
+            throw new IOException("No batched inference response within " + awaitTimeout);
+        } catch (InterruptedException e) {
+            future.cancel(false);
+            throw e;
+        }
+    }
+
+    private void dispatchLoop() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                List<PendingInference> batch = collectBatch();
+                dispatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                log.error("Unexpected error in inference batcher", e);
+            }
+        }
+    }
+
+    private List<PendingInference> collectBatch() throws InterruptedException {
+        PendingInference first = queue.take();
+        List<PendingInference> batch = new ArrayList<>();
+        batch.add(first);
+        long deadline = first.enqueuedAt + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while (batch.size() < maxBatchSize) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                break;
+            }
+            PendingInference next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+        return batch;
+    }
+
+    private void dispatch(List<PendingInference> batch) {
+        // Callers that timed out or were interrupted while the batch was collected.
+        batch.removeIf(pending -> pending.future.isDone());
+        if (batch.isEmpty()) {
+            return;
+        }
+        long dispatchedAt = System.nanoTime();
+        batchSizeSummary.record(batch.size());
+        List<Map<String, Object>> items = new ArrayList<>(batch.size());
+        for (PendingInference pending : batch) {
+            queueDelayTimer.record(dispatchedAt - pending.enqueuedAt, TimeUnit.NANOSECONDS);
+            items.add(pending.item);
+        }
+        log.debug("Dispatching inference batch of {} images", batch.size());
+
+        try {
+            Map<String, Object> response = workerPool.execute(
+                    Map.of("op", "analyze_batch", "items", items), pythonTimeout);
+            if (response.containsKey("error")) {
+                throw new IOException("Python worker failed to process batch: " + response.get("error"));
+            }
+            Object resultsObj = response.get("results");
+            if (!(resultsObj instanceof List<?> results) || results.size() != batch.size()) {
+                throw new IOException("Python worker returned an unexpected batch response: " + response);
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                Object itemResponse = results.get(i);
+                if (itemResponse instanceof Map) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> typed = (Map<String, Object>) itemResponse;
+                    typed.putIfAbsent("modelVersion", response.get("modelVersion"));
+                    // Time in the batch queue plus the time the batch waited for a worker.
+                    long poolWait = response.get("workerWaitMs") instanceof Number n ? n.longValue() : 0;
+                    typed.put("workerWaitMs",
+                            TimeUnit.NANOSECONDS.toMillis(dispatchedAt - batch.get(i).enqueuedAt) + poolWait);
+                    batch.get(i).future.complete(typed);
+                } else {
+                    batch.get(i).future.completeExceptionally(new IOException("Missing batch result for item " + i));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            batch.forEach(p -> p.future.completeExceptionally(e));
+        } catch (Exception e) {
+            log.error("Inference batch of {} images failed: {}", batch.size(), e.getMessage());
+            batch.forEach(p -> p.future.completeExceptionally(e));
+        }
+    }
+
+    private static final class PendingInference {
+        private final Map<String, Object> item;
+        private final long enqueuedAt = System.nanoTime();
+        private final CompletableFuture<Map<String, Object>> future = new CompletableFuture<>();
+
+        private PendingInference(Map<String, Object> item) {
+            this.item = item;
+        }
+    }
+}
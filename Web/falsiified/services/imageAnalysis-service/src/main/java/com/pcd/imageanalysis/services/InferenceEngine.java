@@ -0,0 +1,43 @@
+package com.pcd.imageanalysis.services;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * Classifies an in-memory image and returns the same result map the Python script produces:
+ * {@code isFalsified}, {@code confidenceScore}, {@code modelVersion}, {@code detectionDetails} and,
+ * where the engine supports it, {@code xaiVisualizations}.
+ */
+public interface InferenceEngine {
+
+    /**
+     * Name used to select the engine through {@code analysis.inference.engine} or the {@code engine}
+     * request parameter.
+     */
+    String getName();
+
+    boolean isAvailable();
+
+    /**
+     * Settings other than the model that change this engine's output. They are part of the analysis cache
+     * key, so results are not reused once the settings change; empty if the model alone decides.
+     */
+    default String getConfigurationKey() {
+        return "";
+    }
+
+    /**
+     * @param imageData encoded image bytes as downloaded from image management
+     * @param imageName original file name, used only to label outputs
+     */
+    Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion
+    ) throws IOException, InterruptedException;
+}
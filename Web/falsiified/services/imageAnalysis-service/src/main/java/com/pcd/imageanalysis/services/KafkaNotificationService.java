@@ -1,18 +1,21 @@
 package com.pcd.imageanalysis.services;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.imageanalysis.model.AnalysisCompletedEvent;
 import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.ImageStatusEvent;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.core.KafkaTemplate;
+import org.springframework.kafka.support.SendResult;
 import org.springframework.stereotype.Service;
 
+import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 
 @Service
 public class KafkaNotificationService {
@@ -24,33 +27,58 @@ public class KafkaNotificationService {
     @Value("${app.kafka.topics.analysis-completed:analysis-completed-topic}")
     private String analysisCompletedTopic;
 
+    @Value("${app.kafka.topics.image-status:image-status-topic}")
+    private String imageStatusTopic;
+
     @Autowired
     public KafkaNotificationService(KafkaTemplate<String, Object> kafkaTemplate, ObjectMapper objectMapper) {
         this.kafkaTemplate = kafkaTemplate;
         this.objectMapper = objectMapper;
     }
 
-    public void notifyAnalysisCompleted(AnalysisResult result) {
-        try {
-            Map<String, Object> event = new HashMap<>();
-            event.put("imageId", result.getImageId());
-            event.put("caseNumber", result.getCaseId());
-            event.put("analysisResults", result.getDetectionDetails());
-
-            // Extract any detected manipulations from the details - customize as needed
-            List<String> detectedManipulations = new ArrayList<>();
-            if (Boolean.TRUE.equals(result.getIsFalsified())) {
-                Map<String, Object> details = result.getDetectionDetails();
-                // Add logic to extract specific manipulation types based on your model output
-                detectedManipulations.add("Digital manipulation detected");
-            }
+    /**
+     * Sends the analysis completed summary; the details are referenced, not embedded. Failures are reported
+     * through the returned future; the outbox relay keeps the event and retries it.
+     */
+    public CompletableFuture<SendResult<String, Object>> sendAnalysisCompleted(AnalysisResult result) {
+        // Extract any detected manipulations from the details - customize as needed
+        List<String> detectedManipulations = new ArrayList<>();
+        if (Boolean.TRUE.equals(result.getIsFalsified())) {
+            // Add logic to extract specific manipulation types based on your model output
+            detectedManipulations.add("Digital manipulation detected");
+        }
 
-            event.put("detectedManipulations", detectedManipulations);
+        AnalysisCompletedEvent event = new AnalysisCompletedEvent(
+                AnalysisCompletedEvent.SCHEMA_VERSION,
+                result.getId(),
+                result.getImageId(),
+                result.getCaseId(),
+                result.getIsFalsified(),
+                result.getConfidenceScore(),
+                result.getAnalysisVersion(),
+                result.getInferenceEngine(),
+                detectedManipulations,
+                // The outbox may relay long after completion; the date is set when the analysis completes.
+                result.getDate() != null
+                        ? result.getDate().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()
+                        : System.currentTimeMillis(),
+                "/api/v1/analysis/" + result.getId()
+        );
+        return kafkaTemplate.send(analysisCompletedTopic, result.getImageId(), event);
+    }
 
-            kafkaTemplate.send(analysisCompletedTopic, result.getImageId(), event);
-            log.info("Sent analysis completed notification for image ID: {}", result.getImageId());
-        } catch (Exception e) {
-            log.error("Failed to send Kafka notification for analysis completion", e);
-        }
+    /**
+     * Publishes an image status change without waiting for the broker. Events are keyed by image id, so the
+     * changes of one image are consumed in the order they were sent.
+     */
+    public void publishImageStatus(String imageId, String status, String analysisId, String userId, String userRole) {
+        long timestamp = System.currentTimeMillis();
+        ImageStatusEvent event = new ImageStatusEvent(imageId, status, analysisId, userId, userRole, timestamp,
+                analysisId + ":" + status + ":" + timestamp);
+        kafkaTemplate.send(imageStatusTopic, imageId, event).whenComplete((sent, e) -> {
+            if (e != null) {
+                log.error("Failed to publish status {} for image ID: {}", status, imageId, e);
+            }
+        });
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,167 @@
+package com.pcd.imageanalysis.services;
+
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Content-addressed directory store ({@code <dir>/ab/abcdef...}) for single-instance deployments.
+ * Reads refresh a file's modification time; once the store grows past its size limit the least
+ * recently used artifacts are evicted.
+ */
+@Service
+@ConditionalOnProperty(name = "analysis.xai.store.type", havingValue = "local")
+public class LocalXaiArtifactStore implements XaiArtifactStore {
+    private static final Logger log = LoggerFactory.getLogger(LocalXaiArtifactStore.class);
+
+    private final AtomicLong totalBytes = new AtomicLong();
+
+    @Value("${analysis.xai.store.local.dir:${java.io.tmpdir}/xai_artifacts}")
+    private String storeDir;
+
+    @Value("${analysis.xai.store.local.max-size-mb:1024}")
+    private long maxSizeMb;
+
+    @Value("${analysis.xai.store.local.content-type:image/png}")
+    private String contentType;
+
+    private Path root;
+
+    @PostConstruct
+    public void init() throws IOException {
+        root = Paths.get(storeDir);
+        Files.createDirectories(root);
+        totalBytes.set(listArtifacts().stream().mapToLong(LocalXaiArtifactStore::sizeOf).sum());
+        log.info("Local XAI artifact store at {} holds {} bytes (limit {} MB)", root, totalBytes.get(), maxSizeMb);
+    }
+
+    @Override
+    public String getName() {
+        return "local";
+    }
+
+    @Override
+    public String store(Path file, String contentType) throws IOException {
+        String artifactId = XaiArtifactStore.contentHash(file);
+        Path target = pathFor(artifactId);
+        if (Files.exists(target)) {
+            Files.setLastModifiedTime(target, FileTime.fromMillis(System.currentTimeMillis()));
+            return artifactId;
+        }
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), artifactId, ".tmp");
+        try {
+            Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING);
+            if (!moveIntoPlace(tmp, target)) {
+                // Stored by a concurrent call since the check above; it has already been counted.
+                return artifactId;
+            }
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        if (totalBytes.addAndGet(Files.size(target)) > maxSizeMb * 1024 * 1024) {
+            evict();
+        }
+        return artifactId;
+    }
+
+    /**
+     * Moves {@code tmp} to {@code target} unless the target exists, so that only the call that created the
+     * artifact counts its size. Serialized because the existence check and the rename are separate steps.
+     */
+    private synchronized boolean moveIntoPlace(Path tmp, Path target) throws IOException {
+        try {
+            Files.move(tmp, target);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    @Override
+    public boolean exists(String artifactId) {
+        return XaiArtifactStore.isArtifactId(artifactId) && Files.isRegularFile(pathFor(artifactId));
+    }
+
+    @Override
+    public Optional<Artifact> open(String artifactId) throws IOException {
+        if (!exists(artifactId)) {
+            return Optional.empty();
+        }
+        Path path = pathFor(artifactId);
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+            return Optional.of(new Artifact(artifactId, contentType, Files.size(path), Files.newInputStream(path)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    private Path pathFor(String artifactId) {
+        return root.resolve(artifactId.substring(0, 2)).resolve(artifactId);
+    }
+
+    private synchronized void evict() throws IOException {
+        long limit = maxSizeMb * 1024 * 1024;
+        if (totalBytes.get() <= limit) {
+            return;
+        }
+        List<Path> artifacts = listArtifacts().stream()
+                .sorted(Comparator.comparingLong(LocalXaiArtifactStore::lastModified))
+                .collect(Collectors.toList());
+        int evicted = 0;
+        for (Path artifact : artifacts) {
+            if (totalBytes.get() <= limit) {
+                break;
+            }
+            long size = sizeOf(artifact);
+            if (Files.deleteIfExists(artifact)) {
+                totalBytes.addAndGet(-size);
+                evicted++;
+            }
+        }
+        log.info("Evicted {} XAI artifacts, store now holds {} bytes", evicted, totalBytes.get());
+    }
+
+    private List<Path> listArtifacts() throws IOException {
+        try (Stream<Path> files = Files.walk(root, 2)) {
+            return files.filter(Files::isRegularFile)
+                    .filter(p -> XaiArtifactStore.isArtifactId(p.getFileName().toString()))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static long sizeOf(Path path) {
+        try {
+            return Files.size(path);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private static long lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path).toMillis();
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Switches the serving model between registry versions. The new version is loaded and warmed up on
+ * standby workers first; traffic moves only once they are ready, and the replaced version is kept as the
+ * rollback target.
+ */
+@Service
+public class ModelDeploymentService {
+    private static final Logger log = LoggerFactory.getLogger(ModelDeploymentService.class);
+
+    private final ModelRegistry modelRegistry;
+    private final PythonWorkerPool workerPool;
+    private final MeterRegistry meterRegistry;
+    private final ReentrantLock switchLock = new ReentrantLock();
+    private volatile String switchingTo;
+
+    @Autowired
+    public ModelDeploymentService(ModelRegistry modelRegistry, PythonWorkerPool workerPool, MeterRegistry meterRegistry) {
+        this.modelRegistry = modelRegistry;
+        this.workerPool = workerPool;
+        this.meterRegistry = meterRegistry;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the version is not in the registry
+     * @throws IllegalStateException    if another switch is in progress
+     * @throws IOException              if the standby workers fail to start or warm up; the serving model is unchanged
+     */
+    public ModelDescriptor activate(String version) throws IOException, InterruptedException {
+        ModelDescriptor model = modelRegistry.get(version)
+                .orElseThrow(() -> new IllegalArgumentException("Model version not found: " + version));
+        if (!switchLock.tryLock()) {
+            throw new IllegalStateException("A switch to model " + switchingTo + " is already in progress");
+        }
+        try {
+            if (model.getVersion().equals(modelRegistry.active().getVersion())) {
+                return model;
+            }
+            switchingTo = version;
+            log.info("Activating model {} (serving {})", version, modelRegistry.active().getVersion());
+            try {
+                workerPool.activate(model);
+            } catch (IOException | InterruptedException | RuntimeException e) {
+                switchCounter("failed").increment();
+                throw e;
+            }
+            modelRegistry.markActive(model);
+            switchCounter("succeeded").increment();
+            log.info("Model {} is now serving", version);
+            return model;
+        } finally {
+            switchingTo = null;
+            switchLock.unlock();
+        }
+    }
+
+    /**
+     * Switches back to the version that served before the last switch.
+     *
+     * @throws IllegalStateException if there is nothing to roll back to
+     */
+    public ModelDescriptor rollback() throws IOException, InterruptedException {
+        String previous = modelRegistry.previousVersion()
+                .orElseThrow(() -> new IllegalStateException("No previous model version to roll back to"));
+        log.info("Rolling back from model {} to {}", modelRegistry.active().getVersion(), previous);
+        return activate(previous);
+    }
+
+    public String getSwitchingTo() {
+        return switchingTo;
+    }
+
+    private Counter switchCounter(String outcome) {
+        return Counter.builder("analysis.model.switches")
+                .description("Number of serving model switches")
+                .tag("outcome", outcome)
+                .register(meterRegistry);
+    }
+}
@@ -0,0 +1,210 @@
+package com.pcd.imageanalysis.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import jakarta.annotation.PostConstruct;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Directory of PyTorch model versions, one sub-directory per version holding {@code model.pth} and its
+ * {@link ModelDescriptor} as {@code model.json}. The serving version and the one before it are kept in
+ * {@code active.json} so a switch or rollback survives restarts.
+ * <p>
+ * The bundled classpath model is copied in once as the default version when the registry does not have
+ * it yet; later boots load straight from the registry.
+ */
+@Component
+public class ModelRegistry {
+    private static final Logger log = LoggerFactory.getLogger(ModelRegistry.class);
+    private static final Pattern VERSION_PATTERN = Pattern.compile("[A-Za-z0-9][A-Za-z0-9._-]{0,127}");
+    private static final String WEIGHTS_FILE = "model.pth";
+    private static final String DESCRIPTOR_FILE = "model.json";
+    private static final String STATE_FILE = "active.json";
+
+    private final ObjectMapper objectMapper;
+    private Path registryDir;
+    private volatile ModelDescriptor active;
+    private volatile String previousVersion;
+
+    @Value("${analysis.models.dir:${java.io.tmpdir}/model_registry}")
+    private String registryDirConfig;
+
+    @Value("${model.pytorch.path:classpath:models/falsification_detector.pth}")
+    private Resource bundledModel;
+
+    @Value("${analysis.model.default.arch:MobileNetV3_Large}")
+    private String defaultModelArchitecture;
+    @Value("${analysis.model.default.height:224}")
+    private int defaultModelImgHeight;
+    @Value("${analysis.model.default.width:224}")
+    private int defaultModelImgWidth;
+    @Value("${analysis.model.default.dense:768}")
+    private int defaultModelDenseUnits;
+    @Value("${analysis.model.default.dropout:0.45}")
+    private double defaultModelDropout;
+    @Value("${analysis.model.default.version:1.0.0-mobilenetv3l-dense768}")
+    private String defaultModelVersion;
+
+    @Autowired
+    public ModelRegistry(ObjectMapper objectMapper) {
+        this.objectMapper = objectMapper;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        registryDir = Paths.get(registryDirConfig);
+        Files.createDirectories(registryDir);
+
+        if (get(defaultModelVersion).isEmpty()) {
+            log.info("Seeding model registry {} with bundled model {} as version {}",
+                    registryDir, bundledModel, defaultModelVersion);
+            try (InputStream in = bundledModel.getInputStream()) {
+                register(defaultModelVersion, defaultModelArchitecture, defaultModelImgHeight, defaultModelImgWidth,
+                        defaultModelDenseUnits, defaultModelDropout, in);
+            }
+        }
+
+        Path stateFile = registryDir.resolve(STATE_FILE);
+        if (Files.isRegularFile(stateFile)) {
+            Map<?, ?> state = objectMapper.readValue(stateFile.toFile(), Map.class);
+            Object activeVersion = state.get("active");
+            active = activeVersion != null ? get(activeVersion.toString()).orElse(null) : null;
+            previousVersion = state.get("previous") != null ? state.get("previous").toString() : null;
+        }
+        if (active == null) {
+            active = get(defaultModelVersion).orElseThrow();
+        }
+        log.info("Model registry {} serves version {} ({})", registryDir, active.getVersion(), active.getArch());
+    }
+
+    public ModelDescriptor active() {
+        return active;
+    }
+
+    public Optional<String> previousVersion() {
+        return Optional.ofNullable(previousVersion);
+    }
+
+    public List<ModelDescriptor> list() throws IOException {
+        List<ModelDescriptor> models = new ArrayList<>();
+        try (Stream<Path> dirs = Files.list(registryDir)) {
+            for (Path dir : (Iterable<Path>) dirs.filter(Files::isDirectory)::iterator) {
+                readDescriptor(dir).ifPresent(models::add);
+            }
+        }
+        models.sort(Comparator.comparing(ModelDescriptor::getRegisteredAt,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+        return models;
+    }
+
+    public Optional<ModelDescriptor> get(String version) {
+        if (version == null || !VERSION_PATTERN.matcher(version).matches()) {
+            return Optional.empty();
+        }
+        return readDescriptor(registryDir.resolve(version));
+    }
+
+    public Path modelPath(ModelDescriptor model) {
+        return registryDir.resolve(model.getVersion()).resolve(WEIGHTS_FILE);
+    }
+
+    /**
+     * Stores new weights under {@code version}. The descriptor is written last, so a version only becomes
+     * visible once its weights are complete.
+     *
+     * @throws IllegalArgumentException if the version name is invalid
+     * @throws IllegalStateException    if the version already exists
+     */
+    public synchronized ModelDescriptor register(String version, String arch, int imgHeight, int imgWidth,
+                                                 int denseUnits, double dropout, InputStream weights) throws IOException {
+        if (version == null || !VERSION_PATTERN.matcher(version).matches()) {
+            throw new IllegalArgumentException("Invalid model version: " + version);
+        }
+        if (get(version).isPresent()) {
+            throw new IllegalStateException("Model version already registered: " + version);
+        }
+        Path versionDir = Files.createDirectories(registryDir.resolve(version));
+        Path tmp = Files.createTempFile(versionDir, WEIGHTS_FILE, ".tmp");
+        MessageDigest digest = sha256();
+        try (InputStream in = new DigestInputStream(weights, digest);
+             OutputStream out = Files.newOutputStream(tmp)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+        Files.move(tmp, versionDir.resolve(WEIGHTS_FILE), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        ModelDescriptor model = new ModelDescriptor(version, arch, imgHeight, imgWidth, denseUnits, dropout,
+                HexFormat.of().formatHex(digest.digest()), Files.size(versionDir.resolve(WEIGHTS_FILE)), Instant.now());
+        writeAtomically(versionDir.resolve(DESCRIPTOR_FILE), model);
+        log.info("Registered model version {} ({}, {} bytes, sha256 {})", version, arch, model.getSizeBytes(), model.getSha256());
+        return model;
+    }
+
+    /**
+     * Records {@code model} as serving and the current version as the rollback target.
+     */
+    synchronized void markActive(ModelDescriptor model) throws IOException {
+        String replaced = active != null ? active.getVersion() : null;
+        Map<String, Object> state = new LinkedHashMap<>();
+        state.put("active", model.getVersion());
+        state.put("previous", replaced);
+        writeAtomically(registryDir.resolve(STATE_FILE), state);
+        previousVersion = replaced;
+        active = model;
+    }
+
+    private Optional<ModelDescriptor> readDescriptor(Path versionDir) {
+        Path descriptor = versionDir.resolve(DESCRIPTOR_FILE);
+        if (!Files.isRegularFile(descriptor) || !Files.isRegularFile(versionDir.resolve(WEIGHTS_FILE))) {
+            return Optional.empty();
+        }
+        try {
+            return Optional.of(objectMapper.readValue(descriptor.toFile(), ModelDescriptor.class));
+        } catch (IOException e) {
+            log.warn("Ignoring unreadable model descriptor {}: {}", descriptor, e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    private void writeAtomically(Path target, Object value) throws IOException {
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        objectMapper.writerWithDefaultPrettyPrinter().writeValue(tmp.toFile(), value);
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+}
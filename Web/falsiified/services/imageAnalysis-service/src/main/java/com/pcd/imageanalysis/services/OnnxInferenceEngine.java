@@ -0,0 +1,196 @@
+package com.pcd.imageanalysis.services;
+
+import ai.onnxruntime.OnnxTensor;
+import ai.onnxruntime.OrtEnvironment;
+import ai.onnxruntime.OrtException;
+import ai.onnxruntime.OrtSession;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.FloatBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Map;
+
+/**
+ * Classification-only engine that runs an ONNX export of the model (see {@code export_onnx.py}) inside
+ * the JVM. It skips the Python interpreter entirely but produces no XAI visualizations.
+ * <p>
+ * The export is a single file that does not follow the model registry, so {@code analysis.onnx.model-version}
+ * names the version it was exported from; requests for any other version are refused rather than labelled
+ * with a version whose weights did not produce them.
+ */
+@Service
+public class OnnxInferenceEngine implements InferenceEngine {
+    private static final Logger log = LoggerFactory.getLogger(OnnxInferenceEngine.class);
+
+    private final ImagePreprocessor preprocessor;
+    private OrtEnvironment environment;
+    private OrtSession session;
+    private String inputName;
+    private String modelSha256 = "";
+
+    @Value("${analysis.onnx.enabled:false}")
+    private boolean enabled;
+
+    @Value("${analysis.onnx.model-path:}")
+    private String modelPath;
+
+    @Value("${analysis.onnx.model-version:}")
+    private String exportedVersion;
+
+    @Value("${analysis.onnx.arch:MobileNetV3_Large}")
+    private String exportedArch;
+
+    @Value("${analysis.onnx.intra-op-threads:0}")
+    private int intraOpThreads;
+
+    @Autowired
+    public OnnxInferenceEngine(ImagePreprocessor preprocessor) {
+        this.preprocessor = preprocessor;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        if (modelPath.isBlank() || !Files.isRegularFile(Paths.get(modelPath))) {
+            log.error("ONNX engine enabled but model file not found at '{}'", modelPath);
+            return;
+        }
+        if (exportedVersion.isBlank()) {
+            log.error("ONNX engine enabled but analysis.onnx.model-version is not set for '{}'", modelPath);
+            return;
+        }
+        try {
+            modelSha256 = sha256(Paths.get(modelPath));
+        } catch (IOException e) {
+            log.error("Failed to read ONNX model {}", modelPath, e);
+            return;
+        }
+        try {
+            environment = OrtEnvironment.getEnvironment();
+            OrtSession.SessionOptions options = new OrtSession.SessionOptions();
+            options.setOptimizationLevel(OrtSession.SessionOptions.OptLevel.ALL_OPT);
+            if (intraOpThreads > 0) {
+                options.setIntraOpNumThreads(intraOpThreads);
+            }
+            session = environment.createSession(modelPath, options);
+            inputName = session.getInputNames().iterator().next();
+            log.info("ONNX inference engine loaded {} (version {}, {}, sha256 {}), input '{}'", modelPath, exportedVersion,
+                    exportedArch, modelSha256, inputName);
+        } catch (OrtException e) {
+            log.error("Failed to load ONNX model from {}", modelPath, e);
+            session = null;
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (session != null) {
+            try {
+                session.close();
+            } catch (OrtException e) {
+                log.warn("Error closing ONNX session", e);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "onnx";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return session != null;
+    }
+
+    /**
+     * The export file itself, so cached results are not reused once it is replaced.
+     */
+    @Override
+    public String getConfigurationKey() {
+        return "onnx-sha256=" + modelSha256;
+    }
+
+    @Override
+    public Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion
+    ) throws IOException {
+        if (!isAvailable()) {
+            throw new IOException("ONNX inference engine is not available");
+        }
+        if (!exportedArch.equals(arch)) {
+            throw new IOException("ONNX model was exported for " + exportedArch + ", not " + arch);
+        }
+        if (!exportedVersion.equals(modelVersion)) {
+            throw new IOException("ONNX model was exported from version " + exportedVersion + ", not " + modelVersion);
+        }
+
+        BufferedImage image = preprocessor.read(imageData);
+        float logit = runModel(preprocessor.toNormalizedTensor(image, imgHeight, imgWidth), imgHeight, imgWidth);
+        double probability = 1.0 / (1.0 + Math.exp(-logit));
+        boolean isFalsified = probability > 0.5;
+
+        Map<String, Object> detectionDetails = new HashMap<>();
+        detectionDetails.put("logit_value", (double) logit);
+
+        Map<String, Object> result = new HashMap<>();
+        result.put("isFalsified", isFalsified);
+        result.put("confidenceScore", probability);
+        result.put("modelVersion", exportedVersion);
+        result.put("engine", getName());
+        result.put("detectionDetails", detectionDetails);
+        result.put("xaiVisualizations", new HashMap<String, String>());
+
+        log.info("ONNX inference complete for image {}: Falsified={}, Score={}", imageName, isFalsified, probability);
+        return result;
+    }
+
+    float runModel(float[] tensor, int imgHeight, int imgWidth) throws IOException {
+        long[] shape = {1, 3, imgHeight, imgWidth};
+        try (OnnxTensor input = OnnxTensor.createTensor(environment, FloatBuffer.wrap(tensor), shape);
+             OrtSession.Result output = session.run(Map.of(inputName, input))) {
+            float[][] logits = (float[][]) output.get(0).getValue();
+            return logits[0][0];
+        } catch (OrtException e) {
+            throw new IOException("ONNX inference failed: " + e.getMessage(), e);
+        }
+    }
+
+    private static String sha256(Path file) throws IOException {
+        try (InputStream in = Files.newInputStream(file)) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] buffer = new byte[1 << 16];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                digest.update(buffer, 0, read);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.pcd.imageanalysis.services;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Model-ready pixels per (image sha256, input size), kept in memory up to
+ * {@code analysis.preprocessing.cache.max-size-mb} and evicted least recently used first. Re-analysis,
+ * XAI regeneration and the second model of an ensemble reuse the entry instead of decoding the file again.
+ * <p>
+ * Formats ImageIO cannot decode yield empty, and the caller sends the original bytes to Python instead.
+ * <p>
+ * Off by default. The image is decoded in full and resized as {@code A.Resize} does, but Java's JPEG
+ * decoder can still differ from PIL's by a level here and there, so enable it only once
+ * {@code OnnxInferenceEngineParityTest} passes against reference pixels from the deployed Python stack.
+ */
+@Component
+public class PreprocessedImageCache {
+    private static final Logger log = LoggerFactory.getLogger(PreprocessedImageCache.class);
+
+    private final ImagePreprocessor preprocessor;
+    private final LinkedHashMap<String, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter unsupported;
+    private long sizeBytes;
+
+    @Value("${analysis.preprocessing.enabled:false}")
+    private boolean enabled;
+
+    @Value("${analysis.preprocessing.cache.max-size-mb:64}")
+    private long maxSizeMb;
+
+    @Autowired
+    public PreprocessedImageCache(ImagePreprocessor preprocessor, MeterRegistry meterRegistry) {
+        this.preprocessor = preprocessor;
+        this.hits = meterRegistry.counter("analysis.preprocessing.cache", "result", "hit");
+        this.misses = meterRegistry.counter("analysis.preprocessing.cache", "result", "miss");
+        this.unsupported = meterRegistry.counter("analysis.preprocessing.cache", "result", "unsupported");
+        meterRegistry.gauge("analysis.preprocessing.cache.bytes", this, PreprocessedImageCache::getSizeBytes);
+    }
+
+    /**
+     * Returns the image resized to {@code height x width} as HWC RGB bytes, decoding it only on a miss.
+     */
+    public Optional<byte[]> rgb(byte[] imageData, int height, int width) {
+        if (!enabled) {
+            return Optional.empty();
+        }
+        String key = sha256(imageData) + ":" + height + "x" + width;
+        synchronized (this) {
+            byte[] cached = entries.get(key);
+            if (cached != null) {
+                hits.increment();
+                return Optional.of(cached);
+            }
+        }
+        byte[] pixels;
+        try {
+            pixels = preprocessor.toRgbBytes(preprocessor.read(imageData), height, width);
+        } catch (IOException | RuntimeException e) {
+            unsupported.increment();
+            log.debug("Image could not be preprocessed in Java, Python will decode it: {}", e.getMessage());
+            return Optional.empty();
+        }
+        misses.increment();
+        put(key, pixels);
+        return Optional.of(pixels);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public synchronized long getSizeBytes() {
+        return sizeBytes;
+    }
+
+    private synchronized void put(String key, byte[] pixels) {
+        long maxBytes = maxSizeMb * 1024 * 1024;
+        if (pixels.length > maxBytes) {
+            return;
+        }
+        byte[] previous = entries.put(key, pixels);
+        sizeBytes += pixels.length - (previous != null ? previous.length : 0);
+        Iterator<Map.Entry<String, byte[]>> eldest = entries.entrySet().iterator();
+        while (sizeBytes > maxBytes && eldest.hasNext()) {
+            sizeBytes -= eldest.next().getValue().length;
+            eldest.remove();
+        }
+    }
+
+    private static String sha256(byte[] data) {
+        try {
+            return HexFormat.of().formatHex(MessageDigest.getInstance("SHA-256").digest(data));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+}
@@ -2,7 +2,11 @@ package com.pcd.imageanalysis.services;
 
 import com.fasterxml.jackson.core.type.TypeReference;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.imageanalysis.model.XaiQuality;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
@@ -11,23 +15,48 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 import java.io.BufferedReader;
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 @Service
-public class PyTorchModelService {
+public class PyTorchModelService implements InferenceEngine {
     private static final Logger log = LoggerFactory.getLogger(PyTorchModelService.class);
 
-    private final String modelPath;
+    public static final List<String> XAI_TYPES = List.of("gradcam", "lime", "shap");
+
+    private final ModelRegistry modelRegistry;
     private final String pythonScriptPath;
     private final ObjectMapper objectMapper;
+    private final PythonWorkerPool workerPool;
+    private final InferenceBatcher inferenceBatcher;
+    private final ShapBackgroundCache shapBackgroundCache;
+    private final XaiArtifactStore artifactStore;
+    private final PreprocessedImageCache preprocessedImageCache;
+    private final AdmissionLimiter admissionLimiter;
+    private final DistributionSummary workerPipeBytes;
+    private final DistributionSummary processPipeBytes;
 
     @Value("${python.executable:python}")
     private String pythonExecutable;
@@ -38,19 +67,52 @@ public class PyTorchModelService {
     @Value("${shap.background.dir:/path/to/background/images}")
     private String shapBackgroundDir;
 
+    @Value("${analysis.xai.mode:lazy}")
+    private String xaiMode;
+
+    @Value("${analysis.xai.default-quality:STANDARD}")
+    private XaiQuality defaultXaiQuality;
+
+    @Value("${analysis.xai.parallel:true}")
+    private boolean parallelXai;
+
+    private ExecutorService xaiDispatcher;
+
     @Autowired
     public PyTorchModelService(
-            @Qualifier("modelPath") String modelPath,
+            ModelRegistry modelRegistry,
             @Qualifier("pythonScriptPath") String pythonScriptPath,
-            ObjectMapper objectMapper) {
-        this.modelPath = modelPath;
+            ObjectMapper objectMapper,
+            PythonWorkerPool workerPool,
+            InferenceBatcher inferenceBatcher,
+            ShapBackgroundCache shapBackgroundCache,
+            XaiArtifactStore artifactStore,
+            PreprocessedImageCache preprocessedImageCache,
+            AdmissionLimiter admissionLimiter,
+            MeterRegistry meterRegistry) {
+        this.modelRegistry = modelRegistry;
         this.pythonScriptPath = pythonScriptPath;
         this.objectMapper = objectMapper;
+        this.workerPool = workerPool;
+        this.inferenceBatcher = inferenceBatcher;
+        this.shapBackgroundCache = shapBackgroundCache;
+        this.artifactStore = artifactStore;
+        this.preprocessedImageCache = preprocessedImageCache;
+        this.admissionLimiter = admissionLimiter;
+        this.workerPipeBytes = ImageAnalysisService.bytesCopiedSummary(meterRegistry, "worker-pipe");
+        this.processPipeBytes = ImageAnalysisService.bytesCopiedSummary(meterRegistry, "process-pipe");
     }
 
     @PostConstruct
     public void init() {
-        log.info("PyTorch Model Service initialized with model at {}", modelPath);
+        AtomicInteger threadCounter = new AtomicInteger();
+        // Runs the extra workers of parallel explanations; no more can be busy than the pool has.
+        xaiDispatcher = Executors.newFixedThreadPool(Math.max(1, workerPool.getPoolSize()), r -> {
+            Thread thread = new Thread(r, "xai-dispatch-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("PyTorch Model Service initialized with model {}", modelRegistry.active().getVersion());
         log.info("Using Python script at {}", pythonScriptPath);
         try {
             Process process = new ProcessBuilder(pythonExecutable, "--version")
@@ -71,8 +133,33 @@ public class PyTorchModelService {
         }
     }
 
+    @PreDestroy
+    public void shutdown() {
+        xaiDispatcher.shutdownNow();
+    }
+
+    @Override
+    public String getName() {
+        return "pytorch";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * Results computed from pixels preprocessed in Java are kept apart from those Python decoded itself.
+     */
+    @Override
+    public String getConfigurationKey() {
+        return preprocessedImageCache.isEnabled() ? "preprocessing=java" : "";
+    }
+
+    @Override
     public Map<String, Object> analyzeImage(
-            Path imagePath,
+            byte[] imageData,
+            String imageName,
             String arch,
             int imgHeight,
             int imgWidth,
@@ -80,57 +167,338 @@ public class PyTorchModelService {
             double dropout,
             String modelVersion
     ) throws IOException, InterruptedException {
-        File tempOutput = null;
-        File xaiOutputDir = null;
+        List<String> xaiTypes = "eager".equalsIgnoreCase(xaiMode) ? XAI_TYPES : List.of();
+        return analyzeImage(imageData, imageName, arch, imgHeight, imgWidth, denseUnits, dropout, modelVersion, xaiTypes);
+    }
+
+    /**
+     * Runs the model and generates only the requested XAI visualizations; an empty list classifies only.
+     * The image is piped to Python, so no temp file is written for the image or the result. Worker calls
+     * send the pixels preprocessed in Java when the format allows it, otherwise the original bytes.
+     */
+    public Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion,
+            List<String> xaiTypes
+    ) throws IOException, InterruptedException {
+        return analyzeImage(imageData, imageName, arch, imgHeight, imgWidth, denseUnits, dropout, modelVersion,
+                xaiTypes, defaultXaiQuality, null);
+    }
+
+    /**
+     * Generates the requested visualizations at the given quality tier. With a time budget, LIME and SHAP
+     * start at the cheapest tier and refine only while the budget allows, so the result may come back at a
+     * lower tier; the tier actually produced per type is returned under {@code xaiQuality}.
+     */
+    public Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion,
+            List<String> xaiTypes,
+            XaiQuality xaiQuality,
+            Duration xaiTimeBudget
+    ) throws IOException, InterruptedException {
+        Path xaiOutputDir = xaiTypes.isEmpty() ? null : Files.createTempDirectory("xai_outputs_");
+        XaiRequest xai = new XaiRequest(xaiTypes, xaiQuality != null ? xaiQuality : defaultXaiQuality, xaiTimeBudget);
+        try {
+            Map<String, Object> result;
+            if (workerPool.supports(modelVersion) && parallelXai && xaiTypes.size() > 1) {
+                result = analyzeWithParallelXai(imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir, xai);
+            } else if (workerPool.supports(modelVersion)) {
+                result = analyzeWithWorker(imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir, xai);
+            } else {
+                result = analyzeWithNewProcess(imageData, imageName, arch, imgHeight, imgWidth, denseUnits, dropout,
+                        modelVersion, xaiOutputDir, xai);
+            }
+            return storeVisualizations(validateResult(result, imageName, modelVersion));
+        } finally {
+            if (xaiOutputDir != null) {
+                deleteDirectory(xaiOutputDir);
+            }
+        }
+    }
+
+    private Map<String, Object> analyzeWithWorker(
+            byte[] imageData,
+            String imageName,
+            int imgHeight,
+            int imgWidth,
+            String modelVersion,
+            Path xaiOutputDir,
+            XaiRequest xai
+    ) throws IOException, InterruptedException {
+        List<String> xaiTypes = xai.types();
+        log.debug("Dispatching image {} ({} bytes) to the Python worker pool (model: {}, xai: {})",
+                imageName, imageData.length, modelVersion, xaiTypes);
         try {
-            tempOutput = File.createTempFile("analysis_result_", ".json");
-            xaiOutputDir = Files.createTempDirectory("xai_outputs_").toFile();
+            Path shapBackground = shapBackground(xaiTypes, imgHeight, imgWidth);
+            Optional<byte[]> pixels = preprocessedImageCache.rgb(imageData, imgHeight, imgWidth);
+            Map<String, Object> request = pixels.isPresent()
+                    ? workerPool.analyzePixelsRequest(pixels.get(), imageName, imgHeight, imgWidth, xaiOutputDir,
+                    xaiTypes, shapBackground)
+                    : workerPool.analyzeRequest(imageData, imageName, imgHeight, imgWidth, xaiOutputDir, xaiTypes,
+                    shapBackground);
+            workerPipeBytes.record(((String) request.getOrDefault("pixelData", request.get("imageData"))).length());
+            if (!xaiTypes.isEmpty()) {
+                request.put("xaiQuality", xai.quality().name());
+                if (xai.timeBudget() != null) {
+                    request.put("xaiTimeBudgetMs", xai.timeBudget().toMillis());
+                }
+            }
+            // Batches always go to the serving workers and carry no XAI; the rest are called directly.
+            Map<String, Object> response = xaiTypes.isEmpty() && inferenceBatcher.isEnabled()
+                    && workerPool.isServing(modelVersion)
+                    ? inferenceBatcher.execute(request)
+                    : workerPool.execute(modelVersion, request, pythonTimeout);
+            if (response.containsKey("error")) {
+                log.error("Python worker reported an error: {}", response.get("error"));
+                throw new IOException("Python script failed: " + response.get("error"));
+            }
+            Object resultObj = response.get("result");
+            if (!(resultObj instanceof Map)) {
+                throw new IOException("Python worker response did not contain a result: " + response);
+            }
+            @SuppressWarnings("unchecked")
+            Map<String, Object> result = (Map<String, Object>) resultObj;
+            if (response.get("modelVersion") != null) {
+                result.put("modelVersion", response.get("modelVersion"));
+            }
+            if (response.get("workerWaitMs") instanceof Number waited) {
+                Map<String, Object> timings = new LinkedHashMap<>();
+                timings.put("worker-wait", waited);
+                if (result.get(AnalysisStageTimer.STAGE_TIMINGS_KEY) instanceof Map<?, ?> reported) {
+                    reported.forEach((stage, millis) -> timings.put(stage.toString(), millis));
+                }
+                result.put(AnalysisStageTimer.STAGE_TIMINGS_KEY, timings);
+            }
+            return result;
+        } catch (IOException | InterruptedException e) {
+            log.error("Error analyzing image {} with the Python worker pool: {}", imageName, e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Spreads the explanation types over several workers, so the wall-clock time is that of the slowest
+     * worker rather than the sum. The caller's admission permit covers one worker; every further worker
+     * needs a permit of its own, taken only if one is free, and the types share the workers that could be
+     * admitted. Every request hits the preprocessed pixel cache and is classified again by its worker, which
+     * costs one forward pass; the first response supplies the verdict and visualizations are merged as they
+     * arrive. A type whose request fails is left out, as when Python cannot produce it.
+     */
+    private Map<String, Object> analyzeWithParallelXai(
+            byte[] imageData,
+            String imageName,
+            int imgHeight,
+            int imgWidth,
+            String modelVersion,
+            Path xaiOutputDir,
+            XaiRequest xai
+    ) throws IOException, InterruptedException {
+        List<AdmissionLimiter.Permit> permits = new ArrayList<>();
+        while (permits.size() < xai.types().size() - 1) {
+            Optional<AdmissionLimiter.Permit> permit = admissionLimiter.tryAcquire();
+            if (permit.isEmpty()) {
+                break;
+            }
+            permits.add(permit.get());
+        }
+        if (permits.isEmpty()) {
+            return analyzeWithWorker(imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir, xai);
+        }
+
+        int lanes = permits.size() + 1;
+        List<List<String>> laneTypes = new ArrayList<>();
+        for (int i = 0; i < lanes; i++) {
+            laneTypes.add(new ArrayList<>());
+        }
+        for (int i = 0; i < xai.types().size(); i++) {
+            laneTypes.get(i % lanes).add(xai.types().get(i));
+        }
 
+        Map<String, Object> merged = new HashMap<>();
+        Map<String, Object> visualizations = new HashMap<>();
+        Map<String, Object> qualities = new HashMap<>();
+        Map<String, Object> timings = new LinkedHashMap<>();
+        List<CompletableFuture<Void>> tasks = new ArrayList<>();
+        try {
+            for (int lane = 1; lane < lanes; lane++) {
+                List<String> types = laneTypes.get(lane);
+                AdmissionLimiter.Permit permit = permits.get(lane - 1);
+                tasks.add(CompletableFuture.runAsync(() -> {
+                    try (permit) {
+                        runLane(types, imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir, xai,
+                                merged, visualizations, qualities, timings);
+                    }
+                }, xaiDispatcher));
+            }
+        } catch (RejectedExecutionException e) {
+            // Lanes already submitted close their own permits.
+            permits.subList(tasks.size(), permits.size()).forEach(AdmissionLimiter.Permit::close);
+            throw new IOException("XAI dispatcher is shut down", e);
+        }
+        runLane(laneTypes.get(0), imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir, xai,
+                merged, visualizations, qualities, timings);
+        try {
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+        } catch (CancellationException e) {
+            throw new InterruptedException("XAI dispatch cancelled");
+        }
+        synchronized (merged) {
+            if (merged.isEmpty()) {
+                throw new IOException("All explanation requests failed for image " + imageName);
+            }
+            merged.put("xaiVisualizations", visualizations);
+            merged.put("xaiQuality", qualities);
+            merged.put(AnalysisStageTimer.STAGE_TIMINGS_KEY, timings);
+            return merged;
+        }
+    }
+
+    /**
+     * Generates the given types one after another on a single worker and merges each response.
+     */
+    private void runLane(List<String> types, byte[] imageData, String imageName, int imgHeight, int imgWidth,
+                         String modelVersion, Path xaiOutputDir, XaiRequest xai, Map<String, Object> merged,
+                         Map<String, Object> visualizations, Map<String, Object> qualities,
+                         Map<String, Object> timings) {
+        for (String type : types) {
+            Map<String, Object> response;
+            try {
+                response = analyzeWithWorker(imageData, imageName, imgHeight, imgWidth, modelVersion, xaiOutputDir,
+                        new XaiRequest(List.of(type), xai.quality(), xai.timeBudget()));
+            } catch (IOException e) {
+                log.error("{} explanation for {} failed: {}", type, imageName, e.getMessage());
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("{} explanation for {} was interrupted", type, imageName);
+                return;
+            }
+            synchronized (merged) {
+                if (merged.isEmpty()) {
+                    merged.putAll(response);
+                    if (response.get(AnalysisStageTimer.STAGE_TIMINGS_KEY) instanceof Map<?, ?> reported) {
+                        reported.forEach((stage, millis) -> timings.put(stage.toString(), millis));
+                    }
+                } else if (!String.valueOf(merged.get("modelVersion")).equals(String.valueOf(response.get("modelVersion")))) {
+                    log.warn("{} explanation for {} came from model {} instead of {}", type, imageName,
+                            response.get("modelVersion"), merged.get("modelVersion"));
+                }
+                if (response.get("xaiVisualizations") instanceof Map<?, ?> produced && produced.get(type) != null) {
+                    visualizations.put(type, produced.get(type));
+                }
+                if (response.get("xaiQuality") instanceof Map<?, ?> produced && produced.get(type) != null) {
+                    qualities.put(type, produced.get(type));
+                }
+                if (response.get(AnalysisStageTimer.STAGE_TIMINGS_KEY) instanceof Map<?, ?> reported
+                        && reported.get("xai-" + type) != null) {
+                    timings.put("xai-" + type, reported.get("xai-" + type));
+                }
+            }
+            log.debug("{} explanation for {} completed", type, imageName);
+        }
+    }
+
+    private Map<String, Object> analyzeWithNewProcess(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion,
+            Path xaiOutputDir,
+            XaiRequest xai
+    ) throws IOException, InterruptedException {
+        List<String> xaiTypes = xai.types();
+        try {
+            Path modelPath = modelRegistry.modelPath(modelRegistry.get(modelVersion).orElseGet(modelRegistry::active));
             List<String> command = new ArrayList<>();
             command.add(pythonExecutable);
             command.add(pythonScriptPath);
-            command.add("--model"); command.add(modelPath);
-            command.add("--image"); command.add(imagePath.toString());
-            command.add("--output"); command.add(tempOutput.getAbsolutePath());
+            command.add("--model"); command.add(modelPath.toString());
+            command.add("--image"); command.add("-");
+            command.add("--image-name"); command.add(imageName);
+            command.add("--output"); command.add("-");
             command.add("--arch"); command.add(arch);
             command.add("--img-height"); command.add(String.valueOf(imgHeight));
             command.add("--img-width"); command.add(String.valueOf(imgWidth));
             command.add("--dense-units"); command.add(String.valueOf(denseUnits));
             command.add("--dropout"); command.add(String.valueOf(dropout));
-            command.add("--xai-output-dir"); command.add(xaiOutputDir.getAbsolutePath());
+            if (xaiOutputDir != null) {
+                command.add("--xai-output-dir"); command.add(xaiOutputDir.toString());
+            }
             command.add("--shap-background-dir"); command.add(shapBackgroundDir);
+            Path shapBackground = shapBackground(xaiTypes, imgHeight, imgWidth);
+            if (shapBackground != null) {
+                command.add("--shap-background-cache"); command.add(shapBackground.toString());
+            }
+            command.add("--xai-types"); command.add(xaiTypes.isEmpty() ? "none" : String.join(",", xaiTypes));
+            command.add("--xai-quality"); command.add(xai.quality().name());
+            if (xai.timeBudget() != null) {
+                command.add("--xai-time-budget-ms"); command.add(String.valueOf(xai.timeBudget().toMillis()));
+            }
 
             log.debug("Executing Python command: {}", String.join(" ", command));
 
-            ProcessBuilder processBuilder = new ProcessBuilder(command);
-            processBuilder.redirectErrorStream(true);
-            Process process = processBuilder.start();
+            Process process = new ProcessBuilder(command).start();
 
-            StringBuilder outputLog = new StringBuilder();
-            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    outputLog.append(line).append("\n");
-                    log.debug("Python script output: {}", line);
+            // Logs go to stderr and the result JSON to stdout; drain stderr concurrently so neither pipe fills up.
+            StringBuffer outputLog = new StringBuffer();
+            Thread stderrReader = new Thread(() -> {
+                try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream()))) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        outputLog.append(line).append("\n");
+                        log.debug("Python script output: {}", line);
+                    }
+                } catch (IOException e) {
+                    log.debug("Python script stderr closed: {}", e.getMessage());
                 }
+            }, "python-script-stderr");
+            stderrReader.setDaemon(true);
+            stderrReader.start();
+
+            try (OutputStream stdin = process.getOutputStream()) {
+                stdin.write(imageData);
+            } catch (IOException e) {
+                log.warn("Python script closed stdin before the image was fully written: {}", e.getMessage());
+            }
+            processPipeBytes.record(imageData.length);
+
+            String jsonResult;
+            try (InputStream stdout = process.getInputStream()) {
+                jsonResult = new String(stdout.readAllBytes(), StandardCharsets.UTF_8).trim();
             }
 
             boolean completed = process.waitFor(pythonTimeout, TimeUnit.SECONDS);
             if (!completed) {
                 process.destroyForcibly();
-                log.error("Python process timed out after {} seconds for image {}", pythonTimeout, imagePath);
+                log.error("Python process timed out after {} seconds for image {}", pythonTimeout, imageName);
                 throw new IOException("Python process timed out after " + pythonTimeout + " seconds");
             }
+            stderrReader.join(TimeUnit.SECONDS.toMillis(5));
 
             int exitCode = process.exitValue();
-            log.info("Python script finished for image {} with exit code: {}", imagePath, exitCode);
+            log.info("Python script finished for image {} with exit code: {}", imageName, exitCode);
 
-            if (!tempOutput.exists() || tempOutput.length() == 0) {
-                log.error("Python script output file missing or empty: {}", tempOutput.getAbsolutePath());
-                throw new IOException("Python script did not produce an output file. Exit code: " + exitCode + ". Script log:\n" + outputLog);
+            if (jsonResult.isEmpty()) {
+                log.error("Python script produced no result on stdout for image {}", imageName);
+                throw new IOException("Python script did not produce a result. Exit code: " + exitCode + ". Script log:\n" + outputLog);
             }
-
-            String jsonResult = Files.readString(tempOutput.toPath());
             log.debug("Raw JSON result from Python script: {}", jsonResult);
 
             Map<String, Object> result;
@@ -146,25 +514,78 @@ public class PyTorchModelService {
                 throw new IOException("Python script failed: " + result.get("error"));
             }
 
-            result.putIfAbsent("modelVersion", modelVersion);
+            return result;
+
+        } catch (IOException | InterruptedException e) {
+            log.error("Error executing or processing Python script for image {}: {}", imageName, e.getMessage(), e);
+            throw e;
+        }
+    }
 
-            if (!result.containsKey("isFalsified") || !result.containsKey("confidenceScore")) {
-                log.warn("Parsed JSON result is missing expected keys ('isFalsified', 'confidenceScore'). Result: {}", result);
-                throw new IOException("Parsed JSON result is missing expected keys.");
+    /**
+     * Moves the generated PNGs into the artifact store and replaces their temp paths with artifact ids.
+     */
+    private Map<String, Object> storeVisualizations(Map<String, Object> result) throws IOException {
+        if (!(result.get("xaiVisualizations") instanceof Map<?, ?> visualizations)) {
+            return result;
+        }
+        Map<String, Object> stored = new HashMap<>();
+        for (Map.Entry<?, ?> entry : visualizations.entrySet()) {
+            if (entry.getValue() != null) {
+                String artifactId = artifactStore.store(Paths.get(entry.getValue().toString()), "image/png");
+                stored.put(entry.getKey().toString(), artifactId);
             }
+        }
+        result.put("xaiVisualizations", stored);
+        return result;
+    }
 
-            log.info("Successfully parsed analysis result for image {}: Falsified={}, Score={}",
-                    imagePath, result.get("isFalsified"), result.get("confidenceScore"));
+    private void deleteDirectory(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            log.warn("Could not delete temporary XAI output directory {}", dir, e);
+        }
+    }
 
-            return result;
+    private Path shapBackground(List<String> xaiTypes, int imgHeight, int imgWidth) {
+        return xaiTypes.contains("shap") ? shapBackgroundCache.reference(imgHeight, imgWidth).orElse(null) : null;
+    }
 
-        } catch (IOException | InterruptedException e) {
-            log.error("Error executing or processing Python script for image {}: {}", imagePath, e.getMessage(), e);
-            throw e;
-        } finally {
-            if (tempOutput != null && !tempOutput.delete()) {
-                log.warn("Could not delete temporary output file: {}", tempOutput.getAbsolutePath());
+    private Map<String, Object> validateResult(Map<String, Object> result, String imageName, String modelVersion) throws IOException {
+        result.putIfAbsent("modelVersion", modelVersion);
+
+        if (!result.containsKey("isFalsified") || !result.containsKey("confidenceScore")) {
+            log.warn("Parsed JSON result is missing expected keys ('isFalsified', 'confidenceScore'). Result: {}", result);
+            throw new IOException("Parsed JSON result is missing expected keys.");
+        }
+
+        log.info("Successfully parsed analysis result for image {}: Falsified={}, Score={}",
+                imageName, result.get("isFalsified"), result.get("confidenceScore"));
+
+        return result;
+    }
+
+    /**
+     * Reads the per-type quality tiers Python reported under {@code xaiQuality}, skipping unknown values.
+     */
+    public static Map<String, XaiQuality> xaiQualities(Map<String, Object> result) {
+        Map<String, XaiQuality> qualities = new HashMap<>();
+        if (result != null && result.get("xaiQuality") instanceof Map<?, ?> reported) {
+            for (Map.Entry<?, ?> entry : reported.entrySet()) {
+                if (entry.getValue() == null) {
+                    continue;
+                }
+                try {
+                    qualities.put(entry.getKey().toString(), XaiQuality.valueOf(entry.getValue().toString()));
+                } catch (IllegalArgumentException e) {
+                    log.warn("Ignoring unknown XAI quality {} for {}", entry.getValue(), entry.getKey());
+                }
             }
         }
+        return qualities;
+    }
+
+    private record XaiRequest(List<String> types, XaiQuality quality, Duration timeBudget) {
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,184 @@
+package com.pcd.imageanalysis.services;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A long-lived {@code detect_falsification.py --serve} process. The model is loaded once at startup and
+ * requests are exchanged as one JSON document per line over stdin/stdout. A worker handles one request
+ * at a time; {@link PythonWorkerPool} is responsible for handing it to a single caller.
+ */
+class PythonWorker {
+    private static final Logger log = LoggerFactory.getLogger(PythonWorker.class);
+    private static final String EOF_MARKER = "\u0000EOF";
+
+    private final int slot;
+    private final Process process;
+    private final BufferedWriter stdin;
+    private final BlockingQueue<String> responses = new LinkedBlockingQueue<>();
+    private final ObjectMapper objectMapper;
+    private final AtomicLong requestCounter = new AtomicLong();
+    private volatile boolean ready;
+
+    private PythonWorker(int slot, Process process, ObjectMapper objectMapper) {
+        this.slot = slot;
+        this.process = process;
+        this.objectMapper = objectMapper;
+        this.stdin = new BufferedWriter(new OutputStreamWriter(process.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    static PythonWorker start(int slot, List<String> command, ObjectMapper objectMapper) throws IOException {
+        Process process = new ProcessBuilder(command).start();
+        PythonWorker worker = new PythonWorker(slot, process, objectMapper);
+        worker.startStreamReaders();
+        log.info("Started Python worker {} (pid {})", slot, process.pid());
+        return worker;
+    }
+
+    private void startStreamReaders() {
+        Thread stdoutReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    responses.offer(line);
+                }
+            } catch (IOException e) {
+                log.debug("Python worker {} stdout closed: {}", slot, e.getMessage());
+            } finally {
+                responses.offer(EOF_MARKER);
+            }
+        }, "python-worker-" + slot + "-stdout");
+        stdoutReader.setDaemon(true);
+        stdoutReader.start();
+
+        Thread stderrReader = new Thread(() -> {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getErrorStream(), StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    log.debug("Python worker {} output: {}", slot, line);
+                }
+            } catch (IOException e) {
+                log.debug("Python worker {} stderr closed: {}", slot, e.getMessage());
+            }
+        }, "python-worker-" + slot + "-stderr");
+        stderrReader.setDaemon(true);
+        stderrReader.start();
+    }
+
+    /**
+     * Blocks until the worker reports that the model is loaded.
+     */
+    void awaitReady(long timeoutSeconds) throws IOException, InterruptedException {
+        Map<String, Object> status = readResponse(timeoutSeconds);
+        if (!"ready".equals(status.get("status"))) {
+            throw new IOException("Python worker " + slot + " failed to start: " + status.get("error"));
+        }
+        ready = true;
+        log.info("Python worker {} (pid {}) is ready", slot, process.pid());
+    }
+
+    /**
+     * Sends a single request and waits for its response. On timeout the process is killed, since the
+     * protocol stream can no longer be trusted to line up requests with responses.
+     */
+    synchronized Map<String, Object> call(Map<String, Object> request, long timeoutSeconds) throws IOException, InterruptedException {
+        if (!isAlive()) {
+            throw new IOException("Python worker " + slot + " is not running");
+        }
+        String requestId = slot + "-" + requestCounter.incrementAndGet();
+        Map<String, Object> payload = new HashMap<>(request);
+        payload.put("id", requestId);
+
+        responses.clear();
+        stdin.write(objectMapper.writeValueAsString(payload));
+        stdin.newLine();
+        stdin.flush();
+
+        Map<String, Object> response = readResponse(timeoutSeconds);
+        if (!requestId.equals(response.get("id"))) {
+            destroy();
+            throw new IOException("Python worker " + slot + " returned a response for request " + response.get("id")
+                    + " while waiting for " + requestId);
+        }
+        return response;
+    }
+
+    boolean ping(long timeoutSeconds) {
+        try {
+            return "ok".equals(call(Map.of("op", "ping"), timeoutSeconds).get("status"));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.warn("Health check failed for Python worker {}: {}", slot, e.getMessage());
+            return false;
+        }
+    }
+
+    private Map<String, Object> readResponse(long timeoutSeconds) throws IOException, InterruptedException {
+        String line = responses.poll(timeoutSeconds, TimeUnit.SECONDS);
+        if (line == null) {
+            destroy();
+            throw new IOException("Python worker " + slot + " timed out after " + timeoutSeconds + " seconds");
+        }
+        if (EOF_MARKER.equals(line)) {
+            destroy();
+            throw new IOException("Python worker " + slot + " exited unexpectedly");
+        }
+        try {
+            return objectMapper.readValue(line, new TypeReference<Map<String, Object>>() {});
+        } catch (Exception e) {
+            destroy();
+            throw new IOException("Python worker " + slot + " produced an unreadable response: " + line, e);
+        }
+    }
+
+    boolean isAlive() {
+        return process.isAlive();
+    }
+
+    boolean isReady() {
+        return ready && isAlive();
+    }
+
+    int getSlot() {
+        return slot;
+    }
+
+    void destroy() {
+        ready = false;
+        try {
+            stdin.close();
+        } catch (IOException e) {
+            log.debug("Could not close stdin of Python worker {}: {}", slot, e.getMessage());
+        }
+        if (process.isAlive()) {
+            process.destroy();
+            try {
+                if (!process.waitFor(5, TimeUnit.SECONDS)) {
+                    process.destroyForcibly();
+                }
+            } catch (InterruptedException e) {
+                process.destroyForcibly();
+                Thread.currentThread().interrupt();
+            }
+        }
+        log.info("Python worker {} (pid {}) stopped", slot, process.pid());
+    }
+}
@@ -0,0 +1,451 @@
+package com.pcd.imageanalysis.services;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a fixed number of {@link PythonWorker} processes with the serving model loaded, so that an
+ * analysis only pays for inference and XAI instead of interpreter start-up and {@code torch.load}.
+ * Crashed or unresponsive workers are replaced in the background.
+ * <p>
+ * Workers belong to a generation, one per model version. {@link #activate} starts and warms up a full
+ * standby generation before swapping it in, so requests never wait on a cold worker; workers of the old
+ * generation finish what they are running and are then stopped.
+ */
+@Component
+public class PythonWorkerPool {
+    private static final Logger log = LoggerFactory.getLogger(PythonWorkerPool.class);
+
+    private static final long ACQUIRE_SLICE_MILLIS = 250;
+
+    private final ModelRegistry modelRegistry;
+    private final String pythonScriptPath;
+    private final ObjectMapper objectMapper;
+    private final AnalysisStageTimer stageTimer;
+    // Workers are started one at a time so that several interpreters don't load the model concurrently.
+    private final ExecutorService launcher = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "python-worker-launcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile Generation current;
+    // Extra models kept warm next to the serving one, e.g. the second stage of the ensemble.
+    private final Map<String, Generation> pinned = new ConcurrentHashMap<>();
+    private volatile boolean shuttingDown;
+
+    @Value("${python.executable:python}")
+    private String pythonExecutable;
+
+    @Value("${python.worker.pool.enabled:true}")
+    private boolean enabled;
+
+    @Value("${python.worker.pool.size:2}")
+    private int poolSize;
+
+    @Value("${python.worker.startup-timeout:180}")
+    private int startupTimeout;
+
+    @Value("${python.worker.acquire-timeout:60}")
+    private int acquireTimeout;
+
+    @Value("${python.worker.restart-delay:5}")
+    private int restartDelay;
+
+    @Value("${python.worker.health-check.timeout:10}")
+    private int healthCheckTimeout;
+
+    @Value("${python.worker.warmup-requests:3}")
+    private int warmupRequests;
+
+    @Value("${python.timeout:60}")
+    private int pythonTimeout;
+
+    @Value("${shap.background.dir:/path/to/background/images}")
+    private String shapBackgroundDir;
+
+    @Autowired
+    public PythonWorkerPool(
+            ModelRegistry modelRegistry,
+            @Qualifier("pythonScriptPath") String pythonScriptPath,
+            ObjectMapper objectMapper,
+            AnalysisStageTimer stageTimer) {
+        this.modelRegistry = modelRegistry;
+        this.pythonScriptPath = pythonScriptPath;
+        this.objectMapper = objectMapper;
+        this.stageTimer = stageTimer;
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            log.info("Python worker pool disabled, analyses will spawn one process per request");
+            return;
+        }
+        Generation generation = new Generation(modelRegistry.active());
+        current = generation;
+        log.info("Starting Python worker pool with {} workers for model {} ({}, dense={}, dropout={})", poolSize,
+                generation.model.getVersion(), generation.model.getArch(), generation.model.getDenseUnits(),
+                generation.model.getDropout());
+        for (int slot = 0; slot < poolSize; slot++) {
+            scheduleLaunch(generation, slot);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        shuttingDown = true;
+        launcher.shutdownNow();
+        if (current != null) {
+            current.retire();
+        }
+        pinned.values().forEach(Generation::retire);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Workers hold the serving model version and any pinned ones; requests for any other version must be
+     * served by a dedicated process.
+     */
+    public boolean supports(String modelVersion) {
+        return enabled && current != null
+                && (current.model.getVersion().equals(modelVersion) || pinned.containsKey(modelVersion));
+    }
+
+    public boolean isServing(String modelVersion) {
+        return enabled && current != null && current.model.getVersion().equals(modelVersion);
+    }
+
+    /**
+     * Keeps {@code size} workers with {@code model} loaded next to the serving generation. They are
+     * started in the background; until they are ready, {@link #supports} is already true and requests
+     * wait for them like for any busy worker.
+     */
+    public void pin(ModelDescriptor model, int size) {
+        if (!enabled || size <= 0) {
+            return;
+        }
+        Generation generation = new Generation(model);
+        if (pinned.putIfAbsent(model.getVersion(), generation) != null) {
+            return;
+        }
+        log.info("Pinning {} Python workers for model {} ({})", size, model.getVersion(), model.getArch());
+        for (int slot = 0; slot < size; slot++) {
+            scheduleLaunch(generation, poolSize + slot);
+        }
+    }
+
+    /**
+     * Sends {@code request} to an idle worker of the serving generation. The response carries the
+     * {@code modelVersion} of the worker that produced it, which can differ from the requested one if a
+     * switch happened while the request was queued, and the {@code workerWaitMs} spent waiting for an idle worker.
+     */
+    public Map<String, Object> execute(Map<String, Object> request, long timeoutSeconds) throws IOException, InterruptedException {
+        return execute(null, request, timeoutSeconds);
+    }
+
+    /**
+     * Like {@link #execute(Map, long)} but on the workers of {@code modelVersion}, which must be serving
+     * or pinned; null means whichever version is serving.
+     */
+    public Map<String, Object> execute(String modelVersion, Map<String, Object> request, long timeoutSeconds)
+            throws IOException, InterruptedException {
+        long requestedAt = System.nanoTime();
+        long deadline = requestedAt + TimeUnit.SECONDS.toNanos(acquireTimeout);
+        while (true) {
+            // Poll in slices so that callers waiting on a retired generation move to its replacement.
+            Generation generation = generationFor(modelVersion);
+            PythonWorker worker = generation.idle.poll(ACQUIRE_SLICE_MILLIS, TimeUnit.MILLISECONDS);
+            if (worker != null) {
+                long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - requestedAt);
+                try {
+                    Map<String, Object> response = worker.call(request, timeoutSeconds);
+                    response.put("modelVersion", generation.model.getVersion());
+                    response.put("workerWaitMs", waitedMillis);
+                    return response;
+                } finally {
+                    release(generation, worker);
+                }
+            }
+            if (System.nanoTime() > deadline) {
+                throw new IOException("No Python worker became available within " + acquireTimeout + " seconds");
+            }
+        }
+    }
+
+    private Generation generationFor(String modelVersion) throws IOException {
+        Generation serving = current;
+        if (modelVersion == null || serving.model.getVersion().equals(modelVersion)) {
+            return serving;
+        }
+        Generation generation = pinned.get(modelVersion);
+        if (generation == null) {
+            throw new IOException("No Python workers hold model " + modelVersion);
+        }
+        return generation;
+    }
+
+    /**
+     * Starts a full set of workers for {@code model} next to the serving ones, runs warm-up inferences on
+     * each, and only then makes them the serving generation. If any worker fails to start or warm up, the
+     * standby workers are stopped and the serving generation is left untouched.
+     */
+    public synchronized void activate(ModelDescriptor model) throws IOException, InterruptedException {
+        if (!enabled) {
+            return;
+        }
+        Generation standby = new Generation(model);
+        List<PythonWorker> started = new ArrayList<>();
+        try {
+            for (int slot = 0; slot < poolSize; slot++) {
+                long launchedAt = System.nanoTime();
+                PythonWorker worker = PythonWorker.start(slot, buildCommand(standby), objectMapper);
+                started.add(worker);
+                worker.awaitReady(startupTimeout);
+                stageTimer.record(null, "model-load", model, System.nanoTime() - launchedAt, "success");
+                warmUp(worker, model);
+            }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+            log.error("Standby workers for model {} failed to start: {}", model.getVersion(), e.getMessage());
+            started.forEach(PythonWorker::destroy);
+            throw e;
+        }
+        started.forEach(standby.idle::offer);
+
+        Generation previous = current;
+        current = standby;
+        previous.retire();
+        log.info("Python worker pool switched from model {} to {}", previous.model.getVersion(), model.getVersion());
+    }
+
+    private void warmUp(PythonWorker worker, ModelDescriptor model) throws IOException, InterruptedException {
+        byte[] image = warmupImage(model.getImgWidth(), model.getImgHeight());
+        for (int i = 0; i < warmupRequests; i++) {
+            long start = System.nanoTime();
+            Map<String, Object> response = worker.call(analyzeRequest(image, "warmup.png", model.getImgHeight(),
+                    model.getImgWidth(), null, List.of(), null), pythonTimeout);
+            if (response.containsKey("error")) {
+                throw new IOException("Warm-up inference failed on model " + model.getVersion() + ": " + response.get("error"));
+            }
+            log.debug("Warm-up inference {} on worker {} for model {} took {} ms", i + 1, worker.getSlot(),
+                    model.getVersion(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        }
+    }
+
+    private static byte[] warmupImage(int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(0);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt(0x1000000));
+            }
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", out);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Builds an {@code analyze} request that carries the image inline as base64, so it travels over the
+     * worker's stdin pipe instead of through the file system.
+     */
+    public Map<String, Object> analyzeRequest(byte[] imageData, String imageName, int imgHeight, int imgWidth,
+                                              Path xaiOutputDir, List<String> xaiTypes, Path shapBackground) {
+        Map<String, Object> request = analyzeRequest(imageName, imgHeight, imgWidth, xaiOutputDir, xaiTypes, shapBackground);
+        request.put("imageData", Base64.getEncoder().encodeToString(imageData));
+        return request;
+    }
+
+    /**
+     * Builds an {@code analyze} request for an image already resized to the model input in Java, carried
+     * as HWC RGB bytes, so the worker skips decoding and resizing.
+     */
+    public Map<String, Object> analyzePixelsRequest(byte[] rgb, String imageName, int imgHeight, int imgWidth,
+                                                    Path xaiOutputDir, List<String> xaiTypes, Path shapBackground) {
+        Map<String, Object> request = analyzeRequest(imageName, imgHeight, imgWidth, xaiOutputDir, xaiTypes, shapBackground);
+        request.put("pixelData", Base64.getEncoder().encodeToString(rgb));
+        return request;
+    }
+
+    private Map<String, Object> analyzeRequest(String imageName, int imgHeight, int imgWidth,
+                                               Path xaiOutputDir, List<String> xaiTypes, Path shapBackground) {
+        Map<String, Object> request = new HashMap<>();
+        request.put("op", "analyze");
+        request.put("imageName", imageName);
+        request.put("imgHeight", imgHeight);
+        request.put("imgWidth", imgWidth);
+        request.put("xaiTypes", xaiTypes);
+        if (xaiOutputDir != null) {
+            request.put("xaiOutputDir", xaiOutputDir.toString());
+        }
+        if (shapBackground != null) {
+            request.put("shapBackground", shapBackground.toString());
+        }
+        return request;
+    }
+
+    @Scheduled(fixedDelayString = "${python.worker.health-check.interval:30000}")
+    public void healthCheck() {
+        if (!enabled || shuttingDown) {
+            return;
+        }
+        healthCheck(current);
+        pinned.values().forEach(this::healthCheck);
+    }
+
+    private void healthCheck(Generation generation) {
+        int idleCount = generation.idle.size();
+        for (int i = 0; i < idleCount; i++) {
+            PythonWorker worker = generation.idle.poll();
+            if (worker == null) {
+                return;
+            }
+            if (worker.ping(healthCheckTimeout)) {
+                release(generation, worker);
+            } else {
+                log.warn("Python worker {} failed its health check, restarting it", worker.getSlot());
+                worker.destroy();
+                scheduleLaunch(generation, worker.getSlot());
+            }
+        }
+    }
+
+    public int getIdleWorkerCount() {
+        return current != null ? current.idle.size() : 0;
+    }
+
+    /**
+     * Version of the model loaded by the serving workers, or null when the pool is disabled.
+     */
+    public String getServingVersion() {
+        return enabled && current != null ? current.model.getVersion() : null;
+    }
+
+    public int getPoolSize() {
+        return enabled ? poolSize : 0;
+    }
+
+    private void release(Generation generation, PythonWorker worker) {
+        if (generation.retired || shuttingDown) {
+            worker.destroy();
+        } else if (worker.isReady()) {
+            generation.idle.offer(worker);
+            // retire() may have drained the queue between the check above and the offer.
+            if (generation.retired && generation.idle.remove(worker)) {
+                worker.destroy();
+            }
+        } else {
+            log.warn("Python worker {} is no longer running, restarting it", worker.getSlot());
+            worker.destroy();
+            scheduleLaunch(generation, worker.getSlot());
+        }
+    }
+
+    private void scheduleLaunch(Generation generation, int slot) {
+        if (shuttingDown || generation.retired) {
+            return;
+        }
+        launcher.submit(() -> {
+            if (generation.retired) {
+                return;
+            }
+            PythonWorker worker = null;
+            long launchedAt = System.nanoTime();
+            try {
+                worker = PythonWorker.start(slot, buildCommand(generation), objectMapper);
+                worker.awaitReady(startupTimeout);
+                stageTimer.record(null, "model-load", generation.model, System.nanoTime() - launchedAt, "success");
+                release(generation, worker);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                if (worker != null) {
+                    worker.destroy();
+                }
+            } catch (Exception e) {
+                stageTimer.record(null, "model-load", generation.model, System.nanoTime() - launchedAt, "error");
+                log.error("Failed to start Python worker {}: {}", slot, e.getMessage());
+                if (worker != null) {
+                    worker.destroy();
+                }
+                retryLaunch(generation, slot);
+            }
+        });
+    }
+
+    private void retryLaunch(Generation generation, int slot) {
+        try {
+            TimeUnit.SECONDS.sleep(restartDelay);
+            scheduleLaunch(generation, slot);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private List<String> buildCommand(Generation generation) {
+        ModelDescriptor model = generation.model;
+        List<String> command = new ArrayList<>();
+        command.add(pythonExecutable);
+        command.add(pythonScriptPath);
+        command.add("--serve");
+        command.add("--model"); command.add(modelRegistry.modelPath(model).toString());
+        command.add("--arch"); command.add(model.getArch());
+        command.add("--dense-units"); command.add(String.valueOf(model.getDenseUnits()));
+        command.add("--dropout"); command.add(String.valueOf(model.getDropout()));
+        command.add("--shap-background-dir"); command.add(shapBackgroundDir);
+        return command;
+    }
+
+    private static final class Generation {
+        private final ModelDescriptor model;
+        private final BlockingQueue<PythonWorker> idle = new LinkedBlockingQueue<>();
+        private volatile boolean retired;
+
+        private Generation(ModelDescriptor model) {
+            this.model = model;
+        }
+
+        /**
+         * Stops idle workers now; busy ones are stopped by {@link #release} when their request completes.
+         */
+        private void retire() {
+            retired = true;
+            List<PythonWorker> workers = new ArrayList<>();
+            idle.drainTo(workers);
+            workers.forEach(PythonWorker::destroy);
+        }
+    }
+}
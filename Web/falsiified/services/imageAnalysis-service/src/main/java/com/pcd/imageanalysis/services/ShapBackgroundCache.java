@@ -0,0 +1,117 @@
+package com.pcd.imageanalysis.services;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Optional;
+
+/**
+ * Names the preprocessed SHAP background tensor for the current contents of {@code shap.background.dir}.
+ * The file name carries a fingerprint of the image set and the model input size, so the Python side
+ * builds it once and rebuilds only when images are added, removed or modified.
+ */
+@Component
+public class ShapBackgroundCache {
+    private static final Logger log = LoggerFactory.getLogger(ShapBackgroundCache.class);
+
+    // Bump when the way Python builds the tensor changes, so stale caches are not reused.
+    private static final String FORMAT_VERSION = "v2";
+    private static final String FILE_PREFIX = "shap_background_";
+
+    @Value("${shap.background.dir:/path/to/background/images}")
+    private String backgroundDir;
+
+    @Value("${shap.background.cache-dir:${java.io.tmpdir}/shap_background_cache}")
+    private String cacheDir;
+
+    @Value("${shap.background.rescan-interval-ms:60000}")
+    private long rescanIntervalMillis;
+
+    private String fingerprint;
+    private long scannedAt;
+
+    /**
+     * Returns the cache file to use for the given input size, or empty if there are no background images.
+     */
+    public synchronized Optional<Path> reference(int imgHeight, int imgWidth) {
+        long now = System.currentTimeMillis();
+        if (fingerprint == null || now - scannedAt >= rescanIntervalMillis) {
+            String current = scan();
+            if (current != null && fingerprint != null && !current.equals(fingerprint)) {
+                log.info("SHAP background set in {} changed, the cached tensors will be rebuilt", backgroundDir);
+                deleteStaleFiles(current);
+            }
+            fingerprint = current;
+            scannedAt = now;
+        }
+        if (fingerprint == null) {
+            return Optional.empty();
+        }
+        return Optional.of(Paths.get(cacheDir, FILE_PREFIX + fingerprint + "_" + imgHeight + "x" + imgWidth + ".pt"));
+    }
+
+    private String scan() {
+        Path dir = Paths.get(backgroundDir);
+        if (!Files.isDirectory(dir)) {
+            log.warn("SHAP background directory {} does not exist", backgroundDir);
+            return null;
+        }
+        List<String> entries = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+            for (Path file : stream) {
+                String name = file.getFileName().toString().toLowerCase(Locale.ROOT);
+                if (Files.isRegularFile(file) && (name.endsWith(".png") || name.endsWith(".jpg") || name.endsWith(".jpeg"))) {
+                    entries.add(file.getFileName() + "|" + Files.size(file) + "|" + Files.getLastModifiedTime(file).toMillis());
+                }
+            }
+        } catch (IOException e) {
+            log.error("Failed to scan SHAP background directory {}", backgroundDir, e);
+            return null;
+        }
+        if (entries.isEmpty()) {
+            return null;
+        }
+        entries.sort(null);
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(FORMAT_VERSION.getBytes(StandardCharsets.UTF_8));
+            for (String entry : entries) {
+                digest.update((entry + "\n").getBytes(StandardCharsets.UTF_8));
+            }
+            return HexFormat.of().formatHex(digest.digest()).substring(0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    private void deleteStaleFiles(String current) {
+        Path dir = Paths.get(cacheDir);
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_PREFIX + "*.pt")) {
+            for (Path file : stream) {
+                if (!file.getFileName().toString().startsWith(FILE_PREFIX + current)) {
+                    Files.deleteIfExists(file);
+                    log.debug("Deleted stale SHAP background cache {}", file);
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Failed to clean up SHAP background caches in {}", cacheDir, e);
+        }
+    }
+}
@@ -0,0 +1,466 @@
+package com.pcd.imageanalysis.services;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Classifies large images tile by tile so that small manipulated regions are not averaged away by the
+ * resize to the model input size.
+ * <p>
+ * The image is never decoded at full resolution: for each scale in {@code analysis.tiling.scales} it is
+ * read one band of tile rows at a time with ImageIO region reads subsampled by that scale, and cut into
+ * overlapping model-sized tiles. Tiles go to the Python workers as {@code analyze_batch} calls, several
+ * batches in parallel; encoded tiles waiting for or in a worker call are bounded by
+ * {@code analysis.tiling.memory-budget-mb}. A subsampled view of the whole image is scored as well.
+ * <p>
+ * The verdict uses the larger of the whole-image score and the mean of the {@code top-k} tile scores.
+ * The per-scale score grids and the top tiles are returned under {@code tiling}. Images below
+ * {@code min-pixels} are delegated to the PyTorch engine unchanged.
+ */
+@Service
+public class TiledInferenceEngine implements InferenceEngine {
+    private static final Logger log = LoggerFactory.getLogger(TiledInferenceEngine.class);
+    // Raw tile, BMP encoding, base64 copy and its JSON string all live at once while a batch is out.
+    private static final int BYTES_PER_PIXEL_IN_FLIGHT = 3 * 4;
+
+    private final PyTorchModelService pyTorchModelService;
+    private final PythonWorkerPool workerPool;
+    private ExecutorService executor;
+    private Semaphore memoryBudget;
+    private int budgetKb;
+
+    @Value("${analysis.tiling.enabled:true}")
+    private boolean enabled;
+
+    @Value("${analysis.tiling.min-pixels:4000000}")
+    private long minPixels;
+
+    @Value("${analysis.tiling.scales:1,2,4}")
+    private int[] scales;
+
+    @Value("${analysis.tiling.overlap:0.5}")
+    private double overlap;
+
+    @Value("${analysis.tiling.batch-size:8}")
+    private int batchSize;
+
+    @Value("${analysis.tiling.parallelism:0}")
+    private int parallelism;
+
+    @Value("${analysis.tiling.memory-budget-mb:256}")
+    private int memoryBudgetMb;
+
+    @Value("${analysis.tiling.top-k:3}")
+    private int topK;
+
+    @Value("${analysis.tiling.threshold:0.5}")
+    private double threshold;
+
+    @Value("${python.timeout:60}")
+    private int pythonTimeout;
+
+    @Autowired
+    public TiledInferenceEngine(PyTorchModelService pyTorchModelService, PythonWorkerPool workerPool) {
+        this.pyTorchModelService = pyTorchModelService;
+        this.workerPool = workerPool;
+    }
+
+    @PostConstruct
+    public void init() {
+        int threads = parallelism > 0 ? parallelism : Math.max(1, workerPool.getPoolSize());
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "tile-inference-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        budgetKb = Math.max(1, memoryBudgetMb) * 1024;
+        memoryBudget = new Semaphore(budgetKb);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Override
+    public String getName() {
+        return "tiled";
+    }
+
+    @Override
+    public boolean isAvailable() {
+        return enabled && workerPool.isEnabled();
+    }
+
+    @Override
+    public String getConfigurationKey() {
+        String pytorch = pyTorchModelService.getConfigurationKey();
+        return (pytorch.isEmpty() ? "" : pytorch + ",") + "min-pixels=" + minPixels + ",scales=" + Arrays.toString(scales) + ",overlap=" + overlap
+                + ",top-k=" + topK + ",threshold=" + threshold;
+    }
+
+    @Override
+    public Map<String, Object> analyzeImage(
+            byte[] imageData,
+            String imageName,
+            String arch,
+            int imgHeight,
+            int imgWidth,
+            int denseUnits,
+            double dropout,
+            String modelVersion
+    ) throws IOException, InterruptedException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new ByteArrayInputStream(imageData))) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Unsupported image format for " + imageName);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if ((long) width * height < minPixels) {
+                    return pyTorchModelService.analyzeImage(
+                            imageData, imageName, arch, imgHeight, imgWidth, denseUnits, dropout, modelVersion);
+                }
+                return analyzeTiles(reader, width, height, imageName, imgHeight, imgWidth, modelVersion);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private Map<String, Object> analyzeTiles(ImageReader reader, int width, int height, String imageName,
+                                             int tileHeight, int tileWidth, String modelVersion)
+            throws IOException, InterruptedException {
+        long start = System.nanoTime();
+        TileRun run = new TileRun(imageName, tileHeight, tileWidth, modelVersion);
+        try {
+            // Whole-image view, subsampled so the model still resizes it rather than the decoder doing all the work.
+            int globalScale = Math.max(1, Math.max(width / (tileWidth * 2), height / (tileHeight * 2)));
+            BufferedImage global = readRegion(reader, new Rectangle(0, 0, width, height), globalScale);
+            run.add(new Tile(0, 0, 0, 0, 0, width, height), global);
+
+            for (int scale : scales) {
+                int scaledWidth = ceilDiv(width, scale);
+                int scaledHeight = ceilDiv(height, scale);
+                if (scale <= 0 || (scaledWidth <= tileWidth && scaledHeight <= tileHeight)) {
+                    continue;
+                }
+                List<Integer> columns = positions(scaledWidth, tileWidth);
+                List<Integer> rows = positions(scaledHeight, tileHeight);
+                run.grids.put(scale, new ScoreGrid(scale, rows.size(), columns.size(), stride(tileWidth) * scale));
+                for (int row = 0; row < rows.size(); row++) {
+                    int sourceY = rows.get(row) * scale;
+                    Rectangle band = new Rectangle(0, sourceY, width, Math.min(tileHeight * scale, height - sourceY));
+                    BufferedImage bandImage = readRegion(reader, band, scale);
+                    for (int column = 0; column < columns.size(); column++) {
+                        int x = columns.get(column);
+                        int w = Math.min(tileWidth, bandImage.getWidth() - x);
+                        int h = Math.min(tileHeight, bandImage.getHeight());
+                        run.add(new Tile(scale, row, column, x * scale, sourceY, w * scale, h * scale),
+                                bandImage.getSubimage(x, 0, w, h));
+                    }
+                }
+            }
+            run.flush();
+            run.await();
+        } finally {
+            run.cancel();
+        }
+
+        Map<String, Object> result = run.toResult(width, height);
+        log.info("Tiled analysis of {} ({}x{}) scored {} tiles in {} ms: {}", imageName, width, height,
+                run.tileCount, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), result.get("confidenceScore"));
+        return result;
+    }
+
+    BufferedImage readRegion(ImageReader reader, Rectangle region, int subsampling) throws IOException {
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceRegion(region);
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        return reader.read(0, param);
+    }
+
+    /**
+     * Tile origins along one axis: every {@code stride} pixels, plus one flush with the far edge.
+     */
+    private List<Integer> positions(int length, int tileSize) {
+        List<Integer> positions = new ArrayList<>();
+        if (length <= tileSize) {
+            positions.add(0);
+            return positions;
+        }
+        int stride = stride(tileSize);
+        for (int p = 0; p + tileSize < length; p += stride) {
+            positions.add(p);
+        }
+        positions.add(length - tileSize);
+        return positions;
+    }
+
+    private int stride(int tileSize) {
+        return Math.max(1, (int) Math.round(tileSize * (1 - Math.min(0.9, Math.max(0, overlap)))));
+    }
+
+    private static int ceilDiv(int value, int divisor) {
+        return divisor <= 0 ? value : (value + divisor - 1) / divisor;
+    }
+
+    private static byte[] encode(BufferedImage tile) throws IOException {
+        BufferedImage rgb = tile;
+        if (tile.getType() != BufferedImage.TYPE_INT_RGB) {
+            rgb = new BufferedImage(tile.getWidth(), tile.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D graphics = rgb.createGraphics();
+            try {
+                graphics.drawImage(tile, 0, 0, null);
+            } finally {
+                graphics.dispose();
+            }
+        }
+        // BMP: no compression work on either side, the tiles are small and only cross a local pipe.
+        ByteArrayOutputStream out = new ByteArrayOutputStream(rgb.getWidth() * rgb.getHeight() * 3 + 64);
+        if (!ImageIO.write(rgb, "bmp", out)) {
+            throw new IOException("No BMP writer available");
+        }
+        return out.toByteArray();
+    }
+
+    private record Tile(int scale, int row, int column, int x, int y, int width, int height) {
+    }
+
+    private static final class ScoreGrid {
+        private final int scale;
+        private final int strideSource;
+        private final double[][] scores;
+
+        private ScoreGrid(int scale, int rows, int columns, int strideSource) {
+            this.scale = scale;
+            this.strideSource = strideSource;
+            this.scores = new double[rows][columns];
+        }
+    }
+
+    /**
+     * State of one tiled analysis: the batch being filled, the batches out at workers and the scores.
+     */
+    private final class TileRun {
+        private final String imageName;
+        private final int tileHeight;
+        private final int tileWidth;
+        private final String modelVersion;
+        private final Map<Integer, ScoreGrid> grids = new LinkedHashMap<>();
+        private final List<Map.Entry<Tile, Double>> tileScores = new ArrayList<>();
+        private final List<CompletableFuture<Void>> batches = new ArrayList<>();
+        private List<Tile> pendingTiles = new ArrayList<>();
+        private List<Map<String, Object>> pendingItems = new ArrayList<>();
+        private volatile String servedBy;
+        private double globalScore = Double.NaN;
+        private int tileCount;
+
+        private TileRun(String imageName, int tileHeight, int tileWidth, String modelVersion) {
+            this.imageName = imageName;
+            this.tileHeight = tileHeight;
+            this.tileWidth = tileWidth;
+            this.modelVersion = modelVersion;
+        }
+
+        private void add(Tile tile, BufferedImage image) throws IOException, InterruptedException {
+            byte[] encoded = encode(image);
+            Map<String, Object> item = new HashMap<>();
+            item.put("imageData", Base64.getEncoder().encodeToString(encoded));
+            item.put("imageName", imageName + "#" + tile.scale() + ":" + tile.row() + ":" + tile.column());
+            item.put("imgHeight", tileHeight);
+            item.put("imgWidth", tileWidth);
+            item.put("xaiTypes", List.of());
+            pendingTiles.add(tile);
+            pendingItems.add(item);
+            tileCount++;
+            if (pendingTiles.size() >= batchSize) {
+                flush();
+            }
+        }
+
+        private void flush() throws InterruptedException {
+            if (pendingTiles.isEmpty()) {
+                return;
+            }
+            List<Tile> tiles = pendingTiles;
+            List<Map<String, Object>> items = pendingItems;
+            pendingTiles = new ArrayList<>();
+            pendingItems = new ArrayList<>();
+
+            int permits = Math.min(budgetKb, Math.max(1,
+                    tiles.size() * tileWidth * tileHeight * BYTES_PER_PIXEL_IN_FLIGHT / 1024));
+            // Blocks the decoding thread once the budget is used up, so decoding never runs ahead of the workers.
+            memoryBudget.acquire(permits);
+            // Whoever sets this returns the permits: the batch once it runs, or cancel() if it never will.
+            AtomicBoolean claimed = new AtomicBoolean();
+            CompletableFuture<Void> batch;
+            try {
+                batch = CompletableFuture.runAsync(() -> {
+                    if (!claimed.compareAndSet(false, true)) {
+                        return;
+                    }
+                    try {
+                        score(tiles, items);
+                    } catch (IOException e) {
+                        throw new CompletionException(e);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new CompletionException(e);
+                    } finally {
+                        memoryBudget.release(permits);
+                    }
+                }, executor);
+            } catch (RuntimeException e) {
+                memoryBudget.release(permits);
+                throw e;
+            }
+            // A batch cancelled while still queued never runs its body.
+            batch.whenComplete((ignored, error) -> {
+                if (claimed.compareAndSet(false, true)) {
+                    memoryBudget.release(permits);
+                }
+            });
+            batches.add(batch);
+        }
+
+        private void score(List<Tile> tiles, List<Map<String, Object>> items) throws IOException, InterruptedException {
+            Map<String, Object> response = workerPool.execute(modelVersion,
+                    Map.of("op", "analyze_batch", "items", items), pythonTimeout);
+            if (response.containsKey("error")) {
+                throw new IOException("Python worker failed to score tiles: " + response.get("error"));
+            }
+            if (!(response.get("results") instanceof List<?> results) || results.size() != tiles.size()) {
+                throw new IOException("Python worker returned an unexpected tile batch response");
+            }
+            servedBy = response.get("modelVersion") != null ? response.get("modelVersion").toString() : null;
+            for (int i = 0; i < tiles.size(); i++) {
+                Object itemResponse = results.get(i);
+                Object itemResult = itemResponse instanceof Map<?, ?> map ? map.get("result") : null;
+                if (!(itemResult instanceof Map<?, ?> resultMap) || !(resultMap.get("confidenceScore") instanceof Number score)) {
+                    throw new IOException("Tile " + tiles.get(i) + " was not scored: " + itemResponse);
+                }
+                record(tiles.get(i), score.doubleValue());
+            }
+        }
+
+        private synchronized void record(Tile tile, double score) {
+            if (tile.scale() == 0) {
+                globalScore = score;
+                return;
+            }
+            grids.get(tile.scale()).scores[tile.row()][tile.column()] = score;
+            tileScores.add(Map.entry(tile, score));
+        }
+
+        private void await() throws IOException, InterruptedException {
+            try {
+                CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                }
+                if (cause instanceof InterruptedException interruptedException) {
+                    throw interruptedException;
+                }
+                throw new IOException("Tiled analysis failed: " + cause.getMessage(), cause);
+            }
+        }
+
+        /**
+         * Drops the batches still queued. Those already at a worker finish and return their permits then.
+         */
+        private void cancel() {
+            batches.forEach(batch -> batch.cancel(false));
+        }
+
+        private synchronized Map<String, Object> toResult(int width, int height) {
+            List<Map.Entry<Tile, Double>> ranked = new ArrayList<>(tileScores);
+            ranked.sort(Map.Entry.<Tile, Double>comparingByValue(Comparator.reverseOrder()));
+            List<Map.Entry<Tile, Double>> top = ranked.subList(0, Math.min(Math.max(1, topK), ranked.size()));
+            double topMean = top.stream().mapToDouble(Map.Entry::getValue).average().orElse(0);
+            double score = Double.isNaN(globalScore) ? topMean : Math.max(globalScore, topMean);
+
+            List<Map<String, Object>> scaleMaps = new ArrayList<>();
+            for (ScoreGrid grid : grids.values()) {
+                Map<String, Object> scaleMap = new LinkedHashMap<>();
+                scaleMap.put("scale", grid.scale);
+                scaleMap.put("rows", grid.scores.length);
+                scaleMap.put("columns", grid.scores.length == 0 ? 0 : grid.scores[0].length);
+                scaleMap.put("tileSourceSize", List.of(tileWidth * grid.scale, tileHeight * grid.scale));
+                scaleMap.put("strideSource", grid.strideSource);
+                scaleMap.put("scores", grid.scores);
+                scaleMaps.add(scaleMap);
+            }
+            List<Map<String, Object>> topTiles = new ArrayList<>();
+            for (Map.Entry<Tile, Double> entry : top) {
+                Tile tile = entry.getKey();
+                Map<String, Object> topTile = new LinkedHashMap<>();
+                topTile.put("scale", tile.scale());
+                topTile.put("row", tile.row());
+                topTile.put("column", tile.column());
+                topTile.put("x", tile.x());
+                topTile.put("y", tile.y());
+                topTile.put("width", tile.width());
+                topTile.put("height", tile.height());
+                topTile.put("score", entry.getValue());
+                topTiles.add(topTile);
+            }
+
+            Map<String, Object> tiling = new LinkedHashMap<>();
+            tiling.put("imageWidth", width);
+            tiling.put("imageHeight", height);
+            tiling.put("overlap", overlap);
+            tiling.put("tiles", tileCount);
+            tiling.put("globalScore", Double.isNaN(globalScore) ? null : globalScore);
+            tiling.put("topKMean", topMean);
+            tiling.put("topTiles", topTiles);
+            tiling.put("scales", scaleMaps);
+
+            Map<String, Object> result = new HashMap<>();
+            result.put("isFalsified", score > threshold);
+            result.put("confidenceScore", score);
+            result.put("modelVersion", servedBy != null ? servedBy : modelVersion);
+            result.put("tiling", tiling);
+            return result;
+        }
+    }
+}
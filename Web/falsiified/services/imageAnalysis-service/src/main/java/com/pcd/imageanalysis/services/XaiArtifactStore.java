@@ -0,0 +1,79 @@
+package com.pcd.imageanalysis.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+import java.util.Optional;
+
+/**
+ * Durable storage for XAI visualizations. Artifacts are content-addressed: the id is the SHA-256 of the
+ * bytes, so it never changes for a given artifact and doubles as its HTTP ETag. Selected with
+ * {@code analysis.xai.store.type} ({@code gridfs} or {@code local}).
+ */
+public interface XaiArtifactStore {
+
+    String getName();
+
+    /**
+     * Copies the file into the store and returns its artifact id. Storing the same bytes twice is a no-op.
+     */
+    String store(Path file, String contentType) throws IOException;
+
+    boolean exists(String artifactId);
+
+    Optional<Artifact> open(String artifactId) throws IOException;
+
+    static boolean isArtifactId(String value) {
+        return value != null && value.length() == 64 && value.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    static String contentHash(Path file) throws IOException {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            try (InputStream in = Files.newInputStream(file)) {
+                byte[] buffer = new byte[8192];
+                int read;
+                while ((read = in.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 not available", e);
+        }
+    }
+
+    final class Artifact {
+        private final String id;
+        private final String contentType;
+        private final long length;
+        private final InputStream inputStream;
+
+        public Artifact(String id, String contentType, long length, InputStream inputStream) {
+            this.id = id;
+            this.contentType = contentType;
+            this.length = length;
+            this.inputStream = inputStream;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getContentType() {
+            return contentType;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public InputStream getInputStream() {
+            return inputStream;
+        }
+    }
+}
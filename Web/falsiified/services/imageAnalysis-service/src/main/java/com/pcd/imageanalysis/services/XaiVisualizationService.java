@@ -0,0 +1,334 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.client.ImageServiceClient;
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.DetectionDetails;
+import com.pcd.imageanalysis.model.ModelDescriptor;
+import com.pcd.imageanalysis.model.XaiQuality;
+import com.pcd.imageanalysis.repository.AnalysisResultRepository;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates XAI visualizations on demand. Analyses only classify the image; each visualization type is
+ * computed the first time it is requested (or prefetched), recorded on the analysis and served from the
+ * {@link XaiArtifactStore} afterwards. Concurrent requests for the same artifact share a single generation.
+ * <p>
+ * Each visualization records the {@link XaiQuality} tier it was produced at. A request for a higher tier
+ * than the stored one regenerates it; visualizations from before tiers existed count as STANDARD.
+ */
+@Service
+public class XaiVisualizationService {
+    private static final Logger log = LoggerFactory.getLogger(XaiVisualizationService.class);
+
+    private final AnalysisResultRepository analysisResultRepository;
+    private final ImageServiceClient imageServiceClient;
+    private final PyTorchModelService modelService;
+    private final MongoTemplate mongoTemplate;
+    private final XaiArtifactStore artifactStore;
+    private final AdmissionLimiter admissionLimiter;
+    private final ModelRegistry modelRegistry;
+    private final AnalysisStageTimer stageTimer;
+    private final Map<String, CompletableFuture<StoredVisualization>> inFlight = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @Value("${analysis.xai.workers:3}")
+    private int workerCount;
+
+    @Value("${analysis.xai.timeout:300}")
+    private long timeoutSeconds;
+
+    @Value("${analysis.xai.default-quality:STANDARD}")
+    private XaiQuality defaultQuality;
+
+    @Value("${analysis.service.user-id:ANALYSIS_SERVICE}")
+    private String serviceUserId;
+
+    @Value("${analysis.service.user-role:SYSTEM}")
+    private String serviceUserRole;
+
+    @Autowired
+    public XaiVisualizationService(AnalysisResultRepository analysisResultRepository,
+                                   ImageServiceClient imageServiceClient,
+                                   PyTorchModelService modelService,
+                                   MongoTemplate mongoTemplate,
+                                   XaiArtifactStore artifactStore,
+                                   AdmissionLimiter admissionLimiter,
+                                   ModelRegistry modelRegistry,
+                                   AnalysisStageTimer stageTimer) {
+        this.analysisResultRepository = analysisResultRepository;
+        this.imageServiceClient = imageServiceClient;
+        this.modelService = modelService;
+        this.mongoTemplate = mongoTemplate;
+        this.artifactStore = artifactStore;
+        this.admissionLimiter = admissionLimiter;
+        this.modelRegistry = modelRegistry;
+        this.stageTimer = stageTimer;
+    }
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCounter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, workerCount), r -> {
+            Thread thread = new Thread(r, "xai-generator-" + threadCounter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public static boolean isSupportedType(String type) {
+        return PyTorchModelService.XAI_TYPES.contains(type);
+    }
+
+    /**
+     * Opens the visualization, generating it first if none exists at {@code quality} or above (the default
+     * tier when null). With a time budget the generated one may come back at a lower tier. Empty if the
+     * analysis does not exist.
+     */
+    public Optional<Visualization> getVisualization(String analysisId, String type, XaiQuality quality,
+                                                    Duration timeBudget) throws IOException, InterruptedException {
+        Optional<AnalysisResult> analysis = analysisResultRepository.findById(analysisId);
+        if (analysis.isEmpty()) {
+            return Optional.empty();
+        }
+        XaiQuality minimum = quality != null ? quality : defaultQuality;
+        StoredVisualization existing = findStoredVisualization(analysis.get(), type, minimum);
+        if (existing != null) {
+            return open(existing);
+        }
+
+        CompletableFuture<StoredVisualization> generation = startGeneration(analysis.get(), type, minimum, timeBudget);
+        try {
+            StoredVisualization generated = generation.get(timeoutSeconds, TimeUnit.SECONDS);
+            if (timeBudget == null && !generated.quality().isAtLeast(minimum)) {
+                throw new IOException("XAI generation for " + type + " produced " + generated.quality()
+                        + " quality instead of " + minimum);
+            }
+            return open(generated);
+        } catch (TimeoutException e) {
+            throw new IOException("XAI generation for " + type + " timed out after " + timeoutSeconds + " seconds");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException("XAI generation failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    /**
+     * Starts generation of the given types in the background without waiting for the results.
+     */
+    public void prefetch(AnalysisResult analysis, List<String> types, XaiQuality quality) {
+        XaiQuality minimum = quality != null ? quality : defaultQuality;
+        for (String type : types) {
+            if (findStoredVisualization(analysis, type, minimum) == null) {
+                startGeneration(analysis, type, minimum, null);
+            }
+        }
+    }
+
+    private CompletableFuture<StoredVisualization> startGeneration(AnalysisResult analysis, String type,
+                                                                   XaiQuality quality, Duration timeBudget) {
+        if (!isSupportedType(type)) {
+            throw new IllegalArgumentException("Unsupported XAI visualization type: " + type);
+        }
+        if (!"COMPLETED".equals(analysis.getAnalysisStatus())) {
+            throw new IllegalStateException("Analysis " + analysis.getId() + " is not completed");
+        }
+        // A budgeted generation may settle for a lower tier, so only callers with the same budget share it.
+        String key = analysis.getId() + ":" + type + ":" + quality
+                + (timeBudget != null ? ":" + timeBudget.toMillis() + "ms" : "");
+        CompletableFuture<StoredVisualization> future = new CompletableFuture<>();
+        CompletableFuture<StoredVisualization> running = inFlight.putIfAbsent(key, future);
+        if (running != null) {
+            return running;
+        }
+        executor.execute(() -> {
+            try {
+                future.complete(generate(analysis, type, quality, timeBudget));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                future.completeExceptionally(e);
+            } catch (Exception e) {
+                future.completeExceptionally(e);
+            } finally {
+                inFlight.remove(key, future);
+            }
+        });
+        return future;
+    }
+
+    private StoredVisualization generate(AnalysisResult analysis, String type, XaiQuality quality, Duration timeBudget)
+            throws IOException, InterruptedException {
+        // A concurrent request may have finished generating this artifact since the caller looked.
+        Optional<AnalysisResult> current = analysisResultRepository.findById(analysis.getId());
+        StoredVisualization existing = current.map(fresh -> findStoredVisualization(fresh, type, quality)).orElse(null);
+        if (existing != null) {
+            return existing;
+        }
+        // Explain with the model that produced the analysis while the registry still has it.
+        ModelDescriptor model = modelRegistry.get(analysis.getAnalysisVersion()).orElseGet(modelRegistry::active);
+        if (analysis.getAnalysisVersion() != null && !model.getVersion().equals(analysis.getAnalysisVersion())) {
+            log.warn("Analysis {} was produced by model {}, explaining it with current model {}",
+                    analysis.getId(), analysis.getAnalysisVersion(), model.getVersion());
+        }
+
+        long start = System.nanoTime();
+        byte[] imageData = imageServiceClient.downloadImageBytes(analysis.getImageId(), serviceUserId,
+                serviceUserRole, "XAI visualization generation").orElseThrow(() ->
+                new IOException("Failed to download image " + analysis.getImageId() + " for XAI generation"));
+        Map<String, Object> result;
+        // Holds an inference slot but, being much slower than plain inference, does not feed the adaptive limit.
+        try (AdmissionLimiter.Permit ignored = admissionLimiter.acquire()) {
+            result = modelService.analyzeImage(imageData, analysis.getImageId(),
+                    model.getArch(), model.getImgHeight(), model.getImgWidth(), model.getDenseUnits(),
+                    model.getDropout(), model.getVersion(), List.of(type), quality, timeBudget);
+        }
+        Object visualizations = result.get("xaiVisualizations");
+        Object artifactId = visualizations instanceof Map<?, ?> map ? map.get(type) : null;
+        if (artifactId == null) {
+            throw new IOException("Python script did not produce a " + type + " visualization");
+        }
+        XaiQuality produced = PyTorchModelService.xaiQualities(result).getOrDefault(type, quality);
+
+        DetectionDetails.XaiArtifactRef stored = new DetectionDetails.XaiArtifactRef(artifactId.toString(), produced);
+        Update update = Update.update(
+                AnalysisResult.DETECTION_DETAILS_FIELD + "." + DetectionDetails.XAI_VISUALIZATIONS_FIELD + "." + type,
+                mongoTemplate.getConverter().convertToMongoType(stored));
+        // Keeps the timings of the lazy generation next to those of the analysis, e.g. stageTimingsMs.xai-lime.
+        stageTimer.recordReported(null, model, result).forEach((stage, millis) -> {
+            if (stage.startsWith("xai-")) {
+                update.set(AnalysisResult.STAGE_TIMINGS_FIELD + "." + stage, millis);
+            }
+        });
+        String unreadable = current.map(fresh -> unreadableReference(fresh, type)).orElse(null);
+        Query query = Query.query(Criteria.where("_id").is(analysis.getId())
+                .andOperator(notBetterThan(type, produced, unreadable)));
+        if (mongoTemplate.updateFirst(query, update, AnalysisResult.class).getMatchedCount() == 0) {
+            log.info("Kept the stored {} visualization of analysis {}, it is at a higher tier than {}",
+                    type, analysis.getId(), produced);
+        }
+        log.info("Generated {} visualization at {} quality (requested {}) for analysis {} in {} ms", type, produced,
+                quality, analysis.getId(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+        return new StoredVisualization(artifactId.toString(), produced);
+    }
+
+    /**
+     * Matches an analysis whose stored visualization of the type is missing, unreadable or below
+     * {@code produced}, so that a slower lower-tier generation never replaces a higher-tier one.
+     */
+    private static Criteria notBetterThan(String type, XaiQuality produced, String unreadableReference) {
+        String path = AnalysisResult.DETECTION_DETAILS_FIELD + "." + DetectionDetails.XAI_VISUALIZATIONS_FIELD + "." + type;
+        List<String> replaceable = Arrays.stream(XaiQuality.values())
+                .filter(produced::isAtLeast)
+                .map(Enum::name)
+                .toList();
+        List<Criteria> alternatives = new ArrayList<>(List.of(
+                Criteria.where(path).exists(false),
+                Criteria.where(path + ".q").in(replaceable)));
+        if (produced.isAtLeast(XaiQuality.STANDARD)) {
+            alternatives.add(Criteria.where(path + ".q").exists(false));
+        }
+        if (unreadableReference != null) {
+            alternatives.add(Criteria.where(path + ".id").is(unreadableReference));
+        }
+        return new Criteria().orOperator(alternatives);
+    }
+
+    /**
+     * The reference recorded for the type when its artifact can no longer be read, otherwise null.
+     */
+    private String unreadableReference(AnalysisResult analysis, String type) {
+        DetectionDetails details = analysis.getDetectionDetails();
+        DetectionDetails.XaiArtifactRef stored = details != null && details.getXaiVisualizations() != null
+                ? details.getXaiVisualizations().get(type)
+                : null;
+        if (stored == null || stored.artifactId() == null || storedVisualization(analysis, type) != null) {
+            return null;
+        }
+        return stored.artifactId();
+    }
+
+    private StoredVisualization findStoredVisualization(AnalysisResult analysis, String type, XaiQuality minimum) {
+        StoredVisualization stored = storedVisualization(analysis, type);
+        if (stored == null && analysis.getSourceAnalysisId() != null) {
+            // Cache hits share the artifacts of the analysis they were copied from.
+            stored = analysisResultRepository.findById(analysis.getSourceAnalysisId())
+                    .map(source -> storedVisualization(source, type))
+                    .orElse(null);
+        }
+        return stored != null && stored.quality().isAtLeast(minimum) ? stored : null;
+    }
+
+    /**
+     * Returns the artifact recorded for the type, as long as it can still be read. References written before
+     * the artifact store are file paths.
+     */
+    private StoredVisualization storedVisualization(AnalysisResult analysis, String type) {
+        DetectionDetails details = analysis.getDetectionDetails();
+        DetectionDetails.XaiArtifactRef stored = details != null && details.getXaiVisualizations() != null
+                ? details.getXaiVisualizations().get(type)
+                : null;
+        if (stored == null || stored.artifactId() == null) {
+            return null;
+        }
+        String reference = stored.artifactId();
+        boolean readable = XaiArtifactStore.isArtifactId(reference)
+                ? artifactStore.exists(reference)
+                : Files.isRegularFile(Paths.get(reference));
+        if (!readable) {
+            return null;
+        }
+        return new StoredVisualization(reference, stored.quality() != null ? stored.quality() : XaiQuality.STANDARD);
+    }
+
+    private Optional<Visualization> open(StoredVisualization stored) throws IOException {
+        String reference = stored.reference();
+        if (XaiArtifactStore.isArtifactId(reference)) {
+            return artifactStore.open(reference).map(artifact -> new Visualization(artifact, stored.quality()));
+        }
+        Path legacyPath = Paths.get(reference);
+        return Optional.of(new Visualization(new XaiArtifactStore.Artifact(
+                null, "image/png", Files.size(legacyPath), Files.newInputStream(legacyPath)), stored.quality()));
+    }
+
+    public record Visualization(XaiArtifactStore.Artifact artifact, XaiQuality quality) {
+    }
+
+    private record StoredVisualization(String reference, XaiQuality quality) {
+    }
+}
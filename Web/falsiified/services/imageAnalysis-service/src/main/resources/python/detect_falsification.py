@@ -1,9 +1,12 @@
 import argparse
+import base64
+import io
 import json
 import torch
 import torch.nn as nn
 import numpy as np
 import sys
+import time
 from pathlib import Path
 from PIL import Image, UnidentifiedImageError
 import logging
@@ -19,10 +22,70 @@ from pytorch_grad_cam import GradCAM
 from pytorch_grad_cam.utils.model_targets import ClassifierOutputTarget
 import lime
 from lime import lime_image
+from lime.wrappers.scikit_image import SegmentationAlgorithm
 from skimage.segmentation import mark_boundaries
 import shap
 import os
 import random
+from collections import namedtuple
+
+XAI_TYPES = ("gradcam", "lime", "shap")
+SHAP_BACKGROUND_MAX_IMAGES = 100
+SHAP_SEED = 0
+SHAP_BACKGROUND_MEMORY_ENTRIES = 4
+
+# XAI quality tiers, cheapest first. STANDARD matches the parameters used before tiers existed.
+XAI_TIER_ORDER = ("FAST", "STANDARD", "FORENSIC")
+DEFAULT_XAI_TIER = "STANDARD"
+XAI_TIERS = {
+    "FAST": {
+        "lime_samples": 150,
+        "lime_segmentation": ("slic", {"n_segments": 50, "compactness": 10, "sigma": 1}),
+        "lime_features": 5,
+        "shap_background": 10,
+        "shap_samples": 50,
+    },
+    "STANDARD": {
+        "lime_samples": 500,
+        "lime_segmentation": ("quickshift", {"kernel_size": 4, "max_dist": 200, "ratio": 0.2}),
+        "lime_features": 5,
+        "shap_background": 50,
+        "shap_samples": 200,
+    },
+    "FORENSIC": {
+        "lime_samples": 2000,
+        "lime_segmentation": ("quickshift", {"kernel_size": 2, "max_dist": 100, "ratio": 0.2}),
+        "lime_features": 8,
+        "shap_background": 100,
+        "shap_samples": 500,
+    },
+}
+
+# cache: preprocessed background tensor file (.pt); source_dir: images it is built from when missing
+ShapBackgroundRef = namedtuple("ShapBackgroundRef", ["cache", "source_dir"])
+_shap_backgrounds = {}
+
+class InMemoryImage:
+    """An image received as bytes over the worker protocol or stdin instead of read from disk."""
+
+    def __init__(self, data, name=None):
+        self.image = Image.open(io.BytesIO(data)).convert('RGB')
+        self.size_bytes = len(data)
+        self.stem = Path(name).stem if name else "image"
+
+    def __str__(self):
+        return f"<{self.size_bytes} bytes: {self.stem}>"
+
+class PreprocessedImage(InMemoryImage):
+    """Pixels already decoded and resized to the model input by the caller, as HWC RGB bytes."""
+
+    def __init__(self, data, img_height, img_width, name=None):
+        expected = img_height * img_width * 3
+        if len(data) != expected:
+            raise ValueError(f"pixelData has {len(data)} bytes, expected {expected} for {img_height}x{img_width} RGB")
+        self.image = Image.frombytes('RGB', (img_width, img_height), data)
+        self.size_bytes = len(data)
+        self.stem = Path(name).stem if name else "image"
 
 logging.basicConfig(
     level=logging.INFO,
@@ -97,19 +160,65 @@ class CustomModel(nn.Module):
         output = self.classifier(features)
         return output
 
+def parse_xai_types(value):
+    if value is None:
+        return list(XAI_TYPES)
+    if isinstance(value, str):
+        value = [] if value.strip().lower() == 'none' else [v.strip() for v in value.split(',') if v.strip()]
+    unknown = [v for v in value if v not in XAI_TYPES]
+    if unknown:
+        raise ValueError(f"Unsupported XAI types: {', '.join(unknown)}")
+    return list(value)
+
+def parse_xai_quality(value):
+    if value is None:
+        return DEFAULT_XAI_TIER
+    tier = str(value).strip().upper()
+    if tier not in XAI_TIERS:
+        raise ValueError(f"Unsupported XAI quality: {value}")
+    return tier
+
+def elapsed_ms(started):
+    return round((time.monotonic() - started) * 1000.0, 1)
+
+def xai_deadline(budget_ms):
+    """Monotonic time after which XAI stops refining, or None without a budget."""
+    if budget_ms is None or int(budget_ms) <= 0:
+        return None
+    return time.monotonic() + int(budget_ms) / 1000.0
+
 def parse_args():
     parser = argparse.ArgumentParser(description='Image Falsification Detection with XAI')
     parser.add_argument('--model', required=True, type=Path, help='Path to PyTorch model state_dict file (.pth)')
-    parser.add_argument('--image', required=True, type=Path, help='Path to image file to analyze')
-    parser.add_argument('--output', required=True, type=Path, help='Path to save JSON output')
+    parser.add_argument('--image', type=Path, help="Path to image file to analyze, or '-' to read it from stdin")
+    parser.add_argument('--image-name', type=str, help="Name used for XAI output files when --image is '-'")
+    parser.add_argument('--output', type=Path, help="Path to save JSON output, or '-' to print it on stdout")
     parser.add_argument('--arch', required=True, type=str, help='Architecture name used during training')
-    parser.add_argument('--img-height', required=True, type=int, help='Image height the model expects')
-    parser.add_argument('--img-width', required=True, type=int, help='Image width the model expects')
+    parser.add_argument('--img-height', type=int, default=224, help='Image height the model expects')
+    parser.add_argument('--img-width', type=int, default=224, help='Image width the model expects')
     parser.add_argument('--dense-units', required=True, type=int, help='Number of dense units in the classifier head')
     parser.add_argument('--dropout', required=True, type=float, help='Dropout rate used in the classifier head')
-    parser.add_argument('--xai-output-dir', required=True, type=Path, help='Directory to save XAI visualization images')
+    parser.add_argument('--xai-output-dir', type=Path, help='Directory to save XAI visualization images')
     parser.add_argument('--shap-background-dir', type=Path, help='Directory containing background images for SHAP')
-    return parser.parse_args()
+    parser.add_argument('--shap-background-cache', type=Path,
+                        help='Preprocessed SHAP background tensor file, built from --shap-background-dir if missing')
+    parser.add_argument('--xai-types', type=parse_xai_types, default=list(XAI_TYPES),
+                        help="Comma-separated XAI methods to generate (gradcam,lime,shap) or 'none'")
+    parser.add_argument('--xai-quality', type=parse_xai_quality, default=DEFAULT_XAI_TIER,
+                        help=f"XAI quality tier: {', '.join(XAI_TIER_ORDER)}")
+    parser.add_argument('--xai-time-budget-ms', type=int,
+                        help='Stop refining XAI after this many milliseconds and keep the best result so far')
+    parser.add_argument('--serve', action='store_true',
+                        help='Keep the model loaded and answer JSON-line requests on stdin/stdout')
+    args = parser.parse_args()
+    if not args.serve:
+        required = [('--image', args.image), ('--output', args.output)]
+        if args.xai_types:
+            required.append(('--xai-output-dir', args.xai_output_dir))
+        missing = [name for name, value in required if value is None]
+        if missing:
+            parser.error(f"the following arguments are required: {', '.join(missing)}")
+    return args
 
 def load_model(model_path, arch, dense_units, dropout):
     logging.info(f"Attempting to load model state_dict from: {model_path}")
@@ -135,7 +244,7 @@ def load_model(model_path, arch, dense_units, dropout):
 def preprocess_image(image_path, img_height, img_width, return_numpy=False):
     logging.debug(f"Preprocessing image: {image_path} to size ({img_height}, {img_width})")
     try:
-        img = Image.open(image_path).convert('RGB')
+        img = image_path.image if isinstance(image_path, InMemoryImage) else Image.open(image_path).convert('RGB')
         imagenet_mean = [0.485, 0.456, 0.406]
         imagenet_std = [0.229, 0.224, 0.225]
         if return_numpy:
@@ -227,8 +336,8 @@ def generate_gradcam(model, img_tensor, device, xai_output_dir, image_name):
         logging.error(f"Error generating Grad-CAM: {e}", exc_info=True)
         return None
 
-def generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_name):
-    logging.info("Generating LIME visualization")
+def generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_name, tier=XAI_TIERS[DEFAULT_XAI_TIER]):
+    logging.info(f"Generating LIME visualization ({tier['lime_samples']} samples)")
     try:
         logging.debug("Starting LIME explainer")
         def predict_fn(images):
@@ -246,13 +355,15 @@ def generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_na
             return np.hstack([1 - probs, probs])
 
         explainer = lime_image.LimeImageExplainer()
+        algorithm, segmentation_params = tier["lime_segmentation"]
         logging.debug("Running LIME explanation")
         explanation = explainer.explain_instance(
             img_numpy,
             predict_fn,
             top_labels=2,
             hide_color=0,
-            num_samples=500
+            num_samples=tier["lime_samples"],
+            segmentation_fn=SegmentationAlgorithm(algorithm, **segmentation_params)
         )
         logging.debug("LIME explanation generated, creating visualization")
         with torch.no_grad():
@@ -263,7 +374,7 @@ def generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_na
         temp, mask = explanation.get_image_and_mask(
             label=predicted_class,
             positive_only=True,
-            num_features=5,
+            num_features=tier["lime_features"],
             hide_rest=False
         )
         overlay = mark_boundaries(img_numpy / 255.0, mask)
@@ -276,31 +387,64 @@ def generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_na
         logging.error(f"Error generating LIME: {e}", exc_info=True)
         return None
 
-def generate_shap(model, img_tensor, device, xai_output_dir, image_name, shap_background_dir):
-    logging.info("Generating SHAP visualization")
+def build_shap_background(source_dir, img_height, img_width, max_images=SHAP_BACKGROUND_MAX_IMAGES):
+    """Preprocesses a fixed, seeded sample of the background images into one [N, 3, H, W] tensor."""
+    files = sorted(f for f in source_dir.iterdir() if f.is_file() and f.suffix.lower() in ('.png', '.jpg', '.jpeg'))
+    if len(files) > max_images:
+        # Kept in sample order, so the first N rows are themselves a random sample for the smaller tiers.
+        files = random.Random(SHAP_SEED).sample(files, max_images)
+    tensors = []
+    for f in files:
+        tensor = preprocess_image(f, img_height, img_width)
+        if tensor is not None:
+            tensors.append(tensor.squeeze(0))
+    if not tensors:
+        return None
+    logging.info(f"Built SHAP background from {len(tensors)} images in {source_dir}")
+    return torch.stack(tensors)
+
+def load_shap_background(ref, img_height, img_width, device):
+    """Returns the background tensor for ref, loading it once per worker and building the cache file if needed."""
+    if ref is None:
+        return None
+    key = (str(ref.cache) if ref.cache else f"{ref.source_dir}:{img_height}x{img_width}", str(device))
+    if key in _shap_backgrounds:
+        return _shap_backgrounds[key]
+
+    background = None
+    if ref.cache and ref.cache.is_file():
+        background = torch.load(ref.cache, map_location='cpu')
+        logging.info(f"Loaded SHAP background cache {ref.cache} ({background.shape[0]} images)")
+    elif ref.source_dir and ref.source_dir.is_dir():
+        background = build_shap_background(ref.source_dir, img_height, img_width)
+        if background is not None and ref.cache:
+            ref.cache.parent.mkdir(parents=True, exist_ok=True)
+            # Several workers may build the same file; the rename keeps readers from seeing a partial one.
+            tmp_path = ref.cache.with_name(f"{ref.cache.name}.{os.getpid()}.tmp")
+            torch.save(background, tmp_path)
+            os.replace(tmp_path, ref.cache)
+            logging.info(f"Saved SHAP background cache to {ref.cache}")
+    if background is None:
+        return None
+
+    background = background.to(device)
+    while len(_shap_backgrounds) >= SHAP_BACKGROUND_MEMORY_ENTRIES:
+        _shap_backgrounds.pop(next(iter(_shap_backgrounds)))
+    _shap_backgrounds[key] = background
+    return background
+
+def generate_shap(model, img_tensor, device, xai_output_dir, image_name, shap_background,
+                  tier=XAI_TIERS[DEFAULT_XAI_TIER]):
+    logging.info(f"Generating SHAP visualization ({tier['shap_background']} background images, {tier['shap_samples']} samples)")
     try:
-        background_files = []
-        if shap_background_dir and shap_background_dir.is_dir():
-            for f in shap_background_dir.iterdir():
-                if f.is_file() and f.suffix.lower() in ('.png', '.jpg', '.jpeg'):
-                    background_files.append(f)
-            background_files = random.sample(background_files, min(50, len(background_files))) if len(background_files) > 50 else background_files
-        if not background_files:
+        img_height, img_width = img_tensor.shape[-2:]
+        background_data = load_shap_background(shap_background, img_height, img_width, device)
+        if background_data is None:
             logging.warning("No background images for SHAP. Skipping SHAP.")
             return None
 
-        background_tensors = []
-        for f in background_files:
-            tensor = preprocess_image(f, 224, 224)
-            if tensor is not None:
-                background_tensors.append(tensor.squeeze(0))
-        if not background_tensors:
-            logging.warning("Failed to load background images for SHAP. Skipping SHAP.")
-            return None
-        background_data = torch.stack(background_tensors).to(device)
-
-        explainer = shap.GradientExplainer(model, background_data)
-        shap_values = explainer.shap_values(img_tensor.to(device))
+        explainer = shap.GradientExplainer(model, background_data[:tier["shap_background"]])
+        shap_values = explainer.shap_values(img_tensor.to(device), nsamples=tier["shap_samples"], rng_seed=SHAP_SEED)
         shap_values = shap_values[0] if isinstance(shap_values, list) else shap_values
 
         # Debug logging
@@ -356,72 +500,293 @@ def generate_shap(model, img_tensor, device, xai_output_dir, image_name, shap_ba
         logging.error(f"Error generating SHAP: {e}", exc_info=True)
         return None
 def detect_falsification(model, img_tensor, device):
-    logging.debug(f"Running inference on device: {device}")
+    return detect_falsification_batch(model, img_tensor, device)[0]
+
+def detect_falsification_batch(model, batch_tensor, device):
+    logging.debug(f"Running inference on device: {device} for a batch of {batch_tensor.shape[0]}")
     try:
-        img_tensor = img_tensor.to(device)
+        batch_tensor = batch_tensor.to(device)
         with torch.no_grad():
-            output_logits = model(img_tensor)
-            probability_falsified = torch.sigmoid(output_logits).item()
+            output_logits = model(batch_tensor).view(-1)
+            probabilities = torch.sigmoid(output_logits)
+        results = []
+        for logit, probability_falsified in zip(output_logits.tolist(), probabilities.tolist()):
             is_falsified = bool(probability_falsified > 0.5)
-            confidence = probability_falsified
-            result = {
+            results.append({
                 "isFalsified": is_falsified,
-                "confidenceScore": confidence,
+                "confidenceScore": probability_falsified,
                 "detectionDetails": {
-                    "logit_value": output_logits.item(),
+                    "logit_value": logit,
                 }
-            }
-            logging.info(f"Inference complete. Falsified: {is_falsified}, Confidence: {confidence:.4f}")
-            return result
+            })
+            logging.info(f"Inference complete. Falsified: {is_falsified}, Confidence: {probability_falsified:.4f}")
+        return results
     except Exception as e:
         logging.error(f"Error during model inference: {e}", exc_info=True)
         raise
 
+def explain_within_budget(explain, cost, quality, deadline):
+    """Runs explain at the requested tier. With a deadline it starts at FAST and moves up a tier only while the
+    next tier's time, projected from the last run, still fits; returns the best artifact and its tier."""
+    if deadline is None:
+        path = explain(XAI_TIERS[quality])
+        return path, quality if path else None
+    ladder = XAI_TIER_ORDER[:XAI_TIER_ORDER.index(quality) + 1]
+    best_path, best_tier = None, None
+    for i, tier in enumerate(ladder):
+        started = time.monotonic()
+        path = explain(XAI_TIERS[tier])
+        if path:
+            best_path, best_tier = path, tier
+        if i + 1 < len(ladder):
+            projected = (time.monotonic() - started) * cost(XAI_TIERS[ladder[i + 1]]) / cost(XAI_TIERS[tier])
+            if time.monotonic() + projected > deadline:
+                logging.info(f"XAI time budget reached, keeping {best_tier} instead of {quality}")
+                break
+    return best_path, best_tier
+
+def generate_xai_visualizations(model, img_tensor, img_numpy, device, xai_output_dir, image_path, shap_background,
+                                xai_types=XAI_TYPES, quality=DEFAULT_XAI_TIER, deadline=None, timings=None):
+    """Returns the visualization paths and the quality tier each one was produced at. The time spent on each
+    method is added to timings as xai-<type> when given."""
+    timings = {} if timings is None else timings
+    visualizations = {}
+    qualities = {}
+    if "gradcam" in xai_types:
+        # A single exact pass, identical at every tier.
+        started = time.monotonic()
+        gradcam_path = generate_gradcam(model, img_tensor, device, xai_output_dir, image_path)
+        timings["xai-gradcam"] = elapsed_ms(started)
+        if gradcam_path:
+            visualizations["gradcam"] = gradcam_path
+            qualities["gradcam"] = quality
+    if "lime" in xai_types:
+        started = time.monotonic()
+        lime_path, lime_tier = explain_within_budget(
+            lambda tier: generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_path, tier),
+            lambda tier: tier["lime_samples"], quality, deadline)
+        timings["xai-lime"] = elapsed_ms(started)
+        if lime_path:
+            visualizations["lime"] = lime_path
+            qualities["lime"] = lime_tier
+    if "shap" in xai_types:
+        started = time.monotonic()
+        shap_path, shap_tier = explain_within_budget(
+            lambda tier: generate_shap(model, img_tensor, device, xai_output_dir, image_path, shap_background, tier),
+            lambda tier: tier["shap_background"] * tier["shap_samples"], quality, deadline)
+        timings["xai-shap"] = elapsed_ms(started)
+        if shap_path:
+            visualizations["shap"] = shap_path
+            qualities["shap"] = shap_tier
+    return visualizations, qualities
+
+def run_analysis(model, device, image_path, img_height, img_width, xai_output_dir, shap_background,
+                 xai_types=XAI_TYPES, quality=DEFAULT_XAI_TIER, deadline=None):
+    if isinstance(image_path, Path) and not image_path.is_file():
+        raise FileNotFoundError(f"Image file not found: {image_path}")
+    if xai_output_dir is not None:
+        xai_output_dir.mkdir(parents=True, exist_ok=True)
+
+    timings = {}
+    started = time.monotonic()
+    img_tensor = preprocess_image(image_path, img_height, img_width)
+    img_numpy = preprocess_image(image_path, img_height, img_width, return_numpy=True)
+    timings["preprocess"] = elapsed_ms(started)
+    started = time.monotonic()
+    result = detect_falsification(model, img_tensor, device)
+    timings["model-inference"] = elapsed_ms(started)
+    result["xaiVisualizations"], result["xaiQuality"] = generate_xai_visualizations(
+        model, img_tensor, img_numpy, device, xai_output_dir, image_path, shap_background, xai_types,
+        quality, deadline, timings)
+    result["stageTimingsMs"] = timings
+    return result
+
+def run_batch_analysis(model, device, items, args):
+    """Classifies all items with one forward pass per input size, then explains each one."""
+    responses = [None] * len(items)
+    groups = {}
+    for index, item in enumerate(items):
+        try:
+            started = time.monotonic()
+            image_path = request_image(item)
+            img_height = int(item.get("imgHeight", args.img_height))
+            img_width = int(item.get("imgWidth", args.img_width))
+            xai_output_dir = Path(item["xaiOutputDir"]) if item.get("xaiOutputDir") else None
+            if xai_output_dir is not None:
+                xai_output_dir.mkdir(parents=True, exist_ok=True)
+            groups.setdefault((img_height, img_width), []).append({
+                "index": index,
+                "image_path": image_path,
+                "xai_output_dir": xai_output_dir,
+                "shap_background": shap_background_ref(item, args),
+                "xai_types": parse_xai_types(item.get("xaiTypes")),
+                "xai_quality": parse_xai_quality(item.get("xaiQuality")),
+                "xai_deadline": xai_deadline(item.get("xaiTimeBudgetMs")),
+                "img_tensor": preprocess_image(image_path, img_height, img_width),
+                "img_numpy": preprocess_image(image_path, img_height, img_width, return_numpy=True),
+            })
+            groups[(img_height, img_width)][-1]["timings"] = {"preprocess": elapsed_ms(started)}
+        except Exception as e:
+            logging.error(f"Error preparing batch item {index}: {e}", exc_info=True)
+            responses[index] = {"error": f"Error during analysis: {str(e)}"}
+
+    for (img_height, img_width), entries in groups.items():
+        batch_tensor = torch.cat([entry["img_tensor"] for entry in entries])
+        logging.info(f"Running batched inference on {len(entries)} images of size {img_height}x{img_width}")
+        started = time.monotonic()
+        results = detect_falsification_batch(model, batch_tensor, device)
+        # One forward pass for the whole group; each item reports its full duration.
+        inference_ms = elapsed_ms(started)
+        for entry, result in zip(entries, results):
+            try:
+                result["detectionDetails"]["batchSize"] = len(entries)
+                timings = entry["timings"]
+                timings["model-inference"] = inference_ms
+                result["xaiVisualizations"], result["xaiQuality"] = generate_xai_visualizations(
+                    model, entry["img_tensor"], entry["img_numpy"], device,
+                    entry["xai_output_dir"], entry["image_path"], entry["shap_background"], entry["xai_types"],
+                    entry["xai_quality"], entry["xai_deadline"], timings)
+                result["stageTimingsMs"] = timings
+                responses[entry["index"]] = {"result": result}
+            except Exception as e:
+                logging.error(f"Error explaining batch item {entry['index']}: {e}", exc_info=True)
+                responses[entry["index"]] = {"error": f"Error during analysis: {str(e)}"}
+    return responses
+
+def request_image(request):
+    """Returns the request's image: preprocessed pixels (pixelData), inline base64 bytes (imageData) or a file path (image)."""
+    if request.get("pixelData") is not None:
+        return PreprocessedImage(base64.b64decode(request["pixelData"]), int(request["imgHeight"]),
+                                 int(request["imgWidth"]), request.get("imageName"))
+    if request.get("imageData") is not None:
+        return InMemoryImage(base64.b64decode(request["imageData"]), request.get("imageName"))
+    image_path = Path(request["image"])
+    if not image_path.is_file():
+        raise FileNotFoundError(f"Image file not found: {image_path}")
+    return image_path
+
+def shap_background_ref(request, args):
+    cache = request.get("shapBackground")
+    return ShapBackgroundRef(Path(cache) if cache else args.shap_background_cache, args.shap_background_dir)
+
+def handle_request(request, model, device, args):
+    op = request.get("op", "analyze")
+    if op == "ping":
+        return {"status": "ok"}
+    if op == "analyze":
+        result = run_analysis(
+            model,
+            device,
+            request_image(request),
+            int(request.get("imgHeight", args.img_height)),
+            int(request.get("imgWidth", args.img_width)),
+            Path(request["xaiOutputDir"]) if request.get("xaiOutputDir") else None,
+            shap_background_ref(request, args),
+            parse_xai_types(request.get("xaiTypes")),
+            parse_xai_quality(request.get("xaiQuality")),
+            xai_deadline(request.get("xaiTimeBudgetMs"))
+        )
+        return {"result": result}
+    if op == "analyze_batch":
+        return {"results": run_batch_analysis(model, device, request["items"], args)}
+    raise ValueError(f"Unsupported operation: {op}")
+
+def redirect_output_to_stderr():
+    """Sends logs and stray prints to stderr and returns the real stdout, reserved for JSON output."""
+    protocol_out = sys.stdout
+    sys.stdout = sys.stderr
+    logging.basicConfig(
+        level=logging.INFO,
+        format='%(asctime)s - %(levelname)s - %(message)s',
+        datefmt='%Y-%m-%d %H:%M:%S',
+        handlers=[logging.StreamHandler(sys.stderr)],
+        force=True
+    )
+    return protocol_out
+
+def serve(args):
+    # stdout carries one JSON document per line; everything else goes to stderr so that
+    # log output from this script or its libraries can never corrupt the protocol stream.
+    protocol_out = redirect_output_to_stderr()
+
+    def respond(payload):
+        protocol_out.write(json.dumps(payload) + "\n")
+        protocol_out.flush()
+
+    if not args.model.is_file():
+        respond({"status": "failed", "error": f"Model file not found: {args.model}"})
+        return 1
+    try:
+        model, device = load_model(args.model, args.arch, args.dense_units, args.dropout)
+    except Exception as e:
+        respond({"status": "failed", "error": f"Error loading model: {str(e)}"})
+        return 1
+    respond({"status": "ready", "pid": os.getpid()})
+    logging.info(f"Worker {os.getpid()} ready, waiting for requests")
+
+    for line in sys.stdin:
+        line = line.strip()
+        if not line:
+            continue
+        request_id = None
+        try:
+            request = json.loads(line)
+            request_id = request.get("id")
+            response = handle_request(request, model, device, args)
+        except Exception as e:
+            logging.error(f"Error handling request {request_id}: {e}", exc_info=True)
+            response = {"error": f"Error during analysis: {str(e)}"}
+        response["id"] = request_id
+        respond(response)
+    logging.info(f"Worker {os.getpid()} stdin closed, exiting")
+    return 0
+
 def main():
     args = parse_args()
+    if args.serve:
+        return serve(args)
+
+    output_to_stdout = str(args.output) == '-'
+    result_out = redirect_output_to_stderr() if output_to_stdout else None
     output_path = args.output
     xai_output_dir = args.xai_output_dir
-    image_name = args.image
+
+    def write_output(payload):
+        if output_to_stdout:
+            result_out.write(json.dumps(payload) + "\n")
+            result_out.flush()
+        else:
+            with open(output_path, 'w') as f:
+                json.dump(payload, f, indent=2)
 
     try:
+        image = InMemoryImage(sys.stdin.buffer.read(), args.image_name) if str(args.image) == '-' else args.image
         if not args.model.is_file():
             raise FileNotFoundError(f"Model file not found: {args.model}")
-        if not args.image.is_file():
-            raise FileNotFoundError(f"Image file not found: {args.image}")
 
-        xai_output_dir.mkdir(parents=True, exist_ok=True)
-        output_path.parent.mkdir(parents=True, exist_ok=True)
+        if not output_to_stdout:
+            output_path.parent.mkdir(parents=True, exist_ok=True)
         logging.info(f"Output JSON: {output_path}, XAI outputs: {xai_output_dir}")
 
+        started = time.monotonic()
         model, device = load_model(args.model, args.arch, args.dense_units, args.dropout)
-        img_tensor = preprocess_image(args.image, args.img_height, args.img_width)
-        img_numpy = preprocess_image(args.image, args.img_height, args.img_width, return_numpy=True)
-        result = detect_falsification(model, img_tensor, device)
+        model_load_ms = elapsed_ms(started)
+        result = run_analysis(model, device, image, args.img_height, args.img_width,
+                              xai_output_dir, ShapBackgroundRef(args.shap_background_cache, args.shap_background_dir),
+                              args.xai_types, args.xai_quality, xai_deadline(args.xai_time_budget_ms))
+        result["stageTimingsMs"]["model-load"] = model_load_ms
 
-        result["xaiVisualizations"] = {}
-        gradcam_path = generate_gradcam(model, img_tensor, device, xai_output_dir, image_name)
-        if gradcam_path:
-            result["xaiVisualizations"]["gradcam"] = gradcam_path
-        lime_path = generate_lime(model, img_tensor, img_numpy, device, xai_output_dir, image_name)
-        if lime_path:
-            result["xaiVisualizations"]["lime"] = lime_path
-        shap_path = generate_shap(model, img_tensor, device, xai_output_dir, image_name, args.shap_background_dir)
-        if shap_path:
-            result["xaiVisualizations"]["shap"] = shap_path
-
-        with open(output_path, 'w') as f:
-            json.dump(result, f, indent=2)
+        write_output(result)
         logging.info(f"Analysis and XAI visualizations completed successfully")
         return 0
     except Exception as e:
         error_message = f"Error during analysis: {str(e)}"
         logging.error(error_message, exc_info=True)
         try:
-            with open(output_path, 'w') as f:
-                json.dump({"error": error_message}, f, indent=2)
+            write_output({"error": error_message})
         except Exception as write_err:
             logging.error(f"Failed to write error details: {write_err}", exc_info=True)
         return 1
 
 if __name__ == "__main__":
-    sys.exit(main())
\ No newline at end of file
+    sys.exit(main())
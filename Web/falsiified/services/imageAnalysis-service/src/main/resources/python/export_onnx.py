@@ -0,0 +1,113 @@
+import argparse
+import base64
+import json
+import logging
+import sys
+import time
+from pathlib import Path
+
+import albumentations as A
+import numpy as np
+import torch
+from PIL import Image
+
+from detect_falsification import load_model, preprocess_image, detect_falsification
+
+
+def parse_args():
+    parser = argparse.ArgumentParser(description='Export the falsification detector to ONNX for the in-JVM engine')
+    parser.add_argument('--model', required=True, type=Path, help='Path to PyTorch model state_dict file (.pth)')
+    parser.add_argument('--output', required=True, type=Path, help='Path of the .onnx file to write')
+    parser.add_argument('--arch', default='MobileNetV3_Large', type=str, help='Architecture name used during training')
+    parser.add_argument('--img-height', default=224, type=int, help='Image height the model expects')
+    parser.add_argument('--img-width', default=224, type=int, help='Image width the model expects')
+    parser.add_argument('--dense-units', default=768, type=int, help='Number of dense units in the classifier head')
+    parser.add_argument('--dropout', default=0.45, type=float, help='Dropout rate used in the classifier head')
+    parser.add_argument('--opset', default=17, type=int, help='ONNX opset version')
+    parser.add_argument('--reference-images', type=Path,
+                        help='Directory of images to score with PyTorch, for the Java parity test')
+    parser.add_argument('--reference-output', type=Path, help='Where to write the PyTorch reference scores (JSON)')
+    parser.add_argument('--benchmark', default=0, type=int,
+                        help='Number of timed inferences per runtime (PyTorch vs onnxruntime), 0 to skip')
+    return parser.parse_args()
+
+
+def export(model, device, args):
+    dummy = torch.zeros(1, 3, args.img_height, args.img_width, device=device)
+    args.output.parent.mkdir(parents=True, exist_ok=True)
+    torch.onnx.export(
+        model,
+        dummy,
+        str(args.output),
+        input_names=['input'],
+        output_names=['logit'],
+        dynamic_axes={'input': {0: 'batch'}, 'logit': {0: 'batch'}},
+        opset_version=args.opset,
+    )
+    logging.info(f"Exported {args.arch} to {args.output}")
+
+
+def resized_pixels(image, img_height, img_width):
+    rgb = np.array(Image.open(image).convert('RGB'))
+    return A.Resize(img_height, img_width)(image=rgb)['image'].astype(np.uint8).tobytes()
+
+
+def write_reference(model, device, args):
+    images = sorted(p for p in args.reference_images.iterdir() if p.suffix.lower() in ('.png', '.jpg', '.jpeg'))
+    results = []
+    for image in images:
+        tensor = preprocess_image(image, args.img_height, args.img_width)
+        result = detect_falsification(model, tensor, device)
+        results.append({
+            'image': str(image.resolve()),
+            'logit': result['detectionDetails']['logit_value'],
+            'confidenceScore': result['confidenceScore'],
+            # Resized uint8 RGB, row-major, before normalization: what the Java preprocessing must reproduce.
+            'pixels': base64.b64encode(resized_pixels(image, args.img_height, args.img_width)).decode('ascii'),
+        })
+    reference = {'arch': args.arch, 'imgHeight': args.img_height, 'imgWidth': args.img_width, 'results': results}
+    with open(args.reference_output, 'w') as f:
+        json.dump(reference, f, indent=2)
+    logging.info(f"Wrote {len(results)} reference scores to {args.reference_output}")
+
+
+def benchmark(model, device, args):
+    tensor = torch.randn(1, 3, args.img_height, args.img_width)
+    with torch.no_grad():
+        model(tensor.to(device))
+        start = time.perf_counter()
+        for _ in range(args.benchmark):
+            model(tensor.to(device))
+        torch_rate = args.benchmark / (time.perf_counter() - start)
+    logging.info(f"PyTorch ({device}): {torch_rate:.1f} images/s")
+
+    try:
+        import onnxruntime
+    except ImportError:
+        logging.warning("onnxruntime is not installed, skipping the ONNX benchmark")
+        return
+    session = onnxruntime.InferenceSession(str(args.output), providers=['CPUExecutionProvider'])
+    feed = {'input': tensor.numpy()}
+    session.run(None, feed)
+    start = time.perf_counter()
+    for _ in range(args.benchmark):
+        session.run(None, feed)
+    onnx_rate = args.benchmark / (time.perf_counter() - start)
+    logging.info(f"onnxruntime (CPU): {onnx_rate:.1f} images/s")
+
+
+def main():
+    args = parse_args()
+    model, device = load_model(args.model, args.arch, args.dense_units, args.dropout)
+    export(model, device, args)
+    if args.reference_images:
+        if not args.reference_output:
+            raise SystemExit('--reference-output is required with --reference-images')
+        write_reference(model, device, args)
+    if args.benchmark > 0:
+        benchmark(model, device, args)
+    return 0
+
+
+if __name__ == '__main__':
+    sys.exit(main())
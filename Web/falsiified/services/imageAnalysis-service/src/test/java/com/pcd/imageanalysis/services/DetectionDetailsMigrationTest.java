@@ -0,0 +1,106 @@
+package com.pcd.imageanalysis.services;
+
+import com.pcd.imageanalysis.model.AnalysisResult;
+import com.pcd.imageanalysis.model.DetectionDetails;
+import com.pcd.imageanalysis.model.XaiQuality;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class DetectionDetailsMigrationTest {
+
+    private MappingMongoConverter converter;
+    private DetectionDetailsMigration migration;
+
+    @BeforeEach
+    void setUp() {
+        // As Spring Boot sets it up, so that java.time values are stored as dates rather than mapped.
+        MongoCustomConversions conversions = new MongoCustomConversions(List.of());
+        MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+        mappingContext.afterPropertiesSet();
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.setCustomConversions(conversions);
+        converter.afterPropertiesSet();
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.getConverter()).thenReturn(converter);
+        migration = new DetectionDetailsMigration(mongoTemplate, new SimpleMeterRegistry());
+    }
+
+    @Test
+    void schemaOneDocumentReadsBackAsTypedDetails() {
+        Document legacy = schemaOneDocument();
+
+        Document migrated = migration.migrate(legacy);
+
+        assertFalse(migrated.containsKey("detectionDetails"));
+        assertFalse(migrated.containsKey("xaiQuality"));
+        assertFalse(migrated.containsKey("stageTimingsMs"));
+        AnalysisResult result = converter.read(AnalysisResult.class, migrated);
+        DetectionDetails details = result.getDetectionDetails();
+        assertEquals(DetectionDetails.SCHEMA_VERSION, details.getSchemaVersion());
+        assertEquals(new DetectionDetails.Scores(true, 0.93, 2.6), details.getScores());
+        assertEquals(new DetectionDetails.ModelInfo("1.0.0", null, "pytorch", 4), details.getModel());
+        // The tier recorded with the visualization overrides the one the analysis reported.
+        assertEquals(new DetectionDetails.XaiArtifactRef("xai:lime", XaiQuality.FORENSIC),
+                details.getXaiVisualizations().get("lime"));
+        assertEquals(new DetectionDetails.XaiArtifactRef("xai:gradcam", XaiQuality.FAST),
+                details.getXaiVisualizations().get("gradcam"));
+        // Not a tier name, so it reads as STANDARD later.
+        assertNull(details.getXaiVisualizations().get("shap").quality());
+        assertEquals(Map.of("note", "kept"), details.getExtras());
+        assertEquals(Map.of("inference", 120L), result.getStageTimingsMs());
+    }
+
+    @Test
+    void visualizationWrittenBeforeMigrationIsKept() {
+        Document legacy = schemaOneDocument();
+        legacy.put(AnalysisResult.DETECTION_DETAILS_FIELD, new Document(DetectionDetails.XAI_VISUALIZATIONS_FIELD,
+                new Document("lime", new Document("id", "xai:lime-newer").append("q", "FORENSIC"))));
+        legacy.put(AnalysisResult.STAGE_TIMINGS_FIELD, new Document("xai-lime", 900L));
+
+        Document migrated = migration.migrate(legacy);
+
+        AnalysisResult result = converter.read(AnalysisResult.class, migrated);
+        DetectionDetails details = result.getDetectionDetails();
+        assertEquals(new DetectionDetails.XaiArtifactRef("xai:lime-newer", XaiQuality.FORENSIC),
+                details.getXaiVisualizations().get("lime"));
+        assertEquals("xai:gradcam", details.getXaiVisualizations().get("gradcam").artifactId());
+        assertEquals(new DetectionDetails.Scores(true, 0.93, 2.6), details.getScores());
+        assertEquals(Map.of("inference", 120L, "xai-lime", 900L), result.getStageTimingsMs());
+    }
+
+    private static Document schemaOneDocument() {
+        return new Document("_id", "analysis-1")
+                .append("imageId", "image-1")
+                .append("analysisStatus", "COMPLETED")
+                .append("inferenceEngine", "pytorch")
+                .append("detectionDetails", new Document("isFalsified", true)
+                        .append("confidenceScore", 0.93)
+                        .append("modelVersion", "1.0.0")
+                        .append("xaiVisualizations", new Document("lime", "xai:lime")
+                                .append("gradcam", "xai:gradcam")
+                                .append("shap", "xai:shap"))
+                        .append("xaiQuality", new Document("lime", "STANDARD").append("gradcam", "FAST"))
+                        .append("detectionDetails", new Document("logit_value", 2.6)
+                                .append("batchSize", 4)
+                                .append("note", "kept")))
+                .append("xaiQuality", new Document("lime", "FORENSIC").append("shap", "ULTRA"))
+                .append("stageTimingsMs", new Document("inference", 120L));
+    }
+}
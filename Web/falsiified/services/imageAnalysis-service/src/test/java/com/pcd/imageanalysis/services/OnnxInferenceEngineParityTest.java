@@ -0,0 +1,165 @@
+package com.pcd.imageanalysis.services;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Base64;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+/**
+ * The parity test needs an exported model and PyTorch reference scores, produced with:
+ * <pre>
+ * python export_onnx.py --model falsification_detector.pth --output model.onnx \
+ *     --reference-images models/Shap/real --reference-output reference.json
+ * mvn test -Dtest=OnnxInferenceEngineParityTest -Donnx.model=model.onnx -Donnx.reference=reference.json
+ * </pre>
+ * The reference also holds the pixels Python resizes each image to; {@code onnx.reference} alone checks the Java
+ * preprocessing against them.
+ */
+class OnnxInferenceEngineParityTest {
+
+    private static final double LOGIT_TOLERANCE = 0.05;
+    private static final double SCORE_TOLERANCE = 0.01;
+    // JPEG decoders may round a few samples differently; lossless images must match exactly.
+    private static final double MEAN_PIXEL_TOLERANCE = 0.5;
+
+    @Test
+    void preprocessingMatchesImagenetNormalization() {
+        BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < 4; x++) {
+            for (int y = 0; y < 4; y++) {
+                image.setRGB(x, y, 0xFF8000);
+            }
+        }
+
+        float[] tensor = new ImagePreprocessor().toNormalizedTensor(image, 2, 2);
+
+        assertEquals(12, tensor.length);
+        assertEquals((1f - 0.485f) / 0.229f, tensor[0], 1e-4);
+        assertEquals((128 / 255f - 0.456f) / 0.224f, tensor[4], 1e-4);
+        assertEquals((0f - 0.406f) / 0.225f, tensor[8], 1e-4);
+    }
+
+    @Test
+    void resizeSamplesPixelCentresLikeOpenCv() {
+        BufferedImage image = new BufferedImage(4, 2, BufferedImage.TYPE_INT_RGB);
+        int[] levels = {0, 100, 200, 250};
+        for (int x = 0; x < 4; x++) {
+            image.setRGB(x, 0, levels[x] << 16);
+            image.setRGB(x, 1, levels[x] << 16 | 80);
+        }
+
+        BufferedImage shrunk = new ImagePreprocessor().resize(image, 1, 2);
+
+        // cv2.resize(..., (2, 1), interpolation=cv2.INTER_LINEAR)
+        assertEquals(50 << 16 | 40, shrunk.getRGB(0, 0) & 0xFFFFFF);
+        assertEquals(225 << 16 | 40, shrunk.getRGB(1, 0) & 0xFFFFFF);
+    }
+
+    @Test
+    void resizeClampsAtTheEdgesWhenEnlarging() {
+        BufferedImage image = new BufferedImage(2, 1, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 0x000000);
+        image.setRGB(1, 0, 0x0000FF);
+
+        BufferedImage enlarged = new ImagePreprocessor().resize(image, 1, 4);
+
+        // cv2.resize(..., (4, 1), interpolation=cv2.INTER_LINEAR) gives [0, 64, 191, 255]
+        assertEquals(0, enlarged.getRGB(0, 0) & 0xFF);
+        assertEquals(64, enlarged.getRGB(1, 0) & 0xFF);
+        assertEquals(191, enlarged.getRGB(2, 0) & 0xFF);
+        assertEquals(255, enlarged.getRGB(3, 0) & 0xFF);
+    }
+
+    @Test
+    void transparentPixelsKeepTheirColour() {
+        BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        for (int x = 0; x < 2; x++) {
+            for (int y = 0; y < 2; y++) {
+                image.setRGB(x, y, 0x00FF8000);
+            }
+        }
+
+        byte[] pixels = new ImagePreprocessor().toRgbBytes(image, 2, 2);
+
+        // PIL's convert('RGB') drops the alpha channel rather than compositing over black.
+        assertEquals(0xFF, pixels[0] & 0xFF);
+        assertEquals(0x80, pixels[1] & 0xFF);
+        assertEquals(0x00, pixels[2] & 0xFF);
+    }
+
+    @Test
+    void preprocessedPixelsMatchPythonReference() throws Exception {
+        String reference = System.getProperty("onnx.reference");
+        assumeTrue(reference != null, "onnx.reference not set");
+
+        JsonNode expected = new ObjectMapper().readTree(Files.readString(Paths.get(reference)));
+        int height = expected.get("imgHeight").asInt();
+        int width = expected.get("imgWidth").asInt();
+        ImagePreprocessor preprocessor = new ImagePreprocessor();
+
+        for (JsonNode item : expected.get("results")) {
+            assumeTrue(item.has("pixels"), "reference predates the pixel export");
+            Path image = Paths.get(item.get("image").asText());
+            byte[] python = Base64.getDecoder().decode(item.get("pixels").asText());
+            byte[] java = preprocessor.toRgbBytes(preprocessor.read(Files.readAllBytes(image)), height, width);
+            assertEquals(python.length, java.length, "pixel count mismatch for " + image);
+
+            long difference = 0;
+            for (int i = 0; i < python.length; i++) {
+                difference += Math.abs((python[i] & 0xFF) - (java[i] & 0xFF));
+            }
+            double mean = (double) difference / python.length;
+            boolean lossless = image.getFileName().toString().toLowerCase().endsWith(".png");
+            assertTrue(lossless ? difference == 0 : mean <= MEAN_PIXEL_TOLERANCE,
+                    "pixels differ by " + mean + " on average for " + image);
+        }
+    }
+
+    @Test
+    void onnxScoresMatchPythonReference() throws Exception {
+        String model = System.getProperty("onnx.model");
+        String reference = System.getProperty("onnx.reference");
+        assumeTrue(model != null && reference != null, "onnx.model and onnx.reference not set");
+
+        JsonNode expected = new ObjectMapper().readTree(Files.readString(Paths.get(reference)));
+        String arch = expected.get("arch").asText();
+        int height = expected.get("imgHeight").asInt();
+        int width = expected.get("imgWidth").asInt();
+
+        OnnxInferenceEngine engine = new OnnxInferenceEngine(new ImagePreprocessor());
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        ReflectionTestUtils.setField(engine, "modelPath", model);
+        ReflectionTestUtils.setField(engine, "exportedArch", arch);
+        ReflectionTestUtils.setField(engine, "exportedVersion", "parity");
+        engine.init();
+        assertTrue(engine.isAvailable(), "ONNX model failed to load");
+
+        try {
+            for (JsonNode item : expected.get("results")) {
+                Path image = Paths.get(item.get("image").asText());
+                Map<String, Object> result = engine.analyzeImage(Files.readAllBytes(image), image.getFileName().toString(),
+                        arch, height, width, 0, 0, "parity");
+                @SuppressWarnings("unchecked")
+                Map<String, Object> details = (Map<String, Object>) result.get("detectionDetails");
+
+                assertEquals(item.get("logit").asDouble(), (Double) details.get("logit_value"), LOGIT_TOLERANCE,
+                        "logit mismatch for " + image);
+                assertEquals(item.get("confidenceScore").asDouble(), (Double) result.get("confidenceScore"), SCORE_TOLERANCE,
+                        "score mismatch for " + image);
+            }
+        } finally {
+            engine.close();
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.pcd.imageanalysis.services;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class TiledInferenceEngineTest {
+
+    private static final int TILE = 16;
+
+    private final CountDownLatch workerReleased = new CountDownLatch(1);
+    private TiledInferenceEngine engine;
+
+    @AfterEach
+    void tearDown() {
+        workerReleased.countDown();
+        if (engine != null) {
+            engine.shutdown();
+        }
+    }
+
+    @Test
+    void failedTileReadReturnsTheMemoryBudget() throws Exception {
+        PythonWorkerPool workerPool = mock(PythonWorkerPool.class);
+        when(workerPool.getPoolSize()).thenReturn(1);
+        // Keeps the first batch at its worker so the following ones wait in the executor queue.
+        when(workerPool.execute(any(), anyMap(), anyLong())).thenAnswer(invocation -> {
+            workerReleased.await();
+            return Map.of("error", "stopped by test");
+        });
+        AtomicInteger reads = new AtomicInteger();
+        engine = new TiledInferenceEngine(mock(PyTorchModelService.class), workerPool) {
+            @Override
+            BufferedImage readRegion(ImageReader reader, Rectangle region, int subsampling) throws IOException {
+                // Whole-image view, first band of tiles, then a read error.
+                if (reads.incrementAndGet() == 3) {
+                    throw new IOException("truncated image");
+                }
+                return super.readRegion(reader, region, subsampling);
+            }
+        };
+        ReflectionTestUtils.setField(engine, "enabled", true);
+        ReflectionTestUtils.setField(engine, "minPixels", 1L);
+        ReflectionTestUtils.setField(engine, "scales", new int[]{1});
+        ReflectionTestUtils.setField(engine, "overlap", 0.5);
+        ReflectionTestUtils.setField(engine, "batchSize", 1);
+        ReflectionTestUtils.setField(engine, "parallelism", 1);
+        ReflectionTestUtils.setField(engine, "memoryBudgetMb", 1);
+        ReflectionTestUtils.setField(engine, "topK", 3);
+        ReflectionTestUtils.setField(engine, "pythonTimeout", 1);
+        engine.init();
+        Semaphore memoryBudget = (Semaphore) ReflectionTestUtils.getField(engine, "memoryBudget");
+        int budget = memoryBudget.availablePermits();
+
+        IOException failure = assertThrows(IOException.class, () -> engine.analyzeImage(
+                png(4 * TILE, 4 * TILE), "large.png", "arch", TILE, TILE, 0, 0, "1.0.0"));
+        assertEquals("truncated image", failure.getMessage());
+
+        workerReleased.countDown();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (memoryBudget.availablePermits() < budget && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(budget, memoryBudget.availablePermits());
+    }
+
+    private static byte[] png(int width, int height) throws IOException {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        for (int x = 0; x < width; x++) {
+            for (int y = 0; y < height; y++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 4) << 8);
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,47 @@
+package com.pcd.imagemanagment.kafka;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.imagemanagment.model.ImageStatusEvent;
+import com.pcd.imagemanagment.service.ImageStorageService;
+import lombok.RequiredArgsConstructor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.kafka.annotation.KafkaListener;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Applies the analysis status changes published by imageAnalysis-service, a poll's worth at a time.
+ */
+@Component
+@RequiredArgsConstructor
+public class ImageStatusEventListener {
+    private static final Logger log = LoggerFactory.getLogger(ImageStatusEventListener.class);
+
+    private final ImageStorageService imageStorageService;
+    private final ObjectMapper objectMapper;
+
+    @KafkaListener(topics = "${app.kafka.topics.image-status:image-status-topic}",
+            groupId = "${spring.application.name}",
+            containerFactory = "imageStatusListenerContainerFactory")
+    public void handleImageStatusEvents(List<String> messages) {
+        List<ImageStatusEvent> events = new ArrayList<>(messages.size());
+        for (String message : messages) {
+            try {
+                events.add(objectMapper.readValue(message, ImageStatusEvent.class));
+            } catch (JsonProcessingException e) {
+                log.warn("Skipping malformed image status event: {}", message, e);
+            }
+        }
+        int matched = imageStorageService.applyAnalysisStatusEvents(events);
+        if (matched < events.size()) {
+            log.warn("Applied {} image status events, {} referenced unknown images or were applied before",
+                    matched, events.size() - matched);
+        } else {
+            log.debug("Applied {} image status events", matched);
+        }
+    }
+}
@@ -16,5 +16,11 @@ public class CustodyEvent {
     private Instant timestamp;
     private String details;
     private String ipAddress;
+    // Id of the status event this entry records, so a redelivered event is not recorded twice; null otherwise.
+    private String eventId;
 
+    public CustodyEvent(String eventType, String userId, String userRole, Instant timestamp, String details,
+                        String ipAddress) {
+        this(eventType, userId, userRole, timestamp, details, ipAddress, null);
+    }
 }
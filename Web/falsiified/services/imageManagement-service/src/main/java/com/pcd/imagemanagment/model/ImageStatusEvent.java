@@ -0,0 +1,31 @@
+package com.pcd.imagemanagment.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * Analysis status change published by imageAnalysis-service, keyed by image id so the changes of one
+ * image arrive in order.
+ */
+@Data
+@AllArgsConstructor
+@NoArgsConstructor
+public class ImageStatusEvent {
+    private String imageId;
+    private String status;
+    private String analysisId;
+    private String userId;
+    private String userRole;
+    // epoch milliseconds
+    private long timestamp;
+    // Unique per status change; redeliveries of the same event carry the same id.
+    private String eventId;
+
+    /**
+     * The event id, derived the way imageAnalysis-service builds it for events published without one.
+     */
+    public String resolveEventId() {
+        return eventId != null ? eventId : analysisId + ":" + status + ":" + timestamp;
+    }
+}
@@ -3,6 +3,7 @@ package com.pcd.imagemanagment.service;
 import com.mongodb.client.gridfs.GridFSBucket;
 import com.mongodb.client.gridfs.model.GridFSFile;
 import com.pcd.imagemanagment.model.CustodyEvent;
+import com.pcd.imagemanagment.model.ImageStatusEvent;
 import com.pcd.imagemanagment.repository.mongo.ImageRepository;
 import com.pcd.imagemanagment.model.Image;
 import lombok.RequiredArgsConstructor;
@@ -14,8 +15,11 @@ import java.security.NoSuchAlgorithmException;
 import org.bson.types.ObjectId;
 import org.slf4j.Logger; // Added for logging
 import org.slf4j.LoggerFactory; // Added for logging
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Criteria;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.gridfs.GridFsResource;
 import org.springframework.data.mongodb.gridfs.GridFsTemplate;
 import org.springframework.stereotype.Service;
@@ -28,6 +32,7 @@ import java.io.InputStream;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional; // Added for optional handling
@@ -44,6 +49,7 @@ public class ImageStorageService {
     private final GridFSBucket gridFSBucket;
     private final ImageRepository imageRepository;
     private final MetadataExtractionService metadataService; // Assumes this service exists
+    private final MongoTemplate mongoTemplate;
 
     public String storeImage(MultipartFile file, String caseId, String uploaderId, String uploaderRole, String ipAddress) throws IOException, NoSuchAlgorithmException {
 
@@ -320,4 +326,42 @@ public class ImageStorageService {
 
         return true; // Update successful
     }
-}
\ No newline at end of file
+
+    /**
+     * Applies analysis status events in one ordered bulk write. Each event sets the status and appends to the
+     * custody trail atomically; only the current statuses are read beforehand, for the custody entries.
+     * An event whose id is already in the image's custody trail is skipped, so a batch retried or redelivered
+     * after a partial write records nothing twice.
+     *
+     * @return the number of events applied, excluding unknown images and events applied before
+     */
+    public int applyAnalysisStatusEvents(List<ImageStatusEvent> events) {
+        if (events.isEmpty()) {
+            return 0;
+        }
+        List<String> imageIds = events.stream().map(ImageStatusEvent::getImageId).distinct().toList();
+        Query current = Query.query(Criteria.where("_id").in(imageIds));
+        current.fields().include("analysisStatus");
+        Map<String, String> statuses = new HashMap<>();
+        mongoTemplate.find(current, Image.class).forEach(image -> statuses.put(image.getId(), image.getAnalysisStatus()));
+
+        BulkOperations bulk = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Image.class);
+        for (ImageStatusEvent event : events) {
+            String oldStatus = statuses.put(event.getImageId(), event.getStatus());
+            String eventId = event.resolveEventId();
+            CustodyEvent statusUpdateEvent = new CustodyEvent(
+                    "STATUS_UPDATE",
+                    event.getUserId(),
+                    event.getUserRole(),
+                    Instant.ofEpochMilli(event.getTimestamp()),
+                    "Analysis status changed from [" + oldStatus + "] to [" + event.getStatus() + "] by analysis "
+                            + event.getAnalysisId(),
+                    null,
+                    eventId
+            );
+            bulk.updateOne(Query.query(Criteria.where("_id").is(event.getImageId()).and("custodyTrail.eventId").ne(eventId)),
+                    new Update().set("analysisStatus", event.getStatus()).push("custodyTrail", statusUpdateEvent));
+        }
+        return bulk.execute().getMatchedCount();
+    }
+}
@@ -0,0 +1,108 @@
+package com.pcd.imagemanagment.service;
+
+import com.mongodb.bulk.BulkWriteResult;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.pcd.imagemanagment.model.CustodyEvent;
+import com.pcd.imagemanagment.model.Image;
+import com.pcd.imagemanagment.model.ImageStatusEvent;
+import com.pcd.imagemanagment.repository.mongo.ImageRepository;
+import org.bson.Document;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.gridfs.GridFsTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class ImageStorageServiceTest {
+
+    private Image image;
+    private ImageStorageService service;
+
+    @BeforeEach
+    void setUp() {
+        image = new Image();
+        image.setId("image-1");
+        image.setAnalysisStatus("PENDING");
+        image.setCustodyTrail(new ArrayList<>());
+        MongoTemplate mongoTemplate = mock(MongoTemplate.class);
+        when(mongoTemplate.find(any(Query.class), eq(Image.class))).thenAnswer(invocation -> List.of(image));
+        when(mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Image.class))
+                .thenAnswer(invocation -> new InMemoryBulk().operations);
+        service = new ImageStorageService(mock(GridFsTemplate.class), mock(GridFSBucket.class),
+                mock(ImageRepository.class), mock(MetadataExtractionService.class), mongoTemplate);
+    }
+
+    @Test
+    void replayedBatchLeavesCustodyTrailUnchanged() {
+        List<ImageStatusEvent> batch = List.of(
+                new ImageStatusEvent("image-1", "IN_PROGRESS", "analysis-1", "ANALYSIS_SERVICE", "SYSTEM", 1000L,
+                        "analysis-1:IN_PROGRESS:1000"),
+                // Published by an older producer, without an id.
+                new ImageStatusEvent("image-1", "COMPLETED", "analysis-1", "ANALYSIS_SERVICE", "SYSTEM", 2000L, null));
+
+        assertEquals(2, service.applyAnalysisStatusEvents(batch));
+        assertEquals(2, image.getCustodyTrail().size());
+
+        assertEquals(0, service.applyAnalysisStatusEvents(batch));
+        assertEquals(2, image.getCustodyTrail().size());
+        assertEquals("COMPLETED", image.getAnalysisStatus());
+        assertEquals(List.of("analysis-1:IN_PROGRESS:1000", "analysis-1:COMPLETED:2000"),
+                image.getCustodyTrail().stream().map(CustodyEvent::getEventId).toList());
+    }
+
+    /**
+     * Applies queued updates to {@link #image} on execute, honouring the id and the custody event id guard.
+     */
+    private class InMemoryBulk {
+
+        final BulkOperations operations = mock(BulkOperations.class);
+        final List<Query> queries = new ArrayList<>();
+        final List<Update> updates = new ArrayList<>();
+
+        InMemoryBulk() {
+            when(operations.updateOne(any(Query.class), any(Update.class))).thenAnswer(invocation -> {
+                queries.add(invocation.getArgument(0));
+                updates.add(invocation.getArgument(1));
+                return operations;
+            });
+            when(operations.execute()).thenAnswer(invocation -> {
+                int matched = 0;
+                for (int i = 0; i < queries.size(); i++) {
+                    if (matches(queries.get(i).getQueryObject())) {
+                        apply(updates.get(i).getUpdateObject());
+                        matched++;
+                    }
+                }
+                BulkWriteResult result = mock(BulkWriteResult.class);
+                when(result.getMatchedCount()).thenReturn(matched);
+                return result;
+            });
+        }
+
+        private boolean matches(Document query) {
+            if (!image.getId().equals(query.get("_id"))) {
+                return false;
+            }
+            Object excluded = ((Document) query.get("custodyTrail.eventId")).get("$ne");
+            return image.getCustodyTrail().stream().noneMatch(entry -> excluded.equals(entry.getEventId()));
+        }
+
+        private void apply(Document update) {
+            Map<?, ?> set = (Map<?, ?>) update.get("$set");
+            image.setAnalysisStatus((String) set.get("analysisStatus"));
+            image.getCustodyTrail().add((CustodyEvent) ((Map<?, ?>) update.get("$push")).get("custodyTrail"));
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package com.pcd.report.dto;
+
+import com.fasterxml.jackson.annotation.JsonAlias;
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Summary of a finished analysis as published by imageAnalysis-service. The detection details are not
+ * part of the event; fetch them by {@link #analysisId} when needed.
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class AnalysisCompletedEvent {
+    private int schemaVersion;
+    private String analysisId;
+    private String imageId;
+    @JsonAlias("caseNumber")
+    private String caseId;
+    private Boolean falsified;
+    private Double confidenceScore;
+    private String modelVersion;
+    private String inferenceEngine;
+    private List<String> detectedManipulations;
+    private long completedAt;
+    private String detailsRef;
+    // Only on schema version 1 events, which embedded the details.
+    private Map<String, Object> analysisResults;
+}
@@ -1,13 +1,14 @@
 package com.pcd.report.kafka;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.pcd.report.dto.AnalysisCompletedEvent;
+import com.pcd.report.service.AnalysisService;
 import com.pcd.report.service.AutoReportGenerationServiceImpl;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.stereotype.Component;
 
-import java.util.List;
 import java.util.Map;
 
 @Component
@@ -16,28 +17,35 @@ import java.util.Map;
 public class AnalysisCompletedListener {
 
     private final AutoReportGenerationServiceImpl autoReportGenerationService;
+    private final AnalysisService analysisService;
     private final ObjectMapper objectMapper;
 
     @KafkaListener(topics = "${app.kafka.topics.analysis-completed}", groupId = "${spring.application.name}")
     public void handleAnalysisCompleted(String message) {
         try {
             log.info("Received analysis completed event: {}", message);
-            Map<String, Object> event = objectMapper.readValue(message, Map.class);
+            AnalysisCompletedEvent event = objectMapper.readValue(message, AnalysisCompletedEvent.class);
 
-            String imageId = (String) event.get("imageId");
-            String caseNumber = (String) event.get("caseNumber");
-            Map<String, Object> analysisResults = (Map<String, Object>) event.get("analysisResults");
-            List<String> detectedManipulations = (List<String>) event.get("detectedManipulations");
+            String imageId = event.getImageId();
+            String caseNumber = event.getCaseId();
+            if (imageId == null || caseNumber == null) {
+                log.warn("Incomplete analysis data received, skipping report generation");
+                return;
+            }
 
-            if (imageId != null && caseNumber != null && analysisResults != null) {
+            // Events before schema version 2 carried the details; newer ones are fetched by reference.
+            Map<String, Object> analysisResults = event.getAnalysisResults() != null
+                    ? event.getAnalysisResults()
+                    : analysisService.getDetectionDetails(event.getAnalysisId());
+            if (analysisResults != null) {
                 autoReportGenerationService.generateReportFromAnalysisResults(
-                        imageId, analysisResults, detectedManipulations, caseNumber);
+                        imageId, analysisResults, event.getDetectedManipulations(), caseNumber);
                 log.info("Auto-generated report for image: {}, case: {}", imageId, caseNumber);
             } else {
-                log.warn("Incomplete analysis data received, skipping report generation");
+                log.warn("Details of analysis {} could not be fetched, skipping report generation", event.getAnalysisId());
             }
         } catch (Exception e) {
             log.error("Error processing analysis completed event", e);
         }
     }
-}
\ No newline at end of file
+}
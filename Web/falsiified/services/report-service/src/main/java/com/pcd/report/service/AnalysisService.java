@@ -6,6 +6,10 @@ import lombok.extern.slf4j.Slf4j;
 import org.springframework.stereotype.Service;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.StringJoiner;
+
 @Service
 @RequiredArgsConstructor
 @Slf4j
@@ -27,4 +31,64 @@ public class AnalysisService {
             return null;
         }
     }
+
+    /**
+     * Fetches the detection details of an analysis, which analysis completed events only reference, flattened
+     * as by {@link #flattenDetectionDetails}.
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> getDetectionDetails(String analysisId) {
+        log.debug("Fetching detection details for analysis ID: {}", analysisId);
+        try {
+            Map<String, Object> analysis = restTemplate.getForObject(
+                    "http://imageanalysis-service/api/v1/analysis/" + analysisId,
+                    Map.class
+            );
+            return analysis != null ? flattenDetectionDetails((Map<String, Object>) analysis.get("detectionDetails")) : null;
+        } catch (Exception e) {
+            log.error("Error fetching detection details for analysis ID: {}", analysisId, e);
+            return null;
+        }
+    }
+
+    /**
+     * Flattens detection details into one entry per reported value, the shape reports render. Since schema
+     * version 2 the analysis service returns {@code {schemaVersion, scores, model,
+     * xaiVisualizations: {type: {artifactId, quality}}, extras}}; older analyses return the engine output as
+     * is, which is already flat and returned unchanged.
+     */
+    public static Map<String, Object> flattenDetectionDetails(Map<String, Object> details) {
+        if (details == null || !details.containsKey("schemaVersion")) {
+            return details;
+        }
+        Map<String, Object> flat = new LinkedHashMap<>();
+        if (details.get("scores") instanceof Map<?, ?> scores) {
+            putIfPresent(flat, "isFalsified", scores.get("falsified"));
+            putIfPresent(flat, "confidenceScore", scores.get("confidence"));
+            putIfPresent(flat, "logit", scores.get("logit"));
+        }
+        if (details.get("model") instanceof Map<?, ?> model) {
+            putIfPresent(flat, "modelVersion", model.get("version"));
+            putIfPresent(flat, "modelArchitecture", model.get("arch"));
+            putIfPresent(flat, "inferenceEngine", model.get("engine"));
+            putIfPresent(flat, "batchSize", model.get("batchSize"));
+        }
+        if (details.get("xaiVisualizations") instanceof Map<?, ?> visualizations && !visualizations.isEmpty()) {
+            StringJoiner produced = new StringJoiner(", ");
+            // A missing quality means the visualization predates quality tiers, which counts as STANDARD.
+            visualizations.forEach((type, artifact) -> produced.add(type + " (" + (artifact instanceof Map<?, ?> ref
+                    && ref.get("quality") != null ? ref.get("quality") : "STANDARD") + ")"));
+            flat.put("xaiVisualizations", produced.toString());
+        }
+        if (details.get("extras") instanceof Map<?, ?> extras) {
+            extras.forEach((key, value) -> flat.put(key.toString(), value));
+        }
+        return flat;
+    }
+
+    private static void putIfPresent(Map<String, Object> target, String key, Object value) {
+        if (value != null) {
+            target.put(key, value);
+        }
+    }
 }
@@ -45,6 +45,12 @@ public class PdfGenerationService {
     private String imageManagementServiceUrl;
     @Value("${image-analysis-service.url}")
     private String imageAnalysisServiceUrl;
+    // Minimum XAI quality tier for visualizations embedded in reports; weaker ones are regenerated.
+    @Value("${image-analysis-service.xai-quality:FORENSIC}")
+    private String xaiQuality;
+    // Tier the analysis service produced a visualization at, cheapest tier first.
+    private static final String XAI_QUALITY_HEADER = "X-XAI-Quality";
+    private static final List<String> XAI_QUALITY_TIERS = List.of("FAST", "STANDARD", "FORENSIC");
 
     public PdfGenerationService(
             TemplateServiceImpl templateService,
@@ -448,7 +454,7 @@ public class PdfGenerationService {
             log.info("Analyses not populated in report, fetching from ImageAnalysisService for report: {}", report.getId());
             if (!imageIds.isEmpty()) {
                 try {
-                    String analysisUrl = imageAnalysisServiceUrl + "/api/analyses/by-image-ids";
+                    String analysisUrl = imageAnalysisServiceUrl + "/api/analyses/by-image-ids?view=full";
                     log.debug("Fetching analyses from URL: {} with image IDs: {}", analysisUrl, imageIds);
                     HttpHeaders headers = new HttpHeaders();
                     headers.setContentType(MediaType.APPLICATION_JSON);
@@ -518,6 +524,11 @@ public class PdfGenerationService {
                 }
 
                 Map<String, Object> analysisData = new HashMap<>(analysis);
+                if (analysisData.get("detectionDetails") instanceof Map<?, ?> details) {
+                    @SuppressWarnings("unchecked")
+                    Map<String, Object> typed = (Map<String, Object>) details;
+                    analysisData.put("detectionDetails", AnalysisService.flattenDetectionDetails(typed));
+                }
 
                 // Fetch original image
                 byte[] imageData = fetchImageWithRetry(imageId, 3);
@@ -588,13 +599,18 @@ public class PdfGenerationService {
                 : imageAnalysisServiceUrl;
         String vizUrl = baseUrl + "/api/v1/analysis/" + analysisId + "/xai-visualization/" + visualizationType;
         vizUrl += "?userId=PDF_SERVICE&userRole=SYSTEM&reason=PDFGeneration";
+        vizUrl += "&quality=" + xaiQuality;
 
         log.info("Attempting to fetch {} visualization for analysis ID: {}", visualizationType, analysisId);
-        return fetchImageWithRetry(vizUrl, 3); // Reuse existing retry logic
+        return fetchImageWithRetry(vizUrl, 3, xaiQuality); // Reuse existing retry logic
     }
 
-    // Modified to accept URL for reuse with visualization images
     private byte[] fetchImageWithRetry(String urlOrImageId, int maxRetries) {
+        return fetchImageWithRetry(urlOrImageId, maxRetries, null);
+    }
+
+    // Modified to accept URL for reuse with visualization images; requiredXaiQuality rejects lower-tier visualizations
+    private byte[] fetchImageWithRetry(String urlOrImageId, int maxRetries, String requiredXaiQuality) {
         String fetchUrl;
         if (urlOrImageId.startsWith("http")) {
             fetchUrl = urlOrImageId;
@@ -624,7 +640,15 @@ public class PdfGenerationService {
                         byte[].class
                 );
 
-                if (imageResponse.getStatusCode().is2xxSuccessful() && imageResponse.getBody() != null) {
+                String producedQuality = imageResponse.getHeaders().getFirst(XAI_QUALITY_HEADER);
+                if (requiredXaiQuality != null && producedQuality != null
+                        && XAI_QUALITY_TIERS.indexOf(producedQuality.toUpperCase())
+                        < XAI_QUALITY_TIERS.indexOf(requiredXaiQuality.toUpperCase())) {
+                    String errorMsg = "Visualization from URL: " + fetchUrl + " was produced at " + producedQuality
+                            + " quality, below the required " + requiredXaiQuality;
+                    log.warn(errorMsg);
+                    errorMessages.add(errorMsg);
+                } else if (imageResponse.getStatusCode().is2xxSuccessful() && imageResponse.getBody() != null) {
                     byte[] imageData = imageResponse.getBody();
                     if (imageData.length > 0 && isValidImageData(imageData)) {
                         log.info("Successfully fetched valid image from URL: {}. Size: {} bytes", fetchUrl, imageData.length);
@@ -35,12 +35,19 @@ export interface AnnotationResponse {
   }
 }
 
-
-
-
-
-
-
-
-
-
+export interface AnalysisBatch {
+  id: string
+  caseId: string
+  requestedBy?: string
+  modelVersion: string
+  status: "RUNNING" | "COMPLETED"
+  createdAt: string
+  completedAt?: string
+  total: number
+  skipped: number
+  done: number
+  failed: number
+  pending: number
+  skippedImageIds: string[]
+  analysisIds: Record<string, string>
+}
@@ -3,7 +3,7 @@ import {HttpClient, HttpErrorResponse, HttpParams} from "@angular/common/http"
 import { Observable, throwError } from "rxjs"
 import { catchError, retry, timeout } from "rxjs/operators"
 import { environment } from "../../../environments/environment"
-import { AnalysisResult, type AnalysisRequest } from "../models/analysis.model"
+import { AnalysisResult, type AnalysisBatch, type AnalysisRequest } from "../models/analysis.model"
 import { ToastrService } from "ngx-toastr"
 import {AnalysisDto} from '../models/report.model';
 
@@ -40,6 +40,22 @@ export class AnalysisService {
 
 
 
+  analyzeCase(caseId: string, userId?: string, force = false): Observable<AnalysisBatch> {
+    let params = new HttpParams().set('force', String(force));
+    if (userId) {
+      params = params.set('userId', userId);
+    }
+    return this.http.post<AnalysisBatch>(`${this.apiUrl}/case/${caseId}`, null, { params }).pipe(
+      catchError(this.handleError)
+    )
+  }
+
+  getAnalysisBatch(batchId: string): Observable<AnalysisBatch> {
+    return this.http.get<AnalysisBatch>(`${this.apiUrl}/batches/${batchId}`).pipe(
+      catchError(this.handleError)
+    )
+  }
+
   getAnalysis(analysisId: string): Observable<AnalysisResult> {
     return this.http.get<AnalysisResult>(`${this.apiUrl}/${analysisId}`).pipe(
       catchError(this.handleError)